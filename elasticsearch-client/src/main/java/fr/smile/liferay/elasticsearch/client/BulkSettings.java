@@ -0,0 +1,385 @@
+package fr.smile.liferay.elasticsearch.client;
+
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+
+/**
+ * This object contains all the information needed to send bulk requests to the ElasticSearch index.
+ */
+public class BulkSettings {
+
+    /**
+     * Default number of documents per bulk request.
+     */
+    public static final int DEFAULT_BULK_ACTIONS = 1000;
+
+    /**
+     * Default bulk request size (5mb).
+     */
+    public static final long DEFAULT_BULK_SIZE = 5L * 1024L * 1024L;
+
+    /**
+     * Default number of concurrent bulk requests.
+     */
+    public static final int DEFAULT_CONCURRENT_REQUESTS = 1;
+
+    /**
+     * Default timeout, in seconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 60L;
+
+    /**
+     * Default asynchronous queue size.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /**
+     * Default flush interval, in milliseconds.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    /**
+     * Default offer timeout, in milliseconds.
+     */
+    public static final long DEFAULT_OFFER_TIMEOUT = 5000L;
+
+    /**
+     * Default number of delete-by-query slices.
+     */
+    public static final int DEFAULT_SLICES = 5;
+
+    /**
+     * Default fingerprint cache size.
+     */
+    public static final int DEFAULT_FINGERPRINT_CACHE_SIZE = 10000;
+
+    /**
+     * Default coalescing window, in milliseconds (disabled).
+     */
+    public static final long DEFAULT_COALESCING_WINDOW = 0L;
+
+    /**
+     * Default delay before the first retry of rejected bulk items, in milliseconds.
+     */
+    public static final long DEFAULT_RETRY_INITIAL_DELAY = 50L;
+
+    /**
+     * Default maximum number of retries of rejected bulk items.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 8;
+
+    /**
+     * Default minimum number of documents per bulk request, when adaptive.
+     */
+    public static final int DEFAULT_MIN_BULK_ACTIONS = 100;
+
+    /**
+     * Default maximum number of documents per bulk request, when adaptive.
+     */
+    public static final int DEFAULT_MAX_BULK_ACTIONS = 5000;
+
+    /**
+     * Default maximum number of concurrent bulk requests, when adaptive.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+    /**
+     * Default bulk request latency aimed at, in milliseconds.
+     */
+    public static final long DEFAULT_TARGET_LATENCY = 1000L;
+
+    /**
+     * Number of documents per bulk request.
+     */
+    private int bulkActions;
+
+    /**
+     * Bulk request size in bytes.
+     */
+    private long bulkSize;
+
+    /**
+     * Number of concurrent bulk requests.
+     */
+    private int concurrentRequests;
+
+    /**
+     * Timeout in seconds.
+     */
+    private long timeout;
+
+    /**
+     * Is asynchronous indexing enabled.
+     */
+    private boolean asyncEnabled;
+
+    /**
+     * Asynchronous queue size.
+     */
+    private int queueSize;
+
+    /**
+     * Flush interval in milliseconds.
+     */
+    private long flushInterval;
+
+    /**
+     * Offer timeout in milliseconds.
+     */
+    private long offerTimeout;
+
+    /**
+     * Number of delete-by-query slices.
+     */
+    private int slices;
+
+    /**
+     * Fingerprint cache size.
+     */
+    private int fingerprintCacheSize;
+
+    /**
+     * Coalescing window in milliseconds.
+     */
+    private long coalescingWindow;
+
+    /**
+     * Delay before the first retry of rejected bulk items, in milliseconds.
+     */
+    private long retryInitialDelay;
+
+    /**
+     * Maximum number of retries of rejected bulk items.
+     */
+    private int maxRetries;
+
+    /**
+     * Is the adaptation of bulk size and concurrency enabled.
+     */
+    private boolean adaptiveEnabled;
+
+    /**
+     * Minimum number of documents per bulk request, when adaptive.
+     */
+    private int minBulkActions;
+
+    /**
+     * Maximum number of documents per bulk request, when adaptive.
+     */
+    private int maxBulkActions;
+
+    /**
+     * Maximum number of concurrent bulk requests, when adaptive.
+     */
+    private int maxConcurrentRequests;
+
+    /**
+     * Bulk request latency aimed at, in milliseconds.
+     */
+    private long targetLatency;
+
+    /**
+     * Build configuration from portal properties, falling back to default values.
+     */
+    public BulkSettings() {
+        this.bulkActions = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_ACTIONS), DEFAULT_BULK_ACTIONS
+        );
+        this.bulkSize = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_SIZE), DEFAULT_BULK_SIZE
+        );
+        this.concurrentRequests = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_CONCURRENT_REQUESTS), DEFAULT_CONCURRENT_REQUESTS
+        );
+        this.timeout = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_TIMEOUT), DEFAULT_TIMEOUT
+        );
+        this.asyncEnabled = GetterUtil.getBoolean(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_ASYNC_ENABLED)
+        );
+        this.queueSize = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_ASYNC_QUEUE_SIZE), DEFAULT_QUEUE_SIZE
+        );
+        this.flushInterval = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_ASYNC_FLUSH_INTERVAL), DEFAULT_FLUSH_INTERVAL
+        );
+        this.offerTimeout = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_ASYNC_OFFER_TIMEOUT), DEFAULT_OFFER_TIMEOUT
+        );
+        this.slices = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_DELETE_BY_QUERY_SLICES), DEFAULT_SLICES
+        );
+        this.fingerprintCacheSize = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_FINGERPRINT_CACHE_SIZE), DEFAULT_FINGERPRINT_CACHE_SIZE
+        );
+        this.coalescingWindow = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_COALESCING_WINDOW), DEFAULT_COALESCING_WINDOW
+        );
+        this.retryInitialDelay = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_RETRY_INITIAL_DELAY), DEFAULT_RETRY_INITIAL_DELAY
+        );
+        this.maxRetries = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_RETRY_MAX_RETRIES), DEFAULT_MAX_RETRIES
+        );
+        this.adaptiveEnabled = GetterUtil.getBoolean(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_ADAPTIVE_ENABLED)
+        );
+        this.minBulkActions = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_ADAPTIVE_MIN_ACTIONS), DEFAULT_MIN_BULK_ACTIONS
+        );
+        this.maxBulkActions = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_ADAPTIVE_MAX_ACTIONS), DEFAULT_MAX_BULK_ACTIONS
+        );
+        this.maxConcurrentRequests = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_ADAPTIVE_MAX_CONCURRENT_REQUESTS),
+                DEFAULT_MAX_CONCURRENT_REQUESTS
+        );
+        this.targetLatency = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_BULK_ADAPTIVE_TARGET_LATENCY), DEFAULT_TARGET_LATENCY
+        );
+    }
+
+    /**
+     * Get number of documents per bulk request.
+     * @return number of documents
+     */
+    public final int getBulkActions() {
+        return bulkActions;
+    }
+
+    /**
+     * Get bulk request size.
+     * @return size in bytes
+     */
+    public final long getBulkSize() {
+        return bulkSize;
+    }
+
+    /**
+     * Get number of concurrent bulk requests.
+     * @return number of concurrent requests
+     */
+    public final int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    /**
+     * Get timeout.
+     * @return timeout in seconds
+     */
+    public final long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Is asynchronous indexing enabled.
+     * @return true if single documents are queued and sent in background
+     */
+    public final boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    /**
+     * Get asynchronous queue size.
+     * @return queue size
+     */
+    public final int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Get flush interval.
+     * @return flush interval in milliseconds
+     */
+    public final long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Get offer timeout.
+     * @return offer timeout in milliseconds
+     */
+    public final long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    /**
+     * Get number of delete-by-query slices.
+     * @return number of slices
+     */
+    public final int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Get fingerprint cache size.
+     * @return number of fingerprints kept, 0 if disabled
+     */
+    public final int getFingerprintCacheSize() {
+        return fingerprintCacheSize;
+    }
+
+    /**
+     * Get coalescing window.
+     * @return coalescing window in milliseconds, 0 if disabled
+     */
+    public final long getCoalescingWindow() {
+        return coalescingWindow;
+    }
+
+    /**
+     * Get delay before the first retry of rejected bulk items.
+     * @return delay in milliseconds
+     */
+    public final long getRetryInitialDelay() {
+        return retryInitialDelay;
+    }
+
+    /**
+     * Get maximum number of retries of rejected bulk items.
+     * @return number of retries
+     */
+    public final int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Is the adaptation of bulk size and concurrency enabled.
+     * @return true if bulk size and concurrency follow the cluster load
+     */
+    public final boolean isAdaptiveEnabled() {
+        return adaptiveEnabled;
+    }
+
+    /**
+     * Get minimum number of documents per bulk request, when adaptive.
+     * @return number of documents
+     */
+    public final int getMinBulkActions() {
+        return minBulkActions;
+    }
+
+    /**
+     * Get maximum number of documents per bulk request, when adaptive.
+     * @return number of documents
+     */
+    public final int getMaxBulkActions() {
+        return maxBulkActions;
+    }
+
+    /**
+     * Get maximum number of concurrent bulk requests, when adaptive.
+     * @return number of concurrent requests
+     */
+    public final int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Get bulk request latency aimed at.
+     * @return latency in milliseconds
+     */
+    public final long getTargetLatency() {
+        return targetLatency;
+    }
+}
@@ -44,4 +44,243 @@ public final class ElasticSearchIndexerConstants {
      */
     public static final String ES_FUZZY_ENABLED = "elasticsearch.fuzzy.enable";
 
+    /**
+     * Maximum number of documents sent in a single bulk request.
+     */
+    public static final String ES_BULK_ACTIONS = "elasticsearch.bulk.actions";
+
+    /**
+     * Maximum size of a single bulk request, in bytes.
+     */
+    public static final String ES_BULK_SIZE = "elasticsearch.bulk.size";
+
+    /**
+     * Number of bulk requests allowed to be in flight while new documents are accumulated.
+     */
+    public static final String ES_BULK_CONCURRENT_REQUESTS = "elasticsearch.bulk.concurrentRequests";
+
+    /**
+     * Maximum time to wait for pending bulk requests to complete, in seconds.
+     */
+    public static final String ES_BULK_TIMEOUT = "elasticsearch.bulk.timeout";
+
+    /**
+     * Is asynchronous indexing of single documents enabled.
+     */
+    public static final String ES_ASYNC_ENABLED = "elasticsearch.async.enable";
+
+    /**
+     * Maximum number of documents waiting to be sent to the index.
+     */
+    public static final String ES_ASYNC_QUEUE_SIZE = "elasticsearch.async.queueSize";
+
+    /**
+     * Maximum time a document waits before being sent to the index, in milliseconds.
+     */
+    public static final String ES_ASYNC_FLUSH_INTERVAL = "elasticsearch.async.flushInterval";
+
+    /**
+     * Maximum time to wait for room in a full queue before indexing synchronously, in milliseconds.
+     */
+    public static final String ES_ASYNC_OFFER_TIMEOUT = "elasticsearch.async.offerTimeout";
+
+    /**
+     * Number of slices a delete-by-query is split into.
+     */
+    public static final String ES_DELETE_BY_QUERY_SLICES = "elasticsearch.deleteByQuery.slices";
+
+    /**
+     * Number of threads converting documents to JSON in parallel.
+     */
+    public static final String ES_CONVERSION_PARALLELISM = "elasticsearch.conversion.parallelism";
+
+    /**
+     * Number of documents converted by a single conversion task.
+     */
+    public static final String ES_CONVERSION_BATCH_SIZE = "elasticsearch.conversion.batchSize";
+
+    /**
+     * Encoding of the documents sent to the index: json or smile.
+     */
+    public static final String ES_DOCUMENT_FORMAT = "elasticsearch.document.format";
+
+    /**
+     * Number of document fingerprints kept to skip unchanged documents, 0 to disable.
+     */
+    public static final String ES_FINGERPRINT_CACHE_SIZE = "elasticsearch.fingerprint.cacheSize";
+
+    /**
+     * Interval between two reads of the database clock the document versions are taken from, in milliseconds.
+     */
+    public static final String ES_VERSION_CLOCK_SYNC_INTERVAL = "elasticsearch.version.clockSyncInterval";
+
+    /**
+     * Time during which successive writes of a document are merged, in milliseconds, 0 to disable.
+     */
+    public static final String ES_COALESCING_WINDOW = "elasticsearch.coalescing.window";
+
+    /**
+     * Enable the on-disk spool of operations which could not be sent to the index.
+     */
+    public static final String ES_SPOOL_ENABLED = "elasticsearch.spool.enable";
+
+    /**
+     * Directory of the spool segments.
+     */
+    public static final String ES_SPOOL_DIRECTORY = "elasticsearch.spool.directory";
+
+    /**
+     * Size of a spool segment, in bytes.
+     */
+    public static final String ES_SPOOL_SEGMENT_SIZE = "elasticsearch.spool.segmentSize";
+
+    /**
+     * Maximum size of the spool, in bytes.
+     */
+    public static final String ES_SPOOL_MAX_SIZE = "elasticsearch.spool.maxSize";
+
+    /**
+     * Interval between two attempts to replay the spool, in milliseconds.
+     */
+    public static final String ES_SPOOL_REPLAY_INTERVAL = "elasticsearch.spool.replayInterval";
+
+    /**
+     * Delay before the first retry of rejected bulk items, in milliseconds.
+     */
+    public static final String ES_BULK_RETRY_INITIAL_DELAY = "elasticsearch.bulk.retry.initialDelay";
+
+    /**
+     * Maximum number of retries of rejected bulk items.
+     */
+    public static final String ES_BULK_RETRY_MAX_RETRIES = "elasticsearch.bulk.retry.maxRetries";
+
+    /**
+     * Enable the adaptation of bulk size and concurrency to the cluster load.
+     */
+    public static final String ES_BULK_ADAPTIVE_ENABLED = "elasticsearch.bulk.adaptive.enable";
+
+    /**
+     * Minimum number of documents per bulk request, when adaptive.
+     */
+    public static final String ES_BULK_ADAPTIVE_MIN_ACTIONS = "elasticsearch.bulk.adaptive.minActions";
+
+    /**
+     * Maximum number of documents per bulk request, when adaptive.
+     */
+    public static final String ES_BULK_ADAPTIVE_MAX_ACTIONS = "elasticsearch.bulk.adaptive.maxActions";
+
+    /**
+     * Maximum number of concurrent bulk requests, when adaptive.
+     */
+    public static final String ES_BULK_ADAPTIVE_MAX_CONCURRENT_REQUESTS =
+            "elasticsearch.bulk.adaptive.maxConcurrentRequests";
+
+    /**
+     * Bulk request latency aimed at, in milliseconds, when adaptive.
+     */
+    public static final String ES_BULK_ADAPTIVE_TARGET_LATENCY = "elasticsearch.bulk.adaptive.targetLatency";
+
+    /**
+     * Number of single documents written at the same time in the interactive lane.
+     */
+    public static final String ES_LANE_INTERACTIVE_CONCURRENCY = "elasticsearch.lane.interactive.concurrency";
+
+    /**
+     * Number of collections of documents written at the same time in the bulk lane.
+     */
+    public static final String ES_LANE_BULK_CONCURRENCY = "elasticsearch.lane.bulk.concurrency";
+
+    /**
+     * Number of documents of a collection sent between two checks of the interactive lane.
+     */
+    public static final String ES_LANE_BULK_YIELD_INTERVAL = "elasticsearch.lane.bulk.yieldInterval";
+
+    /**
+     * Maximum time the bulk lane waits for single document writes, in milliseconds.
+     */
+    public static final String ES_LANE_BULK_MAX_YIELD_WAIT = "elasticsearch.lane.bulk.maxYieldWait";
+
+    /**
+     * Refresh policy of single document writes: none, wait_for or immediate.
+     */
+    public static final String ES_REFRESH_WRITE = "elasticsearch.refresh.write";
+
+    /**
+     * Refresh policy of document deletions: none, wait_for or immediate.
+     */
+    public static final String ES_REFRESH_DELETE = "elasticsearch.refresh.delete";
+
+    /**
+     * Refresh policy of operations whose search context asks to commit immediately: none, wait_for or immediate.
+     */
+    public static final String ES_REFRESH_COMMIT_IMMEDIATELY = "elasticsearch.refresh.commitImmediately";
+
+    /**
+     * Enable read-your-writes: the next search of a user waits until the documents the user just wrote are visible.
+     */
+    public static final String ES_READ_YOUR_WRITES_ENABLED = "elasticsearch.readYourWrites.enable";
+
+    /**
+     * Maximum time a search waits for the documents written by its user, in milliseconds.
+     */
+    public static final String ES_READ_YOUR_WRITES_MAX_WAIT = "elasticsearch.readYourWrites.maxWait";
+
+    /**
+     * Maximum size of a field value in bytes, larger values are truncated. 0 means no limit.
+     */
+    public static final String ES_FIELD_MAX_BYTES = "elasticsearch.field.maxBytes";
+
+    /**
+     * Prefix of the maximum size of a given field value in bytes, followed by the field name.
+     */
+    public static final String ES_FIELD_MAX_BYTES_PREFIX = ES_FIELD_MAX_BYTES + ".";
+
+    /**
+     * Policy applied to the fields missing from the index mappings: all, whitelist or unindexed.
+     */
+    public static final String ES_FIELD_POLICY = "elasticsearch.field.policy";
+
+    /**
+     * Fields kept by the whitelist policy although they are missing from the index mappings, comma separated.
+     * A name ending with * matches every field starting with it.
+     */
+    public static final String ES_FIELD_KEEP = "elasticsearch.field.keep";
+
+    /**
+     * Fields never sent to the index, whatever the policy, comma separated.
+     * A name ending with * matches every field starting with it.
+     */
+    public static final String ES_FIELD_DROP = "elasticsearch.field.drop";
+
+    /**
+     * Is each entry type indexed into its own physical index.
+     */
+    public static final String ES_TYPE_INDEX_ENABLED = "elasticsearch.index.perType.enable";
+
+    /**
+     * Prefix of the number of shards of the index of an entry type, followed by the index type.
+     */
+    public static final String ES_TYPE_INDEX_SHARDS_PREFIX = "elasticsearch.index.perType.shards.";
+
+    /**
+     * Prefix of the number of replicas of the index of an entry type, followed by the index type.
+     */
+    public static final String ES_TYPE_INDEX_REPLICAS_PREFIX = "elasticsearch.index.perType.replicas.";
+
+    /**
+     * Field documents are routed to shards with, and searches routed to them: none, company or group.
+     */
+    public static final String ES_ROUTING = "elasticsearch.routing";
+
+    /**
+     * Are the searches restricted to the documents the user can view, from their permission fields.
+     */
+    public static final String ES_PERMISSION_FILTER_ENABLED = "elasticsearch.permissionFilter.enable";
+
+    /**
+     * Maximum number of hits a search returns, capping the searches of all the results. Must not exceed the
+     * index.max_result_window setting of the index.
+     */
+    public static final String ES_SEARCH_MAX_RESULTS = "elasticsearch.search.maxResults";
+
 }
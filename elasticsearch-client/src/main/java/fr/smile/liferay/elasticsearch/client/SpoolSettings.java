@@ -0,0 +1,123 @@
+package fr.smile.liferay.elasticsearch.client;
+
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsKeys;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.util.Validator;
+
+import java.io.File;
+
+/**
+ * This object contains all the information needed to keep on disk the operations which could not be sent to the index.
+ */
+public class SpoolSettings {
+
+    /**
+     * Default spool directory, relative to the Liferay home.
+     */
+    public static final String DEFAULT_DIRECTORY = "data/elasticsearch/spool";
+
+    /**
+     * Default segment size (16mb).
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default maximum spool size (512mb).
+     */
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024L * 1024L;
+
+    /**
+     * Default replay interval, in milliseconds.
+     */
+    public static final long DEFAULT_REPLAY_INTERVAL = 5000L;
+
+    /**
+     * Is the spool enabled.
+     */
+    private boolean enabled;
+
+    /**
+     * Spool directory.
+     */
+    private File directory;
+
+    /**
+     * Segment size in bytes.
+     */
+    private int segmentSize;
+
+    /**
+     * Maximum spool size in bytes.
+     */
+    private long maxSize;
+
+    /**
+     * Replay interval in milliseconds.
+     */
+    private long replayInterval;
+
+    /**
+     * Build configuration from portal properties, falling back to default values.
+     */
+    public SpoolSettings() {
+        this.enabled = GetterUtil.getBoolean(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_SPOOL_ENABLED)
+        );
+        String directoryProperty = PropsUtil.get(ElasticSearchIndexerConstants.ES_SPOOL_DIRECTORY);
+        if (Validator.isNotNull(directoryProperty)) {
+            this.directory = new File(directoryProperty);
+        } else {
+            this.directory = new File(PropsUtil.get(PropsKeys.LIFERAY_HOME), DEFAULT_DIRECTORY);
+        }
+        this.segmentSize = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_SPOOL_SEGMENT_SIZE), DEFAULT_SEGMENT_SIZE
+        );
+        this.maxSize = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_SPOOL_MAX_SIZE), DEFAULT_MAX_SIZE
+        );
+        this.replayInterval = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_SPOOL_REPLAY_INTERVAL), DEFAULT_REPLAY_INTERVAL
+        );
+    }
+
+    /**
+     * Is the spool enabled.
+     * @return true if operations are kept on disk when no node is available
+     */
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get spool directory.
+     * @return directory
+     */
+    public final File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get segment size.
+     * @return size in bytes
+     */
+    public final int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Get maximum spool size.
+     * @return size in bytes
+     */
+    public final long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get replay interval.
+     * @return interval in milliseconds
+     */
+    public final long getReplayInterval() {
+        return replayInterval;
+    }
+}
@@ -0,0 +1,84 @@
+package fr.smile.liferay.elasticsearch.client;
+
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * This object contains all the information needed to index each entry type into its own physical index.
+ *
+ * Index types are the entry class names with '.' replaced by '_', such as
+ * com_liferay_portlet_journal_model_JournalArticle. They are matched case insensitively.
+ */
+public class TypeIndexSettings {
+
+    /**
+     * Is each entry type indexed into its own physical index.
+     */
+    private boolean enabled;
+
+    /**
+     * Number of shards, by lower case index type.
+     */
+    private final Map<String, Integer> numberOfShards;
+
+    /**
+     * Number of replicas, by lower case index type.
+     */
+    private final Map<String, Integer> numberOfReplicas;
+
+    /**
+     * Build configuration from portal properties, falling back to the index settings.
+     */
+    public TypeIndexSettings() {
+        this.enabled = GetterUtil.getBoolean(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_TYPE_INDEX_ENABLED)
+        );
+        this.numberOfShards = loadByType(ElasticSearchIndexerConstants.ES_TYPE_INDEX_SHARDS_PREFIX);
+        this.numberOfReplicas = loadByType(ElasticSearchIndexerConstants.ES_TYPE_INDEX_REPLICAS_PREFIX);
+    }
+
+    /**
+     * Load integer properties suffixed with an index type.
+     * @param prefix the properties prefix
+     * @return the values by lower case index type
+     */
+    private static Map<String, Integer> loadByType(final String prefix) {
+        Map<String, Integer> values = new HashMap<>();
+        Properties properties = PropsUtil.getProperties(prefix, true);
+        for (String indexType : properties.stringPropertyNames()) {
+            values.put(StringUtil.toLowerCase(indexType), GetterUtil.getInteger(properties.getProperty(indexType)));
+        }
+        return values;
+    }
+
+    /**
+     * Is each entry type indexed into its own physical index.
+     * @return true if indices are split by entry type
+     */
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the number of shards of the index of an entry type.
+     * @param indexType the index type
+     * @return number of shards, null to use the index settings
+     */
+    public final Integer getNumberOfShards(final String indexType) {
+        return numberOfShards.get(StringUtil.toLowerCase(indexType));
+    }
+
+    /**
+     * Get the number of replicas of the index of an entry type.
+     * @param indexType the index type
+     * @return number of replicas, null to use the index settings
+     */
+    public final Integer getNumberOfReplicas(final String indexType) {
+        return numberOfReplicas.get(StringUtil.toLowerCase(indexType));
+    }
+}
@@ -0,0 +1,184 @@
+package fr.smile.liferay.elasticsearch.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents the outcome of a bulk operation sent to the index.
+ *
+ * Bulk responses may be received on several threads, so this object is thread-safe.
+ */
+public class BulkResult {
+
+    /**
+     * Represents a document which could not be handled by the index.
+     */
+    public static class Failure {
+
+        /** The id. */
+        private final String id;
+
+        /** The index type. */
+        private final String indexType;
+
+        /** The error message. */
+        private final String errorMessage;
+
+        /**
+         * Instantiates a new failure.
+         *
+         * @param id the document id
+         * @param indexType the index type
+         * @param errorMessage the error message
+         */
+        public Failure(final String id, final String indexType, final String errorMessage) {
+            this.id = id;
+            this.indexType = indexType;
+            this.errorMessage = errorMessage;
+        }
+
+        /**
+         * Gets the id.
+         *
+         * @return the id
+         */
+        public final String getId() {
+            return id;
+        }
+
+        /**
+         * Gets the index type.
+         *
+         * @return the index type
+         */
+        public final String getIndexType() {
+            return indexType;
+        }
+
+        /**
+         * Gets the error message.
+         *
+         * @return the error message
+         */
+        public final String getErrorMessage() {
+            return errorMessage;
+        }
+
+        @Override
+        public final String toString() {
+            return "[" + indexType + "][" + id + "] " + errorMessage;
+        }
+    }
+
+    /** The successful operations count. */
+    private final AtomicLong succeeded = new AtomicLong();
+
+    /** The skipped documents count. */
+    private final AtomicLong skipped = new AtomicLong();
+
+    /** The count of documents rejected because a version built later was indexed. */
+    private final AtomicLong versionConflicts = new AtomicLong();
+
+    /** The spooled operations count. */
+    private final AtomicLong spooled = new AtomicLong();
+
+    /** The failures. */
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+
+    /**
+     * Record a successful operation.
+     */
+    public final void addSuccess() {
+        succeeded.incrementAndGet();
+    }
+
+    /**
+     * Record a document which was not written, because it is in error or unchanged.
+     */
+    public final void addSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Record a document which was not written, because a version built later is indexed.
+     */
+    public final void addVersionConflict() {
+        versionConflicts.incrementAndGet();
+    }
+
+    /**
+     * Record an operation kept on disk, to be sent once a node is available.
+     */
+    public final void addSpooled() {
+        spooled.incrementAndGet();
+    }
+
+    /**
+     * Record a failed operation.
+     *
+     * @param id the document id
+     * @param indexType the index type
+     * @param errorMessage the error message
+     */
+    public final void addFailure(final String id, final String indexType, final String errorMessage) {
+        failures.add(new Failure(id, indexType, errorMessage));
+    }
+
+    /**
+     * Gets the successful operations count.
+     *
+     * @return the count
+     */
+    public final long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * Gets the skipped documents count.
+     *
+     * @return the count
+     */
+    public final long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Gets the count of documents rejected because a version built later was indexed.
+     *
+     * @return the count
+     */
+    public final long getVersionConflicts() {
+        return versionConflicts.get();
+    }
+
+    /**
+     * Gets the spooled operations count.
+     *
+     * @return the count
+     */
+    public final long getSpooled() {
+        return spooled.get();
+    }
+
+    /**
+     * Gets the failures.
+     *
+     * @return a copy of the failures
+     */
+    public final List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    /**
+     * Checks if at least one operation failed.
+     *
+     * @return true, if there are failures
+     */
+    public final boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+}
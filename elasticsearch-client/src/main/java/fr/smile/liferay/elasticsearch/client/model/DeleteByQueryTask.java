@@ -0,0 +1,191 @@
+package fr.smile.liferay.elasticsearch.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Represents a delete-by-query running in background on the ElasticSearch cluster.
+ *
+ * Progress is updated while the task is running and final counts are set on completion.
+ */
+public class DeleteByQueryTask {
+
+    /** The id. */
+    private final String id;
+
+    /** The description, as reported by the ElasticSearch task API. */
+    private final String description;
+
+    /** The start time. */
+    private final long startTime;
+
+    /** The end time. */
+    private volatile long endTime;
+
+    /** The total number of documents to delete. */
+    private volatile long total;
+
+    /** The number of deleted documents. */
+    private volatile long deleted;
+
+    /** The number of processed batches. */
+    private volatile int batches;
+
+    /** Is the task done. */
+    private volatile boolean done;
+
+    /** The failures. */
+    private volatile List<String> failures = Collections.emptyList();
+
+    /** The id of the task on the cluster, null until it is known. */
+    private volatile String clusterTaskId;
+
+    /**
+     * Instantiates a new delete by query task.
+     *
+     * @param description the description
+     */
+    public DeleteByQueryTask(final String description) {
+        this.id = UUID.randomUUID().toString();
+        this.description = description;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Update the progress of a running task.
+     *
+     * @param total the total number of documents to delete
+     * @param deleted the number of deleted documents
+     * @param batches the number of processed batches
+     */
+    public final void updateProgress(final long total, final long deleted, final int batches) {
+        if (!done) {
+            this.total = total;
+            this.deleted = deleted;
+            this.batches = batches;
+        }
+    }
+
+    /**
+     * Mark the task as done.
+     *
+     * @param deleted the number of deleted documents
+     * @param batches the number of processed batches
+     * @param failures the failures
+     */
+    public final void complete(final long deleted, final int batches, final List<String> failures) {
+        this.deleted = deleted;
+        this.total = Math.max(total, deleted);
+        this.batches = batches;
+        this.failures = Collections.unmodifiableList(new ArrayList<>(failures));
+        this.endTime = System.currentTimeMillis();
+        this.done = true;
+    }
+
+    /**
+     * Gets the id.
+     *
+     * @return the id
+     */
+    public final String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the description.
+     *
+     * @return the description
+     */
+    public final String getDescription() {
+        return description;
+    }
+
+    /**
+     * Gets the start time.
+     *
+     * @return the start time in milliseconds
+     */
+    public final long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Gets the end time.
+     *
+     * @return the end time in milliseconds, 0 if the task is running
+     */
+    public final long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Gets the total number of documents to delete.
+     *
+     * @return the total, 0 until the first progress update
+     */
+    public final long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the number of deleted documents.
+     *
+     * @return the deleted documents count
+     */
+    public final long getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Gets the number of processed batches.
+     *
+     * @return the batches count
+     */
+    public final int getBatches() {
+        return batches;
+    }
+
+    /**
+     * Checks if the task is done.
+     *
+     * @return true, if done
+     */
+    public final boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Gets the failures.
+     *
+     * @return the failures
+     */
+    public final List<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Gets the id of the task on the cluster.
+     *
+     * @return the cluster task id, formatted as nodeId:taskNumber, null until it is known
+     */
+    public final String getClusterTaskId() {
+        return clusterTaskId;
+    }
+
+    /**
+     * Sets the id of the task on the cluster.
+     *
+     * @param clusterTaskId the cluster task id
+     */
+    public final void setClusterTaskId(final String clusterTaskId) {
+        this.clusterTaskId = clusterTaskId;
+    }
+
+    @Override
+    public final String toString() {
+        return "[" + id + "] " + description + " deleted " + deleted + "/" + total
+                + (done ? " done" : " running");
+    }
+}
@@ -1,9 +1,23 @@
 package fr.smile.liferay.elasticsearch.client.model;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+
 /**
  * Represents a document stored in the index, in JSON format.
  */
 public class ElasticSearchJsonDocument {
+
+    /**
+     * Version of a document which is not versioned externally.
+     */
+    public static final long NO_VERSION = -1L;
+
     /**
      * The Enum DocumentError.
      */
@@ -75,13 +89,43 @@ public class ElasticSearchJsonDocument {
         this.indexType = indexType;
     }
 
+    /**
+     * Gets the routing value.
+     *
+     * @return the routing value, null if the document is routed by its id
+     */
+    public final String getRouting() {
+        return routing;
+    }
+
+    /**
+     * Sets the routing value.
+     *
+     * @param routing the new routing value
+     */
+    public final void setRouting(final String routing) {
+        this.routing = routing;
+    }
+
     /**
      * Gets the json document.
      *
+     * The source is decoded, so this method should only be used for display or debugging purpose.
+     *
      * @return the json document
      */
     public final String getJsonDocument() {
-        return jsonDocument;
+        if (source == null) {
+            return null;
+        }
+        if (contentType == XContentType.JSON) {
+            return source.utf8ToString();
+        }
+        try {
+            return XContentHelper.convertToJson(source, false);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Unable to decode " + contentType + " document source", e);
+        }
     }
 
     /**
@@ -90,7 +134,72 @@ public class ElasticSearchJsonDocument {
      * @param jsonDocument the new json document
      */
     public final void setJsonDocument(final String jsonDocument) {
-        this.jsonDocument = jsonDocument;
+        setSource(new BytesArray(jsonDocument), XContentType.JSON);
+    }
+
+    /**
+     * Gets the encoded source, as sent to the index.
+     *
+     * @return the source
+     */
+    public final BytesReference getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the source content type.
+     *
+     * @return the content type
+     */
+    public final XContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Sets the encoded source.
+     *
+     * @param source the source
+     * @param contentType the source content type
+     */
+    public final void setSource(final BytesReference source, final XContentType contentType) {
+        this.source = source;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Gets the external version.
+     *
+     * @return the version, {@link #NO_VERSION} if the document is not versioned
+     */
+    public final long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the external version.
+     *
+     * @param version the new version
+     */
+    public final void setVersion(final long version) {
+        this.version = version;
+    }
+
+    /**
+     * Gets the content fingerprint.
+     *
+     * @return the fingerprint
+     */
+    public final String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Sets the content fingerprint.
+     *
+     * @param fingerprint the new fingerprint
+     */
+    public final void setFingerprint(final String fingerprint) {
+        this.fingerprint = fingerprint;
     }
 
     /**
@@ -135,8 +244,20 @@ public class ElasticSearchJsonDocument {
     /** The index type. */
     private String indexType;
 
-    /** The json document. */
-    private String jsonDocument;
+    /** The routing value. */
+    private String routing;
+
+    /** The encoded source. */
+    private BytesReference source;
+
+    /** The source content type. */
+    private XContentType contentType;
+
+    /** The external version. */
+    private long version = NO_VERSION;
+
+    /** The content fingerprint. */
+    private String fingerprint;
 
     /** The error message. */
     private String errorMessage;
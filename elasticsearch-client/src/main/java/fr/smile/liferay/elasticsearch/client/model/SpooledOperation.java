@@ -0,0 +1,181 @@
+package fr.smile.liferay.elasticsearch.client.model;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.VersionType;
+
+import java.io.IOException;
+
+/**
+ * Represents an operation which could not be sent to the index and is kept on disk to be replayed later.
+ *
+ * Writes are kept as the index request source, deletions as the JSON query matching the documents to delete.
+ */
+public class SpooledOperation {
+
+    /**
+     * The Enum Type.
+     */
+    public enum Type {
+
+        /** Index a document. */
+        WRITE,
+
+        /** Delete the documents matching a query. */
+        DELETE
+    }
+
+    /** The type. */
+    private final Type type;
+
+    /** The index name. */
+    private final String index;
+
+    /** The index type, for writes. */
+    private String indexType;
+
+    /** The document id, for writes. */
+    private String id;
+
+    /** The routing value, for writes, may be null. */
+    private String routing;
+
+    /** The document version, for writes. */
+    private long version;
+
+    /** The version type, for writes. */
+    private VersionType versionType;
+
+    /** The document source, for writes. */
+    private BytesReference source;
+
+    /** The JSON query, for deletions. */
+    private String query;
+
+    /**
+     * Instantiates a new spooled operation.
+     *
+     * @param type the type
+     * @param index the index name
+     */
+    private SpooledOperation(final Type type, final String index) {
+        this.type = type;
+        this.index = index;
+    }
+
+    /**
+     * Create a write operation from an index request.
+     *
+     * @param request the index request
+     * @return the spooled operation
+     */
+    public static SpooledOperation write(final IndexRequest request) {
+        SpooledOperation operation = new SpooledOperation(Type.WRITE, request.index());
+        operation.indexType = request.type();
+        operation.id = request.id();
+        operation.routing = request.routing();
+        operation.version = request.version();
+        operation.versionType = request.versionType();
+        operation.source = request.source();
+        return operation;
+    }
+
+    /**
+     * Create a deletion of every document matching a query.
+     *
+     * @param index the index name
+     * @param query the JSON query
+     * @return the spooled operation
+     */
+    public static SpooledOperation delete(final String index, final String query) {
+        SpooledOperation operation = new SpooledOperation(Type.DELETE, index);
+        operation.query = query;
+        return operation;
+    }
+
+    /**
+     * Read an operation written by {@link #writeTo(StreamOutput)}.
+     *
+     * @param in the input
+     * @return the spooled operation
+     * @throws IOException if the operation can't be read
+     */
+    public static SpooledOperation readFrom(final StreamInput in) throws IOException {
+        Type type = Type.values()[in.readByte()];
+        SpooledOperation operation = new SpooledOperation(type, in.readString());
+        if (type == Type.WRITE) {
+            operation.indexType = in.readString();
+            operation.id = in.readString();
+            operation.version = in.readLong();
+            operation.versionType = VersionType.readFromStream(in);
+            operation.source = in.readBytesReference();
+            /* Writes spooled by previous versions have no routing */
+            if (in.available() > 0) {
+                operation.routing = in.readOptionalString();
+            }
+        } else {
+            operation.query = in.readString();
+        }
+        return operation;
+    }
+
+    /**
+     * Write the operation.
+     *
+     * @param out the output
+     * @throws IOException if the operation can't be written
+     */
+    public final void writeTo(final StreamOutput out) throws IOException {
+        out.writeByte((byte) type.ordinal());
+        out.writeString(index);
+        if (type == Type.WRITE) {
+            out.writeString(indexType);
+            out.writeString(id);
+            out.writeLong(version);
+            versionType.writeTo(out);
+            out.writeBytesReference(source);
+            out.writeOptionalString(routing);
+        } else {
+            out.writeString(query);
+        }
+    }
+
+    /**
+     * Build the index request of a write operation.
+     *
+     * @return the index request
+     */
+    public final IndexRequest toIndexRequest() {
+        return new IndexRequest(index, indexType, id).source(source).routing(routing).version(version)
+                .versionType(versionType);
+    }
+
+    /**
+     * Gets the type.
+     *
+     * @return the type
+     */
+    public final Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the index name.
+     *
+     * @return the index name
+     */
+    public final String getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the JSON query of a deletion.
+     *
+     * @return the query
+     */
+    public final String getQuery() {
+        return query;
+    }
+}
@@ -0,0 +1,162 @@
+package fr.smile.liferay.elasticsearch.client.service;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces bulk requests according to what the cluster can absorb.
+ *
+ * Items rejected by a saturated bulk thread pool are retried with an exponential backoff. When adaptive
+ * pacing is enabled, the bulk size and concurrency used by the next bulk processors follow the observed
+ * load: they shrink quickly on rejections or when requests take longer than the target latency, and grow
+ * slowly while full requests are answered well under it.
+ */
+@Service
+@ManagedResource(objectName = "fr.smile.liferay.elasticsearch:type=BulkFlowController")
+public class BulkFlowController {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(BulkFlowController.class);
+
+    /** The bulk settings. */
+    @Autowired
+    private BulkSettings bulkSettings;
+
+    /** Current number of documents per bulk request. */
+    private int bulkActions;
+
+    /** Current number of concurrent bulk requests. */
+    private int concurrentRequests;
+
+    /** Number of rejected bulk requests retried. */
+    private final AtomicLong rejections = new AtomicLong();
+
+    /** Latency of the last bulk request, in milliseconds. */
+    private volatile long lastLatency;
+
+    /**
+     * Start from the configured bulk size and concurrency.
+     */
+    @PostConstruct
+    public final synchronized void init() {
+        bulkActions = bulkSettings.getBulkActions();
+        concurrentRequests = bulkSettings.getConcurrentRequests();
+        if (bulkSettings.isAdaptiveEnabled()) {
+            bulkActions = Math.min(Math.max(bulkActions, bulkSettings.getMinBulkActions()),
+                    bulkSettings.getMaxBulkActions());
+            concurrentRequests = Math.min(Math.max(concurrentRequests, 1), bulkSettings.getMaxConcurrentRequests());
+            LOGGER.info("Adaptive bulk pacing enabled, target latency: " + bulkSettings.getTargetLatency() + "ms");
+        }
+    }
+
+    /**
+     * Get number of documents per bulk request.
+     *
+     * @return number of documents
+     */
+    @ManagedAttribute(description = "Current number of documents per bulk request")
+    public final synchronized int getBulkActions() {
+        return bulkActions;
+    }
+
+    /**
+     * Get number of concurrent bulk requests.
+     *
+     * @return number of concurrent requests
+     */
+    @ManagedAttribute(description = "Current number of concurrent bulk requests")
+    public final synchronized int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    /**
+     * Get number of rejected bulk requests retried.
+     *
+     * @return number of rejections
+     */
+    @ManagedAttribute(description = "Rejected bulk requests retried")
+    public final long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Get latency of the last bulk request.
+     *
+     * @return latency in milliseconds
+     */
+    @ManagedAttribute(description = "Latency of the last bulk request, in milliseconds")
+    public final long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * Build the backoff policy retrying rejected items. Each retry is reported as a rejection.
+     *
+     * @return the backoff policy
+     */
+    public final BackoffPolicy getBackoffPolicy() {
+        return BackoffPolicy.wrap(
+                BackoffPolicy.exponentialBackoff(
+                        TimeValue.timeValueMillis(bulkSettings.getRetryInitialDelay()), bulkSettings.getMaxRetries()
+                ),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        onRejection();
+                    }
+                });
+    }
+
+    /**
+     * Record a completed bulk request and adapt the pacing to its latency.
+     *
+     * @param actions number of actions of the request
+     * @param latency latency of the request, in milliseconds
+     */
+    public final synchronized void onBulkCompleted(final int actions, final long latency) {
+        lastLatency = latency;
+        if (!bulkSettings.isAdaptiveEnabled()) {
+            return;
+        }
+
+        long targetLatency = bulkSettings.getTargetLatency();
+        if (latency > targetLatency) {
+            bulkActions = Math.max(bulkSettings.getMinBulkActions(), bulkActions - bulkActions / 4);
+            LOGGER.debug("Bulk request took " + latency + "ms, bulk size decreased to " + bulkActions);
+        } else if (latency < targetLatency / 2 && actions >= bulkActions) {
+            /* Only full requests tell whether bigger ones would be absorbed */
+            if (bulkActions < bulkSettings.getMaxBulkActions()) {
+                bulkActions = Math.min(bulkSettings.getMaxBulkActions(), bulkActions + Math.max(1, bulkActions / 10));
+            } else if (concurrentRequests < bulkSettings.getMaxConcurrentRequests()) {
+                concurrentRequests++;
+            }
+            LOGGER.debug("Bulk request took " + latency + "ms, bulk size increased to " + bulkActions
+                    + " ,concurrency: " + concurrentRequests);
+        }
+    }
+
+    /**
+     * Record a bulk request rejected by the cluster and back off.
+     */
+    private synchronized void onRejection() {
+        rejections.incrementAndGet();
+        if (!bulkSettings.isAdaptiveEnabled()) {
+            return;
+        }
+
+        bulkActions = Math.max(bulkSettings.getMinBulkActions(), bulkActions / 2);
+        concurrentRequests = Math.max(1, concurrentRequests - 1);
+        LOGGER.debug("Bulk request rejected, bulk size decreased to " + bulkActions
+                + " ,concurrency: " + concurrentRequests);
+    }
+}
@@ -0,0 +1,104 @@
+package fr.smile.liferay.elasticsearch.client.service;
+
+import com.liferay.portal.kernel.util.StringPool;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the content fingerprint of the last documents written to the index, by id.
+ *
+ * It allows to skip writing a document whose content is identical to the indexed one.
+ * The cache is local to the portal node: documents written by another node are not known,
+ * so the cache should be disabled (size 0) if several nodes may write the same documents.
+ */
+@Service
+public class FingerprintCache {
+
+    /** The bulk settings. */
+    @Autowired
+    private BulkSettings bulkSettings;
+
+    /** The fingerprints, by index and document id, least recently used first. */
+    private Map<String, String> fingerprints;
+
+    /**
+     * Init method.
+     */
+    @PostConstruct
+    public final void init() {
+        final int maxSize = bulkSettings.getFingerprintCacheSize();
+        if (maxSize > 0) {
+            fingerprints = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                    return size() > maxSize;
+                }
+            });
+        }
+    }
+
+    /**
+     * Check if a document is identical to the last one written to the index.
+     *
+     * @param index the index name
+     * @param esDocument the json document
+     * @return true if the document content didn't change
+     */
+    public final boolean isUnchanged(final String index, final ElasticSearchJsonDocument esDocument) {
+        return fingerprints != null && esDocument.getFingerprint() != null
+                && esDocument.getFingerprint().equals(fingerprints.get(key(index, esDocument.getId())));
+    }
+
+    /**
+     * Record the fingerprint of a document written to the index.
+     *
+     * @param index the index name
+     * @param esDocument the json document
+     */
+    public final void put(final String index, final ElasticSearchJsonDocument esDocument) {
+        if (fingerprints != null && esDocument.getFingerprint() != null) {
+            fingerprints.put(key(index, esDocument.getId()), esDocument.getFingerprint());
+        }
+    }
+
+    /**
+     * Forget a document, whose indexed content is unknown or deleted.
+     *
+     * @param index the index name
+     * @param id the document id
+     */
+    public final void remove(final String index, final String id) {
+        if (fingerprints != null) {
+            fingerprints.remove(key(index, id));
+        }
+    }
+
+    /**
+     * Forget every document.
+     */
+    public final void clear() {
+        if (fingerprints != null) {
+            fingerprints.clear();
+        }
+    }
+
+    /**
+     * Build a cache key.
+     *
+     * @param index the index name
+     * @param id the document id
+     * @return the key
+     */
+    private String key(final String index, final String id) {
+        return index + StringPool.SLASH + id;
+    }
+}
@@ -0,0 +1,163 @@
+package fr.smile.liferay.elasticsearch.client.service;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters about the indexing activity, exposed through JMX.
+ */
+@Service
+@ManagedResource(objectName = "fr.smile.liferay.elasticsearch:type=IndexMetrics")
+public class IndexMetrics {
+
+    /** Number of writes skipped because the document content didn't change. */
+    private final AtomicLong unchangedSkipped = new AtomicLong();
+
+    /** Number of writes saved by merging successive writes of a document. */
+    private final AtomicLong coalescedWrites = new AtomicLong();
+
+    /** Number of operations kept on disk because no node was available. */
+    private final AtomicLong spooledOperations = new AtomicLong();
+
+    /** Number of spooled operations replayed. */
+    private final AtomicLong replayedOperations = new AtomicLong();
+
+    /** Number of operations lost because the spool was full or unavailable. */
+    private final AtomicLong droppedOperations = new AtomicLong();
+
+    /** Number of documents with at least one field truncated to its size limit. */
+    private final AtomicLong oversizedDocuments = new AtomicLong();
+
+    /** Number of bytes cut from truncated fields. */
+    private final AtomicLong truncatedBytes = new AtomicLong();
+
+    /** Number of writes rejected because a version built later was already indexed. */
+    private final AtomicLong versionConflicts = new AtomicLong();
+
+    /**
+     * Record a write skipped because the document content didn't change.
+     */
+    public final void incrementUnchangedSkipped() {
+        unchangedSkipped.incrementAndGet();
+    }
+
+    /**
+     * Get number of writes skipped because the document content didn't change.
+     * @return number of skipped writes
+     */
+    @ManagedAttribute(description = "Writes skipped because the document content didn't change")
+    public final long getUnchangedSkipped() {
+        return unchangedSkipped.get();
+    }
+
+    /**
+     * Record a write saved by merging successive writes of a document.
+     */
+    public final void incrementCoalescedWrites() {
+        coalescedWrites.incrementAndGet();
+    }
+
+    /**
+     * Get number of writes saved by merging successive writes of a document.
+     * @return number of saved writes
+     */
+    @ManagedAttribute(description = "Writes saved by merging successive writes of a document")
+    public final long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+
+    /**
+     * Record an operation kept on disk because no node was available.
+     */
+    public final void incrementSpooledOperations() {
+        spooledOperations.incrementAndGet();
+    }
+
+    /**
+     * Get number of operations kept on disk because no node was available.
+     * @return number of spooled operations
+     */
+    @ManagedAttribute(description = "Operations kept on disk because no node was available")
+    public final long getSpooledOperations() {
+        return spooledOperations.get();
+    }
+
+    /**
+     * Record spooled operations replayed.
+     * @param count number of replayed operations
+     */
+    public final void addReplayedOperations(final long count) {
+        replayedOperations.addAndGet(count);
+    }
+
+    /**
+     * Get number of spooled operations replayed.
+     * @return number of replayed operations
+     */
+    @ManagedAttribute(description = "Spooled operations replayed")
+    public final long getReplayedOperations() {
+        return replayedOperations.get();
+    }
+
+    /**
+     * Record an operation lost because the spool was full or unavailable.
+     */
+    public final void incrementDroppedOperations() {
+        droppedOperations.incrementAndGet();
+    }
+
+    /**
+     * Get number of operations lost because the spool was full or unavailable.
+     * @return number of dropped operations
+     */
+    @ManagedAttribute(description = "Operations lost because the spool was full or unavailable")
+    public final long getDroppedOperations() {
+        return droppedOperations.get();
+    }
+
+    /**
+     * Record a document with fields truncated to their size limit.
+     * @param bytes number of bytes cut from its fields
+     */
+    public final void addOversizedDocument(final long bytes) {
+        oversizedDocuments.incrementAndGet();
+        truncatedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Get number of documents with fields truncated to their size limit.
+     * @return number of oversized documents
+     */
+    @ManagedAttribute(description = "Documents with fields truncated to their size limit")
+    public final long getOversizedDocuments() {
+        return oversizedDocuments.get();
+    }
+
+    /**
+     * Get number of bytes cut from truncated fields.
+     * @return number of bytes
+     */
+    @ManagedAttribute(description = "Bytes cut from fields truncated to their size limit")
+    public final long getTruncatedBytes() {
+        return truncatedBytes.get();
+    }
+
+    /**
+     * Record a write rejected because a version built later was already indexed.
+     */
+    public final void incrementVersionConflicts() {
+        versionConflicts.incrementAndGet();
+    }
+
+    /**
+     * Get number of writes rejected because a version built later was already indexed.
+     * @return number of version conflicts
+     */
+    @ManagedAttribute(description = "Writes rejected because a version built later was already indexed")
+    public final long getVersionConflicts() {
+        return versionConflicts.get();
+    }
+}
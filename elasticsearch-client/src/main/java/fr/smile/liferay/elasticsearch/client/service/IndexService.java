@@ -1,34 +1,84 @@
 package fr.smile.liferay.elasticsearch.client.service;
 
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.util.StringPool;
+import com.liferay.portal.kernel.util.StringUtil;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import fr.smile.liferay.elasticsearch.client.TypeIndexSettings;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import fr.smile.liferay.elasticsearch.client.model.DeleteByQueryTask;
 import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
 import fr.smile.liferay.elasticsearch.client.model.Index;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksResponse;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
 import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
-import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.IndicesAdminClient;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollTask;
+import org.elasticsearch.index.reindex.BulkIndexByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequestBuilder;
+import org.elasticsearch.index.reindex.ScrollableHitSource;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.tasks.TaskInfo;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service gives access to the index through useful methods.
@@ -49,10 +99,140 @@ public class IndexService {
      */
     public static final String ELASTIC_SEARCH_QUERY_UID = ELASTIC_SEARCH_UID + StringPool.COLON;
 
+    /**
+     * Sort used to scroll documents in index order, which is the cheapest one.
+     */
+    private static final String SCROLL_SORT = "_doc";
+
+    /**
+     * Scroll context keep alive.
+     */
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    /**
+     * Maximum number of delete by query tasks kept to be polled.
+     */
+    private static final int MAX_DELETE_BY_QUERY_TASKS = 50;
+
+    /**
+     * Prefix of the index settings.
+     */
+    private static final String INDEX_SETTING_PREFIX = "index.";
+
+    /**
+     * Refresh interval setting.
+     */
+    private static final String SETTING_REFRESH_INTERVAL = INDEX_SETTING_PREFIX + "refresh_interval";
+
+    /**
+     * Number of replicas setting.
+     */
+    private static final String SETTING_NUMBER_OF_REPLICAS = INDEX_SETTING_PREFIX + "number_of_replicas";
+
+    /**
+     * Number of shards setting.
+     */
+    private static final String SETTING_NUMBER_OF_SHARDS = INDEX_SETTING_PREFIX + "number_of_shards";
+
+    /**
+     * Refresh interval while an index is bulk loaded (disabled).
+     */
+    private static final String BULK_LOAD_REFRESH_INTERVAL = "-1";
+
+    /**
+     * Elasticsearch default refresh interval.
+     */
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+
+    /**
+     * Elasticsearch default number of replicas.
+     */
+    private static final String DEFAULT_NUMBER_OF_REPLICAS = "1";
+
+    /**
+     * Number of segments of a reindexed index after force merge.
+     */
+    private static final int FORCE_MERGE_SEGMENTS = 1;
+
+    /**
+     * Date pattern suffixing physical index names.
+     */
+    private static final String PHYSICAL_INDEX_SUFFIX_PATTERN = "yyyyMMddHHmmss";
+
+    /**
+     * Separator between an index name and the index type of its type indices.
+     */
+    private static final String TYPE_INDEX_SEPARATOR = StringPool.UNDERLINE;
+
+    /**
+     * Maximum number of terms whose maximum value is looked up.
+     */
+    private static final int MAX_TERMS = 1000;
+
+    /**
+     * Name of the maximum value aggregation.
+     */
+    private static final String MAX_AGGREGATION = "max";
+
+    /**
+     * Message of a delete by query task kept in the write spool.
+     */
+    private static final String SPOOLED_MESSAGE = "No node available, deletion spooled until a node is available";
+
     /** The client. */
     @Autowired
     private Client client;
 
+    /** The bulk settings. */
+    @Autowired
+    private BulkSettings bulkSettings;
+
+    /** The fingerprint cache. */
+    @Autowired
+    private FingerprintCache fingerprintCache;
+
+    /** The index metrics. */
+    @Autowired
+    private IndexMetrics indexMetrics;
+
+    /** The bulk flow controller. */
+    @Autowired
+    private BulkFlowController bulkFlowController;
+
+    /** The spool of operations sent while no node is available. */
+    @Autowired
+    private WriteSpool writeSpool;
+
+    /** The type index settings. */
+    @Autowired
+    private TypeIndexSettings typeIndexSettings;
+
+    /** Liferay indices split by entry type, by alias. */
+    private final Map<String, Index> typeIndexTemplates = new ConcurrentHashMap<>();
+
+    /** Reindex targets split by entry type, by physical name. */
+    private final Map<String, Index> reindexTargets = new ConcurrentHashMap<>();
+
+    /** Names of the type indices known to exist. */
+    private final Set<String> knownTypeIndices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Lock held while a type index is created. */
+    private final Object typeIndexLock = new Object();
+
+    /** Lock held while delete by query tasks are matched with cluster tasks. */
+    private final Object clusterTaskMatchLock = new Object();
+
+    /** The delete by query tasks, by id. */
+    private final Map<String, DeleteByQueryTask> deleteByQueryTasks = Collections.synchronizedMap(
+            new LinkedHashMap<String, DeleteByQueryTask>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, DeleteByQueryTask> eldest) {
+                    return size() > MAX_DELETE_BY_QUERY_TASKS;
+                }
+            });
+
     /**
      * Checks if index exists.
      *
@@ -68,38 +248,409 @@ public class IndexService {
         return existsResponse.isExists();
     }
 
+    /**
+     * Prepare the liferay index to be used: create it if it doesn't exist.
+     *
+     * When each entry type is indexed into its own physical index, the liferay index is used as the template of
+     * the type indices, created on the first write of their type.
+     *
+     * @param index index
+     */
+    public final void openIndex(final Index index) {
+        if (typeIndexSettings.isEnabled()) {
+            typeIndexTemplates.put(index.getName(), index);
+            LOGGER.info("Entry types of index " + index.getName() + " are indexed into their own index");
+        }
+        if (!checkIfIndexExists(index.getName())) {
+            createIndex(index);
+        }
+    }
+
+    /**
+     * Checks if each entry type is indexed into its own physical index.
+     *
+     * @return true, if indices are split by entry type
+     */
+    public final boolean isTypeIndexEnabled() {
+        return typeIndexSettings.isEnabled();
+    }
+
+    /**
+     * Get the name of the index of an entry type: the alias of its physical index for a liferay index, or the
+     * physical index itself for a reindex target.
+     *
+     * @param index the liferay index name or the reindex target
+     * @param indexType the index type
+     * @return the type index name
+     */
+    public final String getTypeIndexName(final String index, final String indexType) {
+        return index + TYPE_INDEX_SEPARATOR + StringUtil.toLowerCase(indexType);
+    }
+
     /**
      * Creates the liferay index in Elasticsearch server with default dynamic mapping template.
+     *
+     * The index is created as a versioned physical index, reached through an alias named after the
+     * liferay index, so it can later be replaced by a full reindex without downtime.
+     *
      * @param index index
      */
     public final void createIndex(final Index index) {
         try {
-            CreateIndexRequestBuilder indexBuilder = client.admin().indices().prepareCreate(index.getName());
-
-            String indexMappings = index.getIndexMappings();
-            String indexSettings = index.getIndexSettings();
-            if (!StringUtils.isEmpty(indexMappings)) {
-                JSONObject jsonMappings = new JSONObject(indexMappings);
-                JSONArray jsonMappingsJSONArray = jsonMappings.getJSONArray("mappings");
-                for (int i = 0; i < jsonMappingsJSONArray.length(); i++) {
-                    JSONObject obj = jsonMappingsJSONArray.getJSONObject(i);
-                    String type = obj.names().getString(0);
-                    String mapping = obj.getJSONObject(type).toString();
-                    indexBuilder.addMapping(type, mapping);
+            String physicalName = newPhysicalName(index.getName());
+            CreateIndexResponse createIndexResponse = prepareCreateIndex(index, physicalName, Settings.EMPTY)
+                    .addAlias(new Alias(index.getName()))
+                    .execute().actionGet();
+
+            LOGGER.info("Index " + physicalName + " created with dynamic template mapping provided, Result:"
+                    + createIndexResponse.isAcknowledged());
+        } catch (Exception e) {
+            LOGGER.error("Failed to load file for elasticsearch mapping settings", e);
+        }
+    }
+
+    /**
+     * Creates a new physical index to be filled by a full reindex, with refresh disabled and no replica.
+     *
+     * @param index index
+     * @return the physical index name
+     */
+    public final String createReindexTarget(final Index index) {
+        String physicalName = newPhysicalName(index.getName());
+        Settings bulkLoadSettings = Settings.builder()
+                .put(SETTING_REFRESH_INTERVAL, BULK_LOAD_REFRESH_INTERVAL)
+                .put(SETTING_NUMBER_OF_REPLICAS, 0)
+                .build();
+
+        prepareCreateIndex(index, physicalName, bulkLoadSettings).execute().actionGet();
+        if (typeIndexSettings.isEnabled()) {
+            reindexTargets.put(physicalName, index);
+        }
+        LOGGER.info("Index " + physicalName + " created for full reindex");
+        return physicalName;
+    }
+
+    /**
+     * Prepare a filled reindex target to be searched: restore the refresh interval and replicas of the index
+     * settings, then force merge it.
+     *
+     * @param index index
+     * @param physicalName the physical index name
+     */
+    public final void finishReindexTarget(final Index index, final String physicalName) {
+        Settings settings = loadSettings(index);
+        String refreshInterval = getSetting(settings, SETTING_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+        String numberOfReplicas = getSetting(settings, SETTING_NUMBER_OF_REPLICAS, DEFAULT_NUMBER_OF_REPLICAS);
+
+        restoreSettings(physicalName, refreshInterval, numberOfReplicas);
+        for (String typeIndex : getTypeIndices(physicalName)) {
+            Integer typeReplicas = typeIndexSettings.getNumberOfReplicas(
+                    typeIndex.substring(physicalName.length() + TYPE_INDEX_SEPARATOR.length())
+            );
+            restoreSettings(typeIndex, refreshInterval,
+                    typeReplicas != null ? String.valueOf(typeReplicas) : numberOfReplicas);
+        }
+
+        LOGGER.info("Force merging index " + physicalName);
+        client.admin().indices().prepareForceMerge(withTypeIndices(physicalName))
+                .setMaxNumSegments(FORCE_MERGE_SEGMENTS)
+                .get();
+        refreshIndex(physicalName);
+    }
+
+    /**
+     * Restore the refresh interval and replicas of a bulk loaded index.
+     *
+     * @param physicalName the physical index name
+     * @param refreshInterval the refresh interval
+     * @param numberOfReplicas the number of replicas
+     */
+    private void restoreSettings(final String physicalName, final String refreshInterval,
+                                 final String numberOfReplicas) {
+        client.admin().indices().prepareUpdateSettings(physicalName).setSettings(Settings.builder()
+                .put(SETTING_REFRESH_INTERVAL, refreshInterval)
+                .put(SETTING_NUMBER_OF_REPLICAS, numberOfReplicas)
+        ).get();
+    }
+
+    /**
+     * Atomically point the alias of the liferay index to a new physical index and delete the previous ones.
+     *
+     * A previous index created without alias, under the liferay index name, is deleted in the same request.
+     * When the new index is split by entry type, each type index gets the alias of the liferay index and the
+     * alias of its type.
+     *
+     * @param alias the liferay index name
+     * @param physicalName the new physical index name
+     */
+    public final void swapAlias(final String alias, final String physicalName) {
+        IndicesAliasesRequestBuilder request = client.admin().indices().prepareAliases()
+                .addAlias(physicalName, alias);
+        for (String typeIndex : getTypeIndices(physicalName)) {
+            request.addAlias(typeIndex, alias)
+                    .addAlias(typeIndex, alias + typeIndex.substring(physicalName.length()));
+        }
+
+        ImmutableOpenMap<String, List<AliasMetaData>> aliases = client.admin().indices()
+                .prepareGetAliases(alias).get().getAliases();
+        if (aliases.isEmpty() && checkIfIndexExists(alias)) {
+            request.removeIndex(alias);
+        }
+        for (ObjectCursor<String> previous : aliases.keys()) {
+            if (!physicalName.equals(previous.value)) {
+                request.removeIndex(previous.value);
+            }
+        }
+
+        request.get();
+        reindexTargets.remove(physicalName);
+        /* Types without documents in the new index have lost their index */
+        knownTypeIndices.clear();
+        LOGGER.info("Alias " + alias + " now points to index " + physicalName);
+    }
+
+    /**
+     * Get the refresh interval of the index settings.
+     *
+     * @param index index
+     * @return the refresh interval, negative if refresh is disabled
+     */
+    public final TimeValue getRefreshInterval(final Index index) {
+        return TimeValue.parseTimeValue(
+                getSetting(loadSettings(index), SETTING_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL),
+                SETTING_REFRESH_INTERVAL
+        );
+    }
+
+    /**
+     * Get the maximum value of a numeric field for each term of a keyword field, such as the newest modification
+     * date of each entry type.
+     *
+     * @param index the index name
+     * @param termField the keyword field
+     * @param valueField the numeric field
+     * @return the maximum value by term, terms whose documents have no value are left out
+     * @throws org.elasticsearch.ElasticsearchException if the search fails, such as when the term field is an
+     *             analyzed text field, which can't be aggregated
+     */
+    public final Map<String, Long> getMaxValueByTerm(final String index, final String termField,
+                                                     final String valueField) {
+        SearchResponse response = client.prepareSearch(index)
+                .setSize(0)
+                .addAggregation(AggregationBuilders.terms(termField).field(termField).size(MAX_TERMS)
+                        .subAggregation(AggregationBuilders.max(MAX_AGGREGATION).field(valueField)))
+                .get();
+
+        Map<String, Long> maxValues = new LinkedHashMap<>();
+        Terms terms = response.getAggregations().get(termField);
+        for (Terms.Bucket bucket : terms.getBuckets()) {
+            Max max = bucket.getAggregations().get(MAX_AGGREGATION);
+            if (!Double.isInfinite(max.getValue())) {
+                maxValues.put(bucket.getKeyAsString(), (long) max.getValue());
+            }
+        }
+        return maxValues;
+    }
+
+    /**
+     * Refresh an index, so its last written documents are visible to searches.
+     *
+     * @param physicalName the index name
+     */
+    public final void refreshIndex(final String physicalName) {
+        client.admin().indices().prepareRefresh(withTypeIndices(physicalName)).get();
+    }
+
+    /**
+     * Delete a physical index, with its type indices.
+     *
+     * @param physicalName the physical index name
+     */
+    public final void deleteIndex(final String physicalName) {
+        client.admin().indices().prepareDelete(withTypeIndices(physicalName)).get();
+        reindexTargets.remove(physicalName);
+    }
+
+    /**
+     * Get the names to use to reach every document of an index: a reindex target split by entry type is
+     * completed with its type indices, liferay indices reach theirs through their alias.
+     *
+     * @param index the index name
+     * @return the index names
+     */
+    private String[] withTypeIndices(final String index) {
+        if (reindexTargets.containsKey(index)) {
+            return new String[] {index, index + TYPE_INDEX_SEPARATOR + StringPool.STAR};
+        }
+        return new String[] {index};
+    }
+
+    /**
+     * List the type indices of a reindex target.
+     *
+     * @param physicalName the physical index name
+     * @return the type indices, empty if the index is not split by entry type
+     */
+    private String[] getTypeIndices(final String physicalName) {
+        if (!reindexTargets.containsKey(physicalName)) {
+            return new String[0];
+        }
+        return client.admin().indices().prepareGetIndex()
+                .setIndices(physicalName + TYPE_INDEX_SEPARATOR + StringPool.STAR)
+                .get().getIndices();
+    }
+
+    /**
+     * Get the index a document is written to: the index of its entry type if the index is split by entry type.
+     *
+     * @param index the index name
+     * @param indexType the index type of the document
+     * @return the index name
+     */
+    private String routeIndex(final String index, final String indexType) {
+        if (indexType == null || !typeIndexSettings.isEnabled()) {
+            return index;
+        }
+
+        Index template = typeIndexTemplates.get(index);
+        boolean reindexTarget = false;
+        if (template == null) {
+            template = reindexTargets.get(index);
+            reindexTarget = template != null;
+        }
+        if (template == null) {
+            return index;
+        }
+
+        String typeIndex = getTypeIndexName(index, indexType);
+        if (!knownTypeIndices.contains(typeIndex)) {
+            createTypeIndex(template, index, typeIndex, indexType, reindexTarget);
+        }
+        return typeIndex;
+    }
+
+    /**
+     * Create the index of an entry type if it doesn't exist, with the settings and mappings of the liferay index
+     * and the shards and replicas of the type.
+     *
+     * The index of a liferay index is a versioned physical index reached through the alias of its type and the
+     * alias of the liferay index. The index of a reindex target is a physical index, bulk loaded like its target.
+     *
+     * @param template the liferay index
+     * @param index the liferay index name or the reindex target
+     * @param typeIndex the type index name
+     * @param indexType the index type
+     * @param reindexTarget is the index a reindex target
+     */
+    private void createTypeIndex(final Index template, final String index, final String typeIndex,
+                                 final String indexType, final boolean reindexTarget) {
+        synchronized (typeIndexLock) {
+            if (knownTypeIndices.contains(typeIndex)) {
+                return;
+            }
+            try {
+                if (!checkIfIndexExists(typeIndex)) {
+                    Settings.Builder overrides = Settings.builder();
+                    Integer numberOfShards = typeIndexSettings.getNumberOfShards(indexType);
+                    if (numberOfShards != null) {
+                        overrides.put(SETTING_NUMBER_OF_SHARDS, numberOfShards);
+                    }
+                    Integer numberOfReplicas = typeIndexSettings.getNumberOfReplicas(indexType);
+                    if (numberOfReplicas != null) {
+                        overrides.put(SETTING_NUMBER_OF_REPLICAS, numberOfReplicas);
+                    }
+
+                    if (reindexTarget) {
+                        overrides.put(SETTING_REFRESH_INTERVAL, BULK_LOAD_REFRESH_INTERVAL)
+                                .put(SETTING_NUMBER_OF_REPLICAS, 0);
+                        prepareCreateIndex(template, typeIndex, overrides.build()).get();
+                    } else {
+                        prepareCreateIndex(template, newPhysicalName(typeIndex), overrides.build())
+                                .addAlias(new Alias(typeIndex))
+                                .addAlias(new Alias(index))
+                                .get();
+                    }
+                    LOGGER.info("Index " + typeIndex + " created for type " + indexType);
                 }
+                knownTypeIndices.add(typeIndex);
+            } catch (ElasticsearchException e) {
+                /* The write fails or is spooled, creation is tried again on the next write */
+                LOGGER.error("Unable to create index " + typeIndex + ": " + e.getMessage());
             }
+        }
+    }
+
+    /**
+     * Prepare the creation of a physical index with the settings and mappings of the liferay index.
+     *
+     * @param index index
+     * @param physicalName the physical index name
+     * @param overrides settings overriding the index settings
+     * @return the create index request builder
+     */
+    private CreateIndexRequestBuilder prepareCreateIndex(final Index index, final String physicalName,
+                                                         final Settings overrides) {
+        CreateIndexRequestBuilder indexBuilder = client.admin().indices().prepareCreate(physicalName);
 
-            if (indexSettings != null && indexSettings.length() > 0) {
-                indexBuilder.setSettings(indexSettings);
+        String indexMappings = index.getIndexMappings();
+        String indexSettings = index.getIndexSettings();
+        if (!StringUtils.isEmpty(indexMappings)) {
+            JSONObject jsonMappings = new JSONObject(indexMappings);
+            JSONArray jsonMappingsJSONArray = jsonMappings.getJSONArray("mappings");
+            for (int i = 0; i < jsonMappingsJSONArray.length(); i++) {
+                JSONObject obj = jsonMappingsJSONArray.getJSONObject(i);
+                String type = obj.names().getString(0);
+                String mapping = obj.getJSONObject(type).toString();
+                indexBuilder.addMapping(type, mapping);
             }
+        }
 
-            CreateIndexResponse createIndexResponse = indexBuilder.execute().actionGet();
+        Settings.Builder settings = Settings.builder();
+        if (indexSettings != null && indexSettings.length() > 0) {
+            settings.loadFromSource(indexSettings);
+        }
+        indexBuilder.setSettings(settings.put(overrides));
 
-            LOGGER.info("Index created with dynamic template mapping provided, Result:"
-                    + createIndexResponse.isAcknowledged());
-        } catch (Exception e) {
-            LOGGER.error("Failed to load file for elasticsearch mapping settings", e);
+        return indexBuilder;
+    }
+
+    /**
+     * Build the name of a new physical index.
+     *
+     * @param alias the liferay index name
+     * @return the physical index name, suffixed with the creation time
+     */
+    private String newPhysicalName(final String alias) {
+        return alias + StringPool.DASH + new SimpleDateFormat(PHYSICAL_INDEX_SUFFIX_PATTERN).format(new Date());
+    }
+
+    /**
+     * Load the settings of the liferay index.
+     *
+     * @param index index
+     * @return the settings, empty if none are defined
+     */
+    private Settings loadSettings(final Index index) {
+        if (StringUtils.isEmpty(index.getIndexSettings())) {
+            return Settings.EMPTY;
         }
+        return Settings.builder().loadFromSource(index.getIndexSettings()).build();
+    }
+
+    /**
+     * Get an index setting, whether it is prefixed with "index." or not.
+     *
+     * @param settings the settings
+     * @param key the setting key, prefixed with "index."
+     * @param defaultValue the default value
+     * @return the setting value
+     */
+    private String getSetting(final Settings settings, final String key, final String defaultValue) {
+        String value = settings.get(key);
+        if (value == null) {
+            value = settings.get(key.substring(INDEX_SETTING_PREFIX.length()), defaultValue);
+        }
+        return value;
     }
 
     /**
@@ -131,69 +682,703 @@ public class IndexService {
      * @param index index
      * @param esDocument
      *            the json document
+     * @return the result, with a failure if the document could neither be written nor spooled
      */
-    public final void writeDocument(final Index index, final ElasticSearchJsonDocument esDocument) {
+    public final BulkResult writeDocument(final Index index, final ElasticSearchJsonDocument esDocument) {
+        return writeDocument(index.getName(), esDocument);
+    }
 
+    /**
+     * A method to persist Liferay index to a given Elasticsearch index.
+     *
+     * @param index the index name
+     * @param esDocument
+     *            the json document
+     * @return the result, with a failure if the document could neither be written nor spooled
+     */
+    public final BulkResult writeDocument(final String index, final ElasticSearchJsonDocument esDocument) {
+        return writeDocument(index, esDocument, WriteRequest.RefreshPolicy.NONE);
+    }
+
+    /**
+     * A method to persist Liferay index to a given Elasticsearch index, with a refresh policy.
+     *
+     * @param index the index name
+     * @param esDocument
+     *            the json document
+     * @param refreshPolicy when the document must be visible to searches: NONE to let the index refresh it,
+     *            WAIT_UNTIL to return once a refresh made it visible, IMMEDIATE to refresh at once
+     * @return the result, with a failure if the document could neither be written nor spooled
+     */
+    public final BulkResult writeDocument(final String index, final ElasticSearchJsonDocument esDocument,
+                                          final WriteRequest.RefreshPolicy refreshPolicy) {
+        BulkResult result = new BulkResult();
         try {
             if (esDocument.isError()) {
                 LOGGER.warn("Coudln't store document in index. Error..." + esDocument.getErrorMessage());
+                result.addSkipped();
+            } else if (fingerprintCache.isUnchanged(index, esDocument)) {
+                indexMetrics.incrementUnchangedSkipped();
+                LOGGER.debug("Document " + esDocument.getId() + " is unchanged, skipping it");
+                result.addSkipped();
+            } else if (writeSpool.isPending()) {
+                /* Keep the order with the spooled operations */
+                fingerprintCache.remove(index, esDocument.getId());
+                spoolWrite(buildIndexRequest(index, esDocument), result);
             } else {
-                IndexResponse response = client.prepareIndex(
-                        index.getName(),
-                        esDocument.getIndexType(),
-                        esDocument.getId()
-                ).setSource(esDocument.getJsonDocument()).execute().actionGet();
+                IndexResponse response = client.index(
+                        buildIndexRequest(index, esDocument).setRefreshPolicy(refreshPolicy)
+                ).actionGet();
 
+                fingerprintCache.put(index, esDocument);
+                result.addSuccess();
                 LOGGER.debug("Document indexed successfully with Id: " + esDocument.getId()
                         + " ,Type:" + esDocument.getIndexType()
                         + " ,Updated index version:" + response.getVersion());
             }
+        } catch (VersionConflictEngineException versionEx) {
+            fingerprintCache.remove(index, esDocument.getId());
+            indexMetrics.incrementVersionConflicts();
+            LOGGER.warn("Document " + esDocument.getId()
+                    + " not written, a version built later is already indexed: " + versionEx.getMessage());
+            result.addVersionConflict();
         } catch (NoNodeAvailableException noNodeEx) {
+            fingerprintCache.remove(index, esDocument.getId());
             LOGGER.error("No node available:" + noNodeEx.getDetailedMessage());
+            spoolWrite(buildIndexRequest(index, esDocument), result);
+        }
+        return result;
+    }
+
+    /**
+     * Build the request indexing a document.
+     *
+     * Versioned documents use the external_gte version type: a document built before the indexed
+     * one is rejected, so documents can be written in any order, and sent again. Documents of an index
+     * split by entry type are written to the index of their type.
+     *
+     * @param index the index name
+     * @param esDocument the json document
+     * @return the index request
+     */
+    private IndexRequest buildIndexRequest(final String index, final ElasticSearchJsonDocument esDocument) {
+        IndexRequest request = new IndexRequest(
+                routeIndex(index, esDocument.getIndexType()), esDocument.getIndexType(), esDocument.getId()
+        ).source(esDocument.getSource()).routing(esDocument.getRouting());
+        if (esDocument.getVersion() != ElasticSearchJsonDocument.NO_VERSION) {
+            request.version(esDocument.getVersion()).versionType(VersionType.EXTERNAL_GTE);
+        }
+        return request;
+    }
+
+    /**
+     * Persist a collection of documents to the index using bulk requests.
+     *
+     * Documents are grouped according to the {@link BulkSettings} and every document
+     * which could not be indexed is reported in the returned {@link BulkResult}.
+     *
+     * Documents are consumed as they are iterated, so they can still be produced while the
+     * first bulk requests are sent.
+     *
+     * @param index index
+     * @param esDocuments the json documents
+     * @return the bulk result
+     */
+    public final BulkResult writeDocuments(final Index index, final Iterable<ElasticSearchJsonDocument> esDocuments) {
+        return writeDocuments(index.getName(), esDocuments);
+    }
+
+    /**
+     * Persist a collection of documents to a given index using bulk requests.
+     *
+     * @param index the index name
+     * @param esDocuments the json documents
+     * @return the bulk result
+     */
+    public final BulkResult writeDocuments(final String index, final Iterable<ElasticSearchJsonDocument> esDocuments) {
+        final BulkResult result = new BulkResult();
+        final Map<String, ElasticSearchJsonDocument> sentDocuments = new ConcurrentHashMap<>();
+
+        BulkResultListener listener = new BulkResultListener(index, result, sentDocuments);
+        BulkProcessor bulkProcessor = buildBulkProcessor(listener);
+        try {
+            for (ElasticSearchJsonDocument esDocument : esDocuments) {
+                if (esDocument.isError()) {
+                    LOGGER.warn("Coudln't store document in index. Error..." + esDocument.getErrorMessage());
+                    result.addSkipped();
+                } else if (fingerprintCache.isUnchanged(index, esDocument)) {
+                    indexMetrics.incrementUnchangedSkipped();
+                    result.addSkipped();
+                } else if (writeSpool.isPending()) {
+                    /* Keep the order with the spooled operations */
+                    fingerprintCache.remove(index, esDocument.getId());
+                    spoolWrite(buildIndexRequest(index, esDocument), result);
+                } else {
+                    sentDocuments.put(esDocument.getId(), esDocument);
+                    bulkProcessor.add(buildIndexRequest(index, esDocument));
+                }
+            }
+        } finally {
+            awaitClose(bulkProcessor, listener);
         }
+
+        LOGGER.debug("Bulk indexing done, succeeded: " + result.getSucceeded()
+                + " ,skipped: " + result.getSkipped()
+                + " ,version conflicts: " + result.getVersionConflicts()
+                + " ,spooled: " + result.getSpooled()
+                + " ,failed: " + result.getFailures().size());
+
+        return result;
     }
 
     /**
      * Remove document from index.
      * @param uid document uid
      * @param index index
+     * @return the bulk result
      */
-    public final void removeDocument(final String uid, final String index) {
+    public final BulkResult removeDocument(final String uid, final String index) {
+        return removeDocuments(Collections.singletonList(uid), index);
+    }
 
-        try {
-            /* Don't handle plugin deployment documents, skip them */
+    /**
+     * Remove documents from index.
+     *
+     * The documents matching the uids are looked up with a single terms filter on the uid field, then deleted
+     * by id with bulk requests. The uids are matched as is: the uid field must be mapped as keyword in the
+     * _default_ mapping, an analyzed field would hold lower case terms that never match a Liferay uid.
+     *
+     * @param uids documents uid
+     * @param index index
+     * @return the bulk result
+     */
+    public final BulkResult removeDocuments(final Collection<String> uids, final String index) {
+        return removeDocuments(uids, index, WriteRequest.RefreshPolicy.NONE);
+    }
 
-            QueryStringQueryBuilder query = QueryBuilders.queryStringQuery(
-                    ELASTIC_SEARCH_QUERY_UID + uid
-            );
+    /**
+     * Remove documents from index, with a refresh policy.
+     *
+     * Bulk processors can't carry a refresh policy: unless it is NONE, the index is refreshed once the
+     * deletions are done.
+     *
+     * @param uids documents uid
+     * @param index index
+     * @param refreshPolicy when the deletions must be visible to searches
+     * @return the bulk result
+     */
+    public final BulkResult removeDocuments(final Collection<String> uids, final String index,
+                                            final WriteRequest.RefreshPolicy refreshPolicy) {
+        return removeDocuments(uids, index, refreshPolicy, ElasticSearchJsonDocument.NO_VERSION);
+    }
 
+    /**
+     * Remove the documents built before a version.
+     *
+     * The deletions use the external version type: a document whose version is not lower than the given one
+     * is kept, and reported as a version conflict.
+     *
+     * @param uids documents uid
+     * @param index index
+     * @param version the version of the deletion
+     * @return the bulk result
+     */
+    public final BulkResult removeDocuments(final Collection<String> uids, final String index, final long version) {
+        return removeDocuments(uids, index, WriteRequest.RefreshPolicy.NONE, version);
+    }
+
+    /**
+     * Remove documents from index.
+     *
+     * @param uids documents uid
+     * @param index index
+     * @param refreshPolicy when the deletions must be visible to searches
+     * @param version the version of the deletion, {@link ElasticSearchJsonDocument#NO_VERSION} to remove
+     *            any version
+     * @return the bulk result
+     */
+    private BulkResult removeDocuments(final Collection<String> uids, final String index,
+                                       final WriteRequest.RefreshPolicy refreshPolicy, final long version) {
+        final BulkResult result = new BulkResult();
+        if (uids.isEmpty()) {
+            return result;
+        }
+
+        QueryBuilder query = QueryBuilders.boolQuery().filter(QueryBuilders.termsQuery(ELASTIC_SEARCH_UID, uids));
+        if (writeSpool.isPending()) {
+            /* Keep the order with the spooled operations */
+            spoolDelete(index, query, uids, result);
+            return result;
+        }
+
+        BulkResultListener listener = new BulkResultListener(index, result, null);
+        BulkProcessor bulkProcessor = buildBulkProcessor(listener);
+        try {
             SearchResponse scrollResp = client
-                    .prepareSearch(index)
+                    .prepareSearch(withTypeIndices(index))
                     .setQuery(query)
-                    .execute().actionGet();
+                    .setFetchSource(false)
+                    .addSort(SCROLL_SORT, SortOrder.ASC)
+                    .setScroll(SCROLL_KEEP_ALIVE)
+                    .setSize(Math.min(uids.size(), bulkSettings.getBulkActions()))
+                    .get();
 
-            SearchHits hits = scrollResp.getHits();
+            LOGGER.debug("Prepare to delete: " + scrollResp.getHits().getTotalHits() + " entries from index");
 
-            final int entriesToDelete = hits.getHits().length;
+            while (scrollResp.getHits().getHits().length > 0) {
+                for (SearchHit hit : scrollResp.getHits()) {
+                    LOGGER.debug("Deleting entry with id : " + hit.getId());
+                    /* The alias may reach several indices, the document is deleted from its own shard */
+                    DeleteRequest deleteRequest = new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId());
+                    SearchHitField routing = hit.field(RoutingFieldMapper.NAME);
+                    if (routing != null) {
+                        deleteRequest.routing(routing.<String>getValue());
+                    }
+                    if (version != ElasticSearchJsonDocument.NO_VERSION) {
+                        deleteRequest.version(version).versionType(VersionType.EXTERNAL);
+                    }
+                    bulkProcessor.add(deleteRequest);
+                }
+                scrollResp = client.prepareSearchScroll(scrollResp.getScrollId())
+                        .setScroll(SCROLL_KEEP_ALIVE)
+                        .get();
+            }
 
-            LOGGER.debug("Prepare to delete: " + entriesToDelete + " entries from index");
+            client.prepareClearScroll().addScrollId(scrollResp.getScrollId()).get();
+        } catch (NoNodeAvailableException noNodeEx) {
+            LOGGER.error("No node available:" + noNodeEx.getDetailedMessage());
+            spoolDelete(index, query, uids, result);
+        } finally {
+            awaitClose(bulkProcessor, listener);
+        }
 
-            for (SearchHit hit : hits) {
-                LOGGER.debug("Deleting entry with id : " + hit.getId());
-                DeleteResponse deleteResponse = client.prepareDelete(
-                        index,
-                        hit.getType(),
-                        hit.getId())
-                        .get();
+        if (refreshPolicy != WriteRequest.RefreshPolicy.NONE && result.getSpooled() == 0) {
+            refreshIndex(index);
+        }
+        return result;
+    }
+
+    /**
+     * Delete every document matching a query, in background on the cluster.
+     *
+     * The deletion is split into slices processed in parallel. Its progress can be polled
+     * with {@link #getDeleteByQueryTask(String)}.
+     *
+     * @param index index
+     * @param query the query matching documents to delete
+     * @return the delete by query task
+     */
+    public final DeleteByQueryTask deleteByQuery(final String index, final QueryBuilder query) {
+        if (writeSpool.isPending()) {
+            /* Keep the order with the spooled operations */
+            return spoolDeleteByQuery(index, query);
+        }
+
+        DeleteByQueryRequestBuilder builder = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+                .source(withTypeIndices(index))
+                .filter(query)
+                .abortOnVersionConflict(false)
+                .setSlices(bulkSettings.getSlices());
+
+        /* Deleted documents are unknown */
+        fingerprintCache.clear();
+
+        final DeleteByQueryTask task = new DeleteByQueryTask(builder.request().getDescription());
+        deleteByQueryTasks.put(task.getId(), task);
+
+        LOGGER.info("Starting delete by query " + task.getId() + " on index " + index + ": " + query);
+
+        builder.execute(new ActionListener<BulkIndexByScrollResponse>() {
+            @Override
+            public void onResponse(final BulkIndexByScrollResponse response) {
+                List<String> failures = new ArrayList<>();
+                for (BulkItemResponse.Failure failure : response.getBulkFailures()) {
+                    failures.add("[" + failure.getType() + "][" + failure.getId() + "] " + failure.getMessage());
+                }
+                for (ScrollableHitSource.SearchFailure failure : response.getSearchFailures()) {
+                    failures.add(failure.getReason().getMessage());
+                }
+                task.complete(response.getDeleted(), response.getBatches(), failures);
+                LOGGER.info("Delete by query " + task.getId() + " done, deleted: " + response.getDeleted()
+                        + " ,failures: " + failures.size());
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                if (e instanceof NoNodeAvailableException && writeSpool.spoolDelete(index, query)) {
+                    task.complete(0L, 0, Collections.singletonList(SPOOLED_MESSAGE));
+                    LOGGER.warn("No node available, delete by query " + task.getId() + " spooled");
+                    return;
+                }
+                task.complete(task.getDeleted(), task.getBatches(), Collections.singletonList(e.getMessage()));
+                LOGGER.error("Delete by query " + task.getId() + " failed", e);
+            }
+        });
+
+        return task;
+    }
+
+    /**
+     * Spool a delete by query, to be run once a node is available.
+     *
+     * @param index index
+     * @param query the query matching documents to delete
+     * @return the delete by query task, already completed
+     */
+    private DeleteByQueryTask spoolDeleteByQuery(final String index, final QueryBuilder query) {
+        DeleteByQueryTask task = new DeleteByQueryTask("delete-by-query [" + index + "] " + query);
+        deleteByQueryTasks.put(task.getId(), task);
+        fingerprintCache.clear();
+
+        String message;
+        if (writeSpool.spoolDelete(index, query)) {
+            message = SPOOLED_MESSAGE;
+        } else {
+            message = "No node available and the write spool could not keep the deletion";
+        }
+        task.complete(0L, 0, Collections.singletonList(message));
+        return task;
+    }
 
-                if (deleteResponse.status() == RestStatus.FOUND) {
-                    LOGGER.debug("Document deleted successfully with id : " + hit.getId());
+    /**
+     * Spool the write of a document and report it into a {@link BulkResult}.
+     *
+     * @param request the index request
+     * @param result the result
+     */
+    private void spoolWrite(final IndexRequest request, final BulkResult result) {
+        if (writeSpool.spoolWrite(request)) {
+            result.addSpooled();
+        } else {
+            result.addFailure(request.id(), request.type(), "No node available");
+        }
+    }
+
+    /**
+     * Spool the deletion of documents and report it into a {@link BulkResult}.
+     *
+     * @param index the index name
+     * @param query the query matching the documents
+     * @param uids the documents uid
+     * @param result the result
+     */
+    private void spoolDelete(final String index, final QueryBuilder query, final Collection<String> uids,
+                             final BulkResult result) {
+        if (writeSpool.spoolDelete(index, query)) {
+            result.addSpooled();
+        } else {
+            for (String uid : uids) {
+                result.addFailure(uid, null, "No node available");
+            }
+        }
+    }
+
+    /**
+     * Get a delete by query task, with its progress updated from the cluster while it is running.
+     *
+     * @param id the task id
+     * @return the task, or null if it is unknown
+     */
+    public final DeleteByQueryTask getDeleteByQueryTask(final String id) {
+        DeleteByQueryTask task = deleteByQueryTasks.get(id);
+        if (task != null && !task.isDone()) {
+            updateProgress(task);
+        }
+        return task;
+    }
+
+    /**
+     * List the known delete by query tasks.
+     *
+     * @return the tasks, most recent last
+     */
+    public final List<DeleteByQueryTask> getDeleteByQueryTasks() {
+        List<DeleteByQueryTask> tasks;
+        synchronized (deleteByQueryTasks) {
+            tasks = new ArrayList<>(deleteByQueryTasks.values());
+        }
+        for (DeleteByQueryTask task : tasks) {
+            if (!task.isDone()) {
+                updateProgress(task);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Update the progress of a running delete by query from the cluster task API.
+     *
+     * @param task the task
+     */
+    private void updateProgress(final DeleteByQueryTask task) {
+        try {
+            if (task.getClusterTaskId() == null) {
+                matchClusterTasks(task.getDescription());
+            }
+            String clusterTaskId = task.getClusterTaskId();
+            if (clusterTaskId == null) {
+                return;
+            }
+
+            TaskInfo taskInfo = client.admin().cluster().prepareGetTask(clusterTaskId).get().getTask().getTask();
+            /* Slices are children of the main task, which reports their sum */
+            if (taskInfo.getStatus() instanceof BulkByScrollTask.Status) {
+                BulkByScrollTask.Status status = (BulkByScrollTask.Status) taskInfo.getStatus();
+                task.updateProgress(status.getTotal(), status.getDeleted(), status.getBatches());
+            }
+        } catch (ResourceNotFoundException e) {
+            /* The task is over on the cluster, its outcome is set once the response is received */
+            LOGGER.debug("Delete by query " + task.getId() + " is no longer running on the cluster");
+        } catch (ElasticsearchException e) {
+            LOGGER.warn("Unable to get delete by query progress: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Find the cluster task of the running delete by query tasks of a description.
+     *
+     * The transport client does not return the id of the task started by an asynchronous request, and the
+     * description of a delete by query only holds its indices. The running tasks of a description are matched
+     * with the running cluster tasks of this description, in start order, only when they are as many: the
+     * matching is left to a later poll when it would be ambiguous. Matched tasks are then read by id.
+     *
+     * @param description the delete by query description
+     */
+    private void matchClusterTasks(final String description) {
+        synchronized (clusterTaskMatchLock) {
+            List<DeleteByQueryTask> tasks;
+            synchronized (deleteByQueryTasks) {
+                tasks = new ArrayList<>(deleteByQueryTasks.values());
+            }
+
+            Set<String> matchedIds = new HashSet<>();
+            List<DeleteByQueryTask> unmatchedTasks = new ArrayList<>();
+            for (DeleteByQueryTask task : tasks) {
+                if (task.getClusterTaskId() != null) {
+                    matchedIds.add(task.getClusterTaskId());
+                } else if (!task.isDone() && description.equals(task.getDescription())) {
+                    unmatchedTasks.add(task);
+                }
+            }
+            if (unmatchedTasks.isEmpty()) {
+                return;
+            }
+
+            ListTasksResponse response = client.admin().cluster().prepareListTasks()
+                    .setActions(DeleteByQueryAction.NAME)
+                    .setDetailed(true)
+                    .get();
+            List<TaskInfo> clusterTasks = new ArrayList<>();
+            for (TaskInfo taskInfo : response.getTasks()) {
+                if (!taskInfo.getParentTaskId().isSet()
+                        && description.equals(taskInfo.getDescription())
+                        && !matchedIds.contains(taskInfo.getTaskId().toString())) {
+                    clusterTasks.add(taskInfo);
+                }
+            }
+            if (clusterTasks.size() != unmatchedTasks.size()) {
+                LOGGER.debug("Unable to match " + unmatchedTasks.size() + " delete by query tasks with "
+                        + clusterTasks.size() + " cluster tasks for " + description);
+                return;
+            }
+
+            Collections.sort(clusterTasks, new Comparator<TaskInfo>() {
+                @Override
+                public int compare(final TaskInfo first, final TaskInfo second) {
+                    return Long.compare(first.getStartTime(), second.getStartTime());
+                }
+            });
+            for (int i = 0; i < clusterTasks.size(); i++) {
+                unmatchedTasks.get(i).setClusterTaskId(clusterTasks.get(i).getTaskId().toString());
+            }
+        }
+    }
+
+    /**
+     * Build a bulk processor paced by the {@link BulkFlowController}: rejected items are retried with
+     * an exponential backoff.
+     *
+     * @param listener the listener reporting each item outcome
+     * @return the bulk processor
+     */
+    private BulkProcessor buildBulkProcessor(final BulkResultListener listener) {
+        return BulkProcessor.builder(client, listener)
+                .setBulkActions(bulkFlowController.getBulkActions())
+                .setBulkSize(new ByteSizeValue(bulkSettings.getBulkSize()))
+                .setConcurrentRequests(bulkFlowController.getConcurrentRequests())
+                .setBackoffPolicy(bulkFlowController.getBackoffPolicy())
+                .build();
+    }
+
+    /**
+     * Flush a bulk processor and wait for its pending requests.
+     *
+     * The items of the requests still unacknowledged when the wait ends are reported as failures: their
+     * outcome is unknown, so the caller must not consider them written.
+     *
+     * @param bulkProcessor the bulk processor
+     * @param listener the listener of the bulk processor
+     */
+    private void awaitClose(final BulkProcessor bulkProcessor, final BulkResultListener listener) {
+        try {
+            if (!bulkProcessor.awaitClose(bulkSettings.getTimeout(), TimeUnit.SECONDS)) {
+                LOGGER.error("Timed out while waiting for bulk requests to complete");
+                listener.failUnacknowledged("Timed out while waiting for the bulk request to complete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted while waiting for bulk requests to complete");
+            listener.failUnacknowledged("Interrupted while waiting for the bulk request to complete");
+        }
+    }
+
+    /**
+     * Bulk listener reporting each item outcome into a {@link BulkResult} and keeping the fingerprint cache up to date.
+     */
+    private class BulkResultListener implements BulkProcessor.Listener {
+
+        /** The index name. */
+        private final String index;
+
+        /** The result. */
+        private final BulkResult result;
+
+        /** The indexed documents by id, null for deletions. */
+        private final Map<String, ElasticSearchJsonDocument> sentDocuments;
+
+        /** The start time of the running bulk requests, by execution id. */
+        private final Map<Long, Long> startTimes = new ConcurrentHashMap<>();
+
+        /** The running bulk requests not acknowledged yet, by execution id. */
+        private final Map<Long, BulkRequest> unacknowledged = new ConcurrentHashMap<>();
+
+        /**
+         * Instantiates a new bulk result listener.
+         *
+         * @param index the index name
+         * @param result the result to fill
+         * @param sentDocuments the indexed documents by id, null for deletions
+         */
+        BulkResultListener(final String index, final BulkResult result,
+                           final Map<String, ElasticSearchJsonDocument> sentDocuments) {
+            this.index = index;
+            this.result = result;
+            this.sentDocuments = sentDocuments;
+        }
+
+        @Override
+        public void beforeBulk(final long executionId, final BulkRequest request) {
+            LOGGER.debug("Sending bulk request #" + executionId + " with " + request.numberOfActions() + " actions");
+            startTimes.put(executionId, System.currentTimeMillis());
+            unacknowledged.put(executionId, request);
+        }
+
+        /**
+         * Report the items of the running bulk requests as failures, and ignore their responses from now on.
+         *
+         * @param message the failure message
+         */
+        void failUnacknowledged(final String message) {
+            for (Long executionId : new ArrayList<>(unacknowledged.keySet())) {
+                BulkRequest request = unacknowledged.remove(executionId);
+                if (request == null) {
+                    continue;
+                }
+                for (ActionRequest itemRequest : request.requests()) {
+                    DocumentRequest<?> documentRequest = (DocumentRequest<?>) itemRequest;
+                    fingerprintCache.remove(index, documentRequest.id());
+                    result.addFailure(documentRequest.id(), documentRequest.type(), message);
+                }
+            }
+        }
+
+        /**
+         * Mark a bulk request as acknowledged.
+         *
+         * @param executionId the execution id
+         * @param request the bulk request
+         * @return false if its items were already reported as failures
+         */
+        private boolean acknowledge(final long executionId, final BulkRequest request) {
+            if (unacknowledged.remove(executionId) != null) {
+                return true;
+            }
+            /* The outcome reported late is unknown to the caller: forget the fingerprints to write them again */
+            LOGGER.warn("Bulk request #" + executionId + " completed after its items were reported as failed");
+            for (ActionRequest itemRequest : request.requests()) {
+                fingerprintCache.remove(index, ((DocumentRequest<?>) itemRequest).id());
+            }
+            return false;
+        }
+
+        @Override
+        public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+            Long startTime = startTimes.remove(executionId);
+            if (startTime != null) {
+                bulkFlowController.onBulkCompleted(request.numberOfActions(), System.currentTimeMillis() - startTime);
+            }
+            if (!acknowledge(executionId, request)) {
+                return;
+            }
+
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed() && item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                    /* A version built later is already indexed */
+                    fingerprintCache.remove(index, item.getId());
+                    indexMetrics.incrementVersionConflicts();
+                    LOGGER.info("Document " + item.getId() + " not changed, a version built later is already indexed");
+                    result.addVersionConflict();
+                } else if (item.isFailed()) {
+                    fingerprintCache.remove(index, item.getId());
+                    result.addFailure(item.getId(), item.getType(), item.getFailureMessage());
                 } else {
-                    LOGGER.debug("Document with id : " + hit.getId() + "is not found");
+                    ElasticSearchJsonDocument esDocument = null;
+                    if (sentDocuments != null) {
+                        esDocument = sentDocuments.remove(item.getId());
+                    }
+                    if (esDocument != null) {
+                        fingerprintCache.put(index, esDocument);
+                    } else {
+                        fingerprintCache.remove(index, item.getId());
+                    }
+                    result.addSuccess();
                 }
             }
-        } catch (NoNodeAvailableException noNodeEx) {
-            LOGGER.error("No node available:" + noNodeEx.getDetailedMessage());
+        }
+
+        @Override
+        public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+            startTimes.remove(executionId);
+            if (!acknowledge(executionId, request)) {
+                return;
+            }
+            boolean noNode = failure instanceof NoNodeAvailableException;
+            if (noNode) {
+                LOGGER.error("No node available:" + ((NoNodeAvailableException) failure).getDetailedMessage());
+            }
+            for (ActionRequest itemRequest : request.requests()) {
+                DocumentRequest<?> documentRequest = (DocumentRequest<?>) itemRequest;
+                fingerprintCache.remove(index, documentRequest.id());
+                if (noNode && spool(documentRequest)) {
+                    result.addSpooled();
+                } else {
+                    result.addFailure(documentRequest.id(), documentRequest.type(), failure.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Spool a request which could not be sent.
+         *
+         * @param documentRequest the index or delete request
+         * @return true if the request is spooled
+         */
+        private boolean spool(final DocumentRequest<?> documentRequest) {
+            if (documentRequest instanceof IndexRequest) {
+                return writeSpool.spoolWrite((IndexRequest) documentRequest);
+            }
+            return writeSpool.spoolDelete(index, QueryBuilders.idsQuery(documentRequest.type())
+                    .addIds(documentRequest.id()));
         }
     }
 }
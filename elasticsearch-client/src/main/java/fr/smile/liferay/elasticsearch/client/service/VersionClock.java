@@ -0,0 +1,205 @@
+package fr.smile.liferay.elasticsearch.client.service;
+
+import com.liferay.portal.kernel.dao.db.DB;
+import com.liferay.portal.kernel.dao.db.DBFactoryUtil;
+import com.liferay.portal.kernel.dao.jdbc.DataAccess;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives the external versions of the operations sent to the index.
+ *
+ * Versions are times in microseconds, read from the clock of the portal database rather than from the clock of
+ * each node: the database is the single clock shared by every node of the cluster, so an operation built later
+ * on any node gets a greater version, whatever the order in which the operations reach the index. The database
+ * clock is read periodically, and followed in between with the monotonic clock of the node: a version is off by
+ * at most half the round trip of the last read, plus the drift of the node clock since then. Versions given by a
+ * node strictly increase. If the database clock can't be read, the clock of the node is used until the next read,
+ * and the clocks of the nodes must then be kept synchronized.
+ */
+@Service
+public class VersionClock {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(VersionClock.class);
+
+    /**
+     * Number of versions available per millisecond.
+     */
+    private static final long VERSIONS_PER_MILLISECOND = 1000L;
+
+    /**
+     * Default interval between two reads of the database clock, in milliseconds.
+     */
+    private static final long DEFAULT_SYNC_INTERVAL = 60000L;
+
+    /**
+     * Offset between the database and node clocks above which a time zone mismatch is suspected, in milliseconds.
+     */
+    private static final long MAX_EXPECTED_OFFSET = TimeUnit.MINUTES.toMillis(5);
+
+    /** Query reading the database clock, for the databases without a specific one. */
+    private static final String DEFAULT_TIME_QUERY = "SELECT CURRENT_TIMESTAMP";
+
+    /** Interval between two reads of the database clock, in nanoseconds. */
+    private long syncInterval;
+
+    /** The last reading of a clock. */
+    private volatile Anchor anchor;
+
+    /** The last version given. */
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    /**
+     * Init method.
+     */
+    @PostConstruct
+    public final void init() {
+        syncInterval = TimeUnit.MILLISECONDS.toNanos(GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_VERSION_CLOCK_SYNC_INTERVAL), DEFAULT_SYNC_INTERVAL
+        ));
+    }
+
+    /**
+     * Get a version greater than every version given before.
+     *
+     * @return the version
+     */
+    public final long next() {
+        long now = currentTimeMicros();
+        while (true) {
+            long last = lastVersion.get();
+            long next = Math.max(now, last + 1);
+            if (lastVersion.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Get the current time of the database clock, followed since its last reading.
+     *
+     * @return the time in microseconds
+     */
+    private long currentTimeMicros() {
+        long nanos = System.nanoTime();
+        Anchor current = anchor;
+        if (current == null || nanos - current.nanos > syncInterval) {
+            current = sync();
+            nanos = System.nanoTime();
+        }
+        return current.time * VERSIONS_PER_MILLISECOND + TimeUnit.NANOSECONDS.toMicros(nanos - current.nanos);
+    }
+
+    /**
+     * Read the database clock again, unless another thread just did.
+     *
+     * @return the reading
+     */
+    private synchronized Anchor sync() {
+        Anchor current = anchor;
+        if (current != null && System.nanoTime() - current.nanos <= syncInterval) {
+            return current;
+        }
+
+        try {
+            current = readDatabaseTime();
+            long offset = current.time - System.currentTimeMillis();
+            if (Math.abs(offset) > MAX_EXPECTED_OFFSET) {
+                LOGGER.warn("The database clock is " + offset + "ms away from the clock of this node, check that "
+                        + "the time zones of the database and of every node match");
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.warn("Unable to read the database clock, versions are taken from the clock of this node: "
+                    + e.getMessage());
+            current = new Anchor(System.currentTimeMillis(), System.nanoTime());
+        }
+        anchor = current;
+        return current;
+    }
+
+    /**
+     * Read the database clock, at the middle of the round trip.
+     *
+     * @return the reading
+     * @throws SQLException if the query fails
+     */
+    private static Anchor readDatabaseTime() throws SQLException {
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = DataAccess.getConnection();
+            statement = connection.createStatement();
+            long start = System.nanoTime();
+            resultSet = statement.executeQuery(getTimeQuery(DBFactoryUtil.getDB().getType()));
+            if (!resultSet.next()) {
+                throw new SQLException("No time returned by the database");
+            }
+            Timestamp time = resultSet.getTimestamp(1);
+            long end = System.nanoTime();
+            return new Anchor(time.getTime(), start + (end - start) / 2);
+        } finally {
+            DataAccess.cleanUp(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * Get the query reading the clock of a database, with millisecond precision where available.
+     *
+     * @param type the database type
+     * @return the query
+     */
+    private static String getTimeQuery(final String type) {
+        if (DB.TYPE_MYSQL.equals(type)) {
+            return "SELECT CURRENT_TIMESTAMP(3)";
+        } else if (DB.TYPE_POSTGRESQL.equals(type)) {
+            return "SELECT CLOCK_TIMESTAMP()";
+        } else if (DB.TYPE_ORACLE.equals(type)) {
+            return "SELECT SYSTIMESTAMP FROM DUAL";
+        } else if (DB.TYPE_DB2.equals(type)) {
+            return "SELECT CURRENT TIMESTAMP FROM SYSIBM.SYSDUMMY1";
+        } else if (DB.TYPE_DERBY.equals(type) || DB.TYPE_HYPERSONIC.equals(type)) {
+            return "VALUES CURRENT_TIMESTAMP";
+        } else if (DB.TYPE_SYBASE.equals(type)) {
+            return "SELECT GETDATE()";
+        }
+        return DEFAULT_TIME_QUERY;
+    }
+
+    /**
+     * A reading of a clock: its time, and the monotonic clock of the node when it was read.
+     */
+    private static final class Anchor {
+
+        /** The time read, in milliseconds. */
+        private final long time;
+
+        /** The monotonic clock of the node when the time was read, in nanoseconds. */
+        private final long nanos;
+
+        /**
+         * Instantiates a new anchor.
+         *
+         * @param time the time read, in milliseconds
+         * @param nanos the monotonic clock of the node, in nanoseconds
+         */
+        Anchor(final long time, final long nanos) {
+            this.time = time;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package fr.smile.liferay.elasticsearch.client.service;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import fr.smile.liferay.elasticsearch.client.SpoolSettings;
+import fr.smile.liferay.elasticsearch.client.model.SpooledOperation;
+import fr.smile.liferay.elasticsearch.client.spool.WriteJournal;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps on disk the operations which could not be sent because no node was available, and replays them
+ * with bulk requests once the client is connected again.
+ *
+ * While operations are spooled, new operations are spooled too, so they are replayed in order.
+ * Operations are lost only when the spool reaches its maximum size.
+ */
+@Service
+@ManagedResource(objectName = "fr.smile.liferay.elasticsearch:type=WriteSpool")
+public class WriteSpool {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(WriteSpool.class);
+
+    /**
+     * Replay thread name.
+     */
+    private static final String REPLAY_THREAD_NAME = "elasticsearch-spool-replay";
+
+    /** The client. */
+    @Autowired
+    private Client client;
+
+    /** The spool settings. */
+    @Autowired
+    private SpoolSettings spoolSettings;
+
+    /** The bulk settings. */
+    @Autowired
+    private BulkSettings bulkSettings;
+
+    /** The fingerprint cache. */
+    @Autowired
+    private FingerprintCache fingerprintCache;
+
+    /** The index metrics. */
+    @Autowired
+    private IndexMetrics indexMetrics;
+
+    /** The journal, null if the spool is disabled. */
+    private WriteJournal journal;
+
+    /** The replay thread. */
+    private Thread replayThread;
+
+    /** Are operations waiting to be replayed. */
+    private volatile boolean pending;
+
+    /** Is the spool running. */
+    private volatile boolean running;
+
+    /**
+     * Open the journal and start the replay thread if the spool is enabled.
+     */
+    @PostConstruct
+    public final void start() {
+        if (!spoolSettings.isEnabled()) {
+            LOGGER.debug("Write spool is disabled");
+            return;
+        }
+
+        try {
+            journal = new WriteJournal(
+                    spoolSettings.getDirectory(), spoolSettings.getSegmentSize(), spoolSettings.getMaxSize()
+            );
+        } catch (IOException e) {
+            LOGGER.error("Unable to open write spool in " + spoolSettings.getDirectory()
+                    + ", operations will be lost while no node is available", e);
+            return;
+        }
+
+        pending = !journal.isEmpty();
+        running = true;
+
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, REPLAY_THREAD_NAME);
+        replayThread.setDaemon(true);
+        replayThread.start();
+
+        LOGGER.info("Write spool enabled in " + spoolSettings.getDirectory() + ", "
+                + journal.getSegmentCount() + " segments to replay");
+    }
+
+    /**
+     * Stop the replay thread. Spooled operations stay on disk until the next start.
+     */
+    @PreDestroy
+    public final void stop() {
+        if (replayThread == null) {
+            return;
+        }
+
+        running = false;
+        replayThread.interrupt();
+        try {
+            replayThread.join(TimeUnit.SECONDS.toMillis(bulkSettings.getTimeout()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks if operations are waiting to be replayed. New operations must then be spooled, to keep them in order.
+     *
+     * @return true, if pending
+     */
+    @ManagedAttribute(description = "Operations are waiting to be replayed")
+    public final boolean isPending() {
+        return pending;
+    }
+
+    /**
+     * Get size of the spool on disk.
+     *
+     * @return size in bytes
+     */
+    @ManagedAttribute(description = "Size of the spool on disk, in bytes")
+    public final long getSize() {
+        if (journal == null) {
+            return 0L;
+        }
+        return journal.getSize();
+    }
+
+    /**
+     * Get number of spool segments.
+     *
+     * @return number of segments
+     */
+    @ManagedAttribute(description = "Number of spool segments")
+    public final int getSegmentCount() {
+        if (journal == null) {
+            return 0;
+        }
+        return journal.getSegmentCount();
+    }
+
+    /**
+     * Spool the write of a document.
+     *
+     * @param request the index request
+     * @return true if the operation is spooled, false if it is lost
+     */
+    public final boolean spoolWrite(final IndexRequest request) {
+        return spool(SpooledOperation.write(request));
+    }
+
+    /**
+     * Spool the deletion of every document matching a query.
+     *
+     * @param index the index name
+     * @param query the query
+     * @return true if the operation is spooled, false if it is lost
+     */
+    public final boolean spoolDelete(final String index, final QueryBuilder query) {
+        return spool(SpooledOperation.delete(index, query.toString()));
+    }
+
+    /**
+     * Append an operation to the journal.
+     *
+     * @param operation the operation
+     * @return true if the operation is spooled, false if it is lost
+     */
+    private boolean spool(final SpooledOperation operation) {
+        if (journal == null) {
+            indexMetrics.incrementDroppedOperations();
+            return false;
+        }
+
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            operation.writeTo(out);
+            byte[] payload = BytesReference.toBytes(out.bytes());
+
+            boolean appended;
+            synchronized (this) {
+                appended = journal.append(payload);
+                if (appended) {
+                    pending = true;
+                }
+            }
+
+            if (appended) {
+                indexMetrics.incrementSpooledOperations();
+            } else {
+                indexMetrics.incrementDroppedOperations();
+                LOGGER.error("Write spool is full (" + spoolSettings.getMaxSize() + " bytes), operation on index "
+                        + operation.getIndex() + " is lost");
+            }
+            return appended;
+        } catch (IOException e) {
+            indexMetrics.incrementDroppedOperations();
+            LOGGER.error("Unable to spool operation on index " + operation.getIndex(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Replay loop: wait for the replay interval, then replay the spool if a node is available.
+     */
+    private void work() {
+        while (running) {
+            try {
+                Thread.sleep(spoolSettings.getReplayInterval());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (pending && isConnected()) {
+                try {
+                    replay();
+                } catch (NoNodeAvailableException e) {
+                    LOGGER.info("Spool replay interrupted, no node available");
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Error while replaying the write spool", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the client is connected to at least one node.
+     *
+     * @return true, if connected
+     */
+    private boolean isConnected() {
+        return !(client instanceof TransportClient) || !((TransportClient) client).connectedNodes().isEmpty();
+    }
+
+    /**
+     * Replay the spooled segments, oldest first, until the spool is empty.
+     *
+     * @throws IOException if a segment can't be read
+     */
+    private void replay() throws IOException {
+        LOGGER.info("Replaying write spool, " + journal.getSegmentCount() + " segments");
+        while (running) {
+            File segment;
+            synchronized (this) {
+                segment = journal.next();
+                if (segment == null) {
+                    pending = false;
+                    LOGGER.info("Write spool replayed");
+                    return;
+                }
+            }
+
+            replaySegment(segment);
+            journal.delete(segment);
+        }
+    }
+
+    /**
+     * Replay the operations of a segment. Consecutive writes are sent with bulk requests.
+     *
+     * @param segment the segment
+     * @throws IOException if the segment can't be read
+     */
+    private void replaySegment(final File segment) throws IOException {
+        List<byte[]> records = journal.read(segment);
+        LOGGER.debug("Replaying " + records.size() + " operations from " + segment);
+
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (byte[] record : records) {
+            SpooledOperation operation = SpooledOperation.readFrom(new BytesArray(record).streamInput());
+            if (operation.getType() == SpooledOperation.Type.WRITE) {
+                bulk.add(operation.toIndexRequest());
+                if (bulk.numberOfActions() >= bulkSettings.getBulkActions()) {
+                    sendBulk(bulk);
+                    bulk = client.prepareBulk();
+                }
+            } else {
+                if (bulk.numberOfActions() > 0) {
+                    sendBulk(bulk);
+                    bulk = client.prepareBulk();
+                }
+                deleteByQuery(operation);
+            }
+        }
+        if (bulk.numberOfActions() > 0) {
+            sendBulk(bulk);
+        }
+    }
+
+    /**
+     * Send replayed writes. Documents built before the indexed ones are rejected by their version and ignored.
+     *
+     * @param bulk the bulk request
+     */
+    private void sendBulk(final BulkRequestBuilder bulk) {
+        BulkResponse response = bulk.get();
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed() && item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                indexMetrics.incrementVersionConflicts();
+            } else if (item.isFailed()) {
+                LOGGER.error("Failed to replay spooled write [" + item.getType() + "][" + item.getId() + "] "
+                        + item.getFailureMessage());
+            }
+        }
+        indexMetrics.addReplayedOperations(response.getItems().length);
+    }
+
+    /**
+     * Replay a spooled deletion. The index is refreshed first, so the documents written before are deleted too.
+     *
+     * @param operation the operation
+     */
+    private void deleteByQuery(final SpooledOperation operation) {
+        try {
+            client.admin().indices().prepareRefresh(operation.getIndex()).get();
+            DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+                    .source(operation.getIndex())
+                    .filter(QueryBuilders.wrapperQuery(operation.getQuery()))
+                    .abortOnVersionConflict(false)
+                    .setSlices(bulkSettings.getSlices())
+                    .get();
+            fingerprintCache.clear();
+        } catch (NoNodeAvailableException e) {
+            throw e;
+        } catch (ElasticsearchException e) {
+            LOGGER.error("Failed to replay spooled deletion on index " + operation.getIndex(), e);
+        }
+        indexMetrics.addReplayedOperations(1);
+    }
+}
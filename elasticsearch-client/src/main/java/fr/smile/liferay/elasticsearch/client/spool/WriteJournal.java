@@ -0,0 +1,355 @@
+package fr.smile.liferay.elasticsearch.client.spool;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of records, stored in memory-mapped segment files.
+ *
+ * Records are appended to the active segment, which is sealed when it is full or when it is
+ * taken to be read. Sealed segments are read oldest first and deleted once they are processed.
+ * Each record is written as its length, a CRC32 checksum and its payload: a zero length marks
+ * the end of a segment, and a record whose checksum doesn't match ends the segment, since it
+ * has been torn by a crash.
+ *
+ * Segments found in the directory when the journal is opened are sealed, so records written
+ * before a restart are read first. A processed segment which can't be deleted, for instance while it is
+ * still mapped on Windows, is marked done by an empty marker file, so it is not read again after a restart.
+ */
+public class WriteJournal {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(WriteJournal.class);
+
+    /**
+     * Segment file name prefix.
+     */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * Segment file name suffix.
+     */
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    /**
+     * Suffix of the marker file of a processed segment which could not be deleted.
+     */
+    private static final String DONE_SUFFIX = ".done";
+
+    /**
+     * Record header size: length and checksum.
+     */
+    private static final int HEADER_SIZE = 4 + 8;
+
+    /** The segments directory. */
+    private final File directory;
+
+    /** The default segment size, in bytes. */
+    private final int segmentSize;
+
+    /** The maximum size of the journal, in bytes. */
+    private final long maxSize;
+
+    /** The sealed segments, oldest first. */
+    private final Deque<File> sealed = new ArrayDeque<>();
+
+    /** The active segment file, null if no record has been appended since the last seal. */
+    private File activeFile;
+
+    /** The active segment buffer. */
+    private MappedByteBuffer active;
+
+    /** Sequence of the next segment. */
+    private long nextSequence;
+
+    /** The size of the segment files, in bytes. */
+    private long size;
+
+    /**
+     * Open a journal, recovering the segments left in its directory.
+     *
+     * @param directory the segments directory
+     * @param segmentSize the default segment size, in bytes
+     * @param maxSize the maximum size of the journal, in bytes
+     * @throws IOException if the directory can't be used
+     */
+    public WriteJournal(final File directory, final int segmentSize, final long maxSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX)
+                        && (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(SEGMENT_SUFFIX + DONE_SUFFIX));
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list journal directory " + directory);
+        }
+
+        /* Sequences are zero padded, so names sort in creation order */
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(DONE_SUFFIX)) {
+                deleteDoneSegment(file);
+                continue;
+            }
+            nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+            if (getDoneMarker(file).exists()) {
+                continue;
+            }
+            sealed.add(file);
+            size += file.length();
+        }
+    }
+
+    /**
+     * Append a record to the active segment.
+     *
+     * @param payload the record payload
+     * @return false if the record doesn't fit in the journal maximum size
+     * @throws IOException if the record can't be written
+     */
+    public final synchronized boolean append(final byte[] payload) throws IOException {
+        int recordSize = HEADER_SIZE + payload.length;
+        /* Room is kept for the end marker */
+        if (active == null || active.remaining() < recordSize + 4) {
+            seal();
+            int newSegmentSize = Math.max(segmentSize, recordSize + 4);
+            if (size + newSegmentSize > maxSize) {
+                return false;
+            }
+            openSegment(newSegmentSize);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload, 0, payload.length);
+
+        active.putInt(payload.length);
+        active.putLong(checksum.getValue());
+        active.put(payload);
+        active.force();
+        return true;
+    }
+
+    /**
+     * Take the oldest segment to read. If every segment has been read, the active one is sealed and taken.
+     *
+     * @return the segment, null if the journal is empty
+     */
+    public final synchronized File next() {
+        if (sealed.isEmpty()) {
+            seal();
+        }
+        return sealed.peek();
+    }
+
+    /**
+     * Read the records of a segment.
+     *
+     * @param segment the segment taken with {@link #next()}
+     * @return the records payload
+     * @throws IOException if the segment can't be read
+     */
+    public final List<byte[]> read(final File segment) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        /* Read into the heap rather than mapped, so the segment can be deleted at once */
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            buffer = ByteBuffer.allocate((int) file.length());
+            file.readFully(buffer.array());
+        }
+
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            long expected = buffer.getLong();
+            if (length <= 0) {
+                break;
+            }
+            if (length > buffer.remaining()) {
+                LOGGER.warn("Truncated record in journal segment " + segment + ", skipping the end of the segment");
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 checksum = new CRC32();
+            checksum.update(payload, 0, length);
+            if (checksum.getValue() != expected) {
+                LOGGER.warn("Corrupted record in journal segment " + segment + ", skipping the end of the segment");
+                break;
+            }
+            records.add(payload);
+        }
+        return records;
+    }
+
+    /**
+     * Delete a segment whose records have been processed. If it can't be deleted, it is marked done.
+     *
+     * @param segment the segment taken with {@link #next()}
+     */
+    public final synchronized void delete(final File segment) {
+        if (sealed.remove(segment)) {
+            size -= segment.length();
+            if (segment.delete()) {
+                return;
+            }
+            try {
+                if (!getDoneMarker(segment).createNewFile() && !getDoneMarker(segment).exists()) {
+                    throw new IOException("marker not created");
+                }
+                LOGGER.warn("Unable to delete journal segment " + segment + ", marked done");
+            } catch (IOException e) {
+                LOGGER.error("Unable to delete journal segment " + segment
+                        + " or to mark it done, its records will be replayed after a restart: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Checks if the journal holds no record.
+     *
+     * @return true, if empty
+     */
+    public final synchronized boolean isEmpty() {
+        return sealed.isEmpty() && (active == null || active.position() == 0);
+    }
+
+    /**
+     * Get size of the segment files.
+     *
+     * @return size in bytes
+     */
+    public final synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Get number of segment files.
+     *
+     * @return number of segments
+     */
+    public final synchronized int getSegmentCount() {
+        return sealed.size() + (activeFile != null ? 1 : 0);
+    }
+
+    /**
+     * Seal the active segment, if any. An empty active segment is deleted.
+     */
+    private void seal() {
+        if (active == null) {
+            return;
+        }
+        if (active.position() == 0) {
+            unmap(active);
+            size -= activeFile.length();
+            if (!activeFile.delete()) {
+                LOGGER.warn("Unable to delete journal segment " + activeFile);
+            }
+        } else {
+            active.force();
+            unmap(active);
+            sealed.add(activeFile);
+        }
+        active = null;
+        activeFile = null;
+    }
+
+    /**
+     * Create and map a new active segment.
+     *
+     * @param newSegmentSize the segment size
+     * @throws IOException if the segment can't be created
+     */
+    private void openSegment(final int newSegmentSize) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        try (RandomAccessFile segment = new RandomAccessFile(file, "rw")) {
+            segment.setLength(newSegmentSize);
+            active = segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newSegmentSize);
+        }
+        activeFile = file;
+        size += newSegmentSize;
+    }
+
+    /**
+     * Get the marker file of a processed segment.
+     *
+     * @param segment the segment
+     * @return the marker file
+     */
+    private static File getDoneMarker(final File segment) {
+        return new File(segment.getParentFile(), segment.getName() + DONE_SUFFIX);
+    }
+
+    /**
+     * Delete a segment marked done and its marker, left by a previous run.
+     *
+     * @param marker the marker file
+     */
+    private static void deleteDoneSegment(final File marker) {
+        String name = marker.getName();
+        File segment = new File(marker.getParentFile(), name.substring(0, name.length() - DONE_SUFFIX.length()));
+        if ((!segment.exists() || segment.delete()) && !marker.delete()) {
+            LOGGER.warn("Unable to delete journal segment marker " + marker);
+        }
+    }
+
+    /**
+     * Release the mapping of a segment, so its file can be deleted on the platforms locking mapped files.
+     * The buffer must not be used afterwards. If the mapping can't be released, it is released once the
+     * buffer is garbage collected.
+     *
+     * @param buffer the mapped buffer
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Unable to release a journal segment mapping: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the sequence of a segment from its file name.
+     *
+     * @param segment the segment
+     * @return the sequence
+     */
+    private static long sequenceOf(final File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package fr.smile.liferay.elasticsearch.client.service;
+
+import com.liferay.portal.kernel.util.Props;
+import com.liferay.portal.kernel.util.PropsUtil;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import fr.smile.liferay.elasticsearch.client.TypeIndexSettings;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the deletions of {@link IndexService}, against an in memory client.
+ */
+public class IndexServiceTest {
+
+    /** The index name. */
+    private static final String INDEX = "liferay-20116";
+
+    /** A Liferay uid: portlet id and primary key, upper case. */
+    private static final String LIFERAY_UID = "com_liferay_portlet_journal_model_JournalArticle_PORTLET_10195";
+
+    /** The fields mapped as keyword in the _default_ mapping, matched exactly. */
+    private static final Set<String> KEYWORD_FIELDS = Collections.singleton(IndexService.ELASTIC_SEARCH_UID);
+
+    /** The thread pool of the client. */
+    private ThreadPool threadPool;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The tested service. */
+    private IndexService indexService;
+
+    /**
+     * Build the service with default settings.
+     *
+     * @throws Exception if a dependency can't be injected
+     */
+    @Before
+    public final void setUp() throws Exception {
+        new PropsUtil().setProps(emptyProps());
+        threadPool = new ThreadPool(Settings.builder().put("node.name", getClass().getSimpleName()).build());
+        client = new InMemoryClient(threadPool);
+
+        BulkSettings bulkSettings = new BulkSettings();
+        FingerprintCache fingerprintCache = new FingerprintCache();
+        inject(fingerprintCache, "bulkSettings", bulkSettings);
+        fingerprintCache.init();
+        BulkFlowController bulkFlowController = new BulkFlowController();
+        inject(bulkFlowController, "bulkSettings", bulkSettings);
+        bulkFlowController.init();
+
+        indexService = new IndexService();
+        inject(indexService, "client", client);
+        inject(indexService, "bulkSettings", bulkSettings);
+        inject(indexService, "fingerprintCache", fingerprintCache);
+        inject(indexService, "indexMetrics", new IndexMetrics());
+        inject(indexService, "bulkFlowController", bulkFlowController);
+        inject(indexService, "writeSpool", new WriteSpool());
+        inject(indexService, "typeIndexSettings", new TypeIndexSettings());
+    }
+
+    /**
+     * Stop the thread pool.
+     */
+    @After
+    public final void tearDown() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A document is deleted by its Liferay uid, kept in upper case.
+     */
+    @Test
+    public final void removeDocumentDeletesLiferayUid() {
+        client.index("LiferayDocumentType", "10195", LIFERAY_UID, "20182");
+        client.index("LiferayDocumentType", "10196", LIFERAY_UID + "0", "20182");
+
+        BulkResult result = indexService.removeDocument(LIFERAY_UID, INDEX);
+
+        assertEquals(1, result.getSucceeded());
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(1, client.deleteRequests.size());
+        DeleteRequest deleteRequest = client.deleteRequests.get(0);
+        assertEquals(INDEX, deleteRequest.index());
+        assertEquals("LiferayDocumentType", deleteRequest.type());
+        assertEquals("10195", deleteRequest.id());
+        assertEquals("20182", deleteRequest.routing());
+        assertEquals(Collections.singleton(LIFERAY_UID + "0"), client.uids());
+    }
+
+    /**
+     * A versioned deletion is sent with the external version type.
+     */
+    @Test
+    public final void removeDocumentsWithVersion() {
+        client.index("LiferayDocumentType", "10195", LIFERAY_UID, null);
+
+        BulkResult result = indexService.removeDocuments(Collections.singletonList(LIFERAY_UID), INDEX, 42L);
+
+        assertEquals(1, result.getSucceeded());
+        DeleteRequest deleteRequest = client.deleteRequests.get(0);
+        assertEquals(42L, deleteRequest.version());
+        assertEquals(VersionType.EXTERNAL, deleteRequest.versionType());
+        assertTrue(client.uids().isEmpty());
+    }
+
+    /**
+     * Build properties without any value, every setting takes its default.
+     *
+     * @return the properties
+     */
+    private static Props emptyProps() {
+        return (Props) Proxy.newProxyInstance(Props.class.getClassLoader(), new Class<?>[] {Props.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if (method.getReturnType() == Properties.class) {
+                            return new Properties();
+                        }
+                        if (method.getReturnType() == String[].class) {
+                            return new String[0];
+                        }
+                        if (method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Set a private field, as Spring does.
+     *
+     * @param target the bean
+     * @param name the field name
+     * @param value the value
+     * @throws Exception if the field can't be set
+     */
+    private static void inject(final Object target, final String name, final Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Client holding the documents of a single index in memory. Term queries match keyword fields exactly, and
+     * text fields on their lower case terms.
+     */
+    private static final class InMemoryClient extends AbstractClient {
+
+        /** The documents, by id. */
+        private final Map<String, Map<String, String>> documents = new LinkedHashMap<>();
+
+        /** The deletions received. */
+        private final List<DeleteRequest> deleteRequests = new ArrayList<>();
+
+        /**
+         * Instantiates a new in memory client.
+         *
+         * @param threadPool the thread pool
+         */
+        InMemoryClient(final ThreadPool threadPool) {
+            super(Settings.EMPTY, threadPool);
+        }
+
+        /**
+         * Add a document.
+         *
+         * @param type the document type
+         * @param id the document id
+         * @param uid the Liferay uid
+         * @param routing the routing, null for none
+         */
+        void index(final String type, final String id, final String uid, final String routing) {
+            Map<String, String> document = new HashMap<>();
+            document.put("_type", type);
+            document.put(IndexService.ELASTIC_SEARCH_UID, uid);
+            document.put(RoutingFieldMapper.NAME, routing);
+            documents.put(id, document);
+        }
+
+        /**
+         * Get the uids of the documents left.
+         *
+         * @return the uids
+         */
+        Set<String> uids() {
+            Set<String> uids = new TreeSet<>();
+            for (Map<String, String> document : documents.values()) {
+                uids.add(document.get(IndexService.ELASTIC_SEARCH_UID));
+            }
+            return uids;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse,
+                RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                final Action<Request, Response, RequestBuilder> action, final Request request,
+                final ActionListener<Response> listener) {
+            if (action == SearchAction.INSTANCE) {
+                listener.onResponse((Response) search(((SearchRequest) request).source().query()));
+            } else if (action == SearchScrollAction.INSTANCE) {
+                listener.onResponse((Response) searchResponse(new InternalSearchHit[0]));
+            } else if (action == ClearScrollAction.INSTANCE) {
+                listener.onResponse((Response) new ClearScrollResponse(true, 1));
+            } else if (action == BulkAction.INSTANCE) {
+                listener.onResponse((Response) executeBulk((BulkRequest) request));
+            } else {
+                listener.onFailure(new UnsupportedOperationException(action.name()));
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Search the documents, in a single page.
+         *
+         * @param query the query
+         * @return the response
+         */
+        private SearchResponse search(final QueryBuilder query) {
+            List<InternalSearchHit> hits = new ArrayList<>();
+            for (Map.Entry<String, Map<String, String>> document : documents.entrySet()) {
+                if (matches(query, document.getValue())) {
+                    Map<String, SearchHitField> fields = new HashMap<>();
+                    String routing = document.getValue().get(RoutingFieldMapper.NAME);
+                    if (routing != null) {
+                        fields.put(RoutingFieldMapper.NAME, new InternalSearchHitField(RoutingFieldMapper.NAME,
+                                Collections.<Object>singletonList(routing)));
+                    }
+                    InternalSearchHit hit = new InternalSearchHit(hits.size(), document.getKey(),
+                            new Text(document.getValue().get("_type")), fields);
+                    hit.shard(new SearchShardTarget("node", new Index(INDEX, "uuid"), 0));
+                    hits.add(hit);
+                }
+            }
+            return searchResponse(hits.toArray(new InternalSearchHit[hits.size()]));
+        }
+
+        /**
+         * Build a search response.
+         *
+         * @param hits the hits
+         * @return the response
+         */
+        private static SearchResponse searchResponse(final InternalSearchHit[] hits) {
+            InternalSearchResponse response = new InternalSearchResponse(
+                    new InternalSearchHits(hits, hits.length, 1f), null, null, null, false, null);
+            return new SearchResponse(response, "scroll", 1, 1, 1L, new ShardSearchFailure[0]);
+        }
+
+        /**
+         * Check if a document matches a query.
+         *
+         * @param query the query
+         * @param document the document
+         * @return true if the document matches
+         */
+        private static boolean matches(final QueryBuilder query, final Map<String, String> document) {
+            if (query instanceof BoolQueryBuilder) {
+                BoolQueryBuilder boolQuery = (BoolQueryBuilder) query;
+                List<QueryBuilder> clauses = new ArrayList<>(boolQuery.filter());
+                clauses.addAll(boolQuery.must());
+                for (QueryBuilder clause : clauses) {
+                    if (!matches(clause, document)) {
+                        return false;
+                    }
+                }
+                return !clauses.isEmpty();
+            }
+            if (query instanceof TermsQueryBuilder) {
+                TermsQueryBuilder termsQuery = (TermsQueryBuilder) query;
+                return matchesTerm(termsQuery.fieldName(), termsQuery.values(), document);
+            }
+            if (query instanceof TermQueryBuilder) {
+                TermQueryBuilder termQuery = (TermQueryBuilder) query;
+                return matchesTerm(termQuery.fieldName(), Collections.singletonList(termQuery.value()), document);
+            }
+            throw new UnsupportedOperationException(query.getName());
+        }
+
+        /**
+         * Check if a field of a document holds one of the terms.
+         *
+         * @param field the field name
+         * @param terms the terms
+         * @param document the document
+         * @return true if the document matches
+         */
+        private static boolean matchesTerm(final String field, final List<?> terms,
+                                           final Map<String, String> document) {
+            String value = document.get(field);
+            if (value == null) {
+                return false;
+            }
+            if (!KEYWORD_FIELDS.contains(field)) {
+                value = value.toLowerCase(Locale.ROOT);
+            }
+            for (Object term : terms) {
+                if (value.equals(String.valueOf(term))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Execute the deletions of a bulk request.
+         *
+         * @param request the bulk request
+         * @return the response
+         */
+        private BulkResponse executeBulk(final BulkRequest request) {
+            List<BulkItemResponse> items = new ArrayList<>();
+            for (Object itemRequest : request.requests()) {
+                DeleteRequest deleteRequest = (DeleteRequest) itemRequest;
+                deleteRequests.add(deleteRequest);
+                boolean found = documents.remove(deleteRequest.id()) != null;
+                items.add(new BulkItemResponse(items.size(), "delete", new DeleteResponse(
+                        new ShardId(deleteRequest.index(), "uuid", 0), deleteRequest.type(), deleteRequest.id(),
+                        deleteRequest.version(), found)));
+            }
+            return new BulkResponse(items.toArray(new BulkItemResponse[items.size()]), 1L);
+        }
+    }
+}
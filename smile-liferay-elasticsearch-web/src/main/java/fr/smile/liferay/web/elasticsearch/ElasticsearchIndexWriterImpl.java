@@ -4,15 +4,29 @@ import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.search.BaseIndexWriter;
 import com.liferay.portal.kernel.search.Document;
-import com.liferay.portal.kernel.search.DocumentComparator;
+import com.liferay.portal.kernel.search.Field;
 import com.liferay.portal.kernel.search.SearchContext;
 import com.liferay.portal.kernel.search.SearchException;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import fr.smile.liferay.elasticsearch.client.model.DeleteByQueryTask;
 import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
 import fr.smile.liferay.elasticsearch.client.model.Index;
 import fr.smile.liferay.elasticsearch.client.service.IndexService;
 import fr.smile.liferay.web.elasticsearch.exception.ElasticSearchIndexException;
-import fr.smile.liferay.web.elasticsearch.model.document.ElasticSearchJsonDocumentBuilder;
+import fr.smile.liferay.web.elasticsearch.reindex.FullReindexService;
+import fr.smile.liferay.web.elasticsearch.writer.ConversionPipeline;
+import fr.smile.liferay.web.elasticsearch.writer.ReadYourWritesTracker;
+import fr.smile.liferay.web.elasticsearch.writer.RefreshPolicyResolver;
+import fr.smile.liferay.web.elasticsearch.writer.WriteBehindQueue;
+import fr.smile.liferay.web.elasticsearch.writer.WriteCoalescer;
+import fr.smile.liferay.web.elasticsearch.writer.WriteLanes;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
@@ -23,17 +37,16 @@ import java.util.List;
 
 /**
  * Service used to perform query to the index.
+ *
+ * Company purges and the progress of the background deletions are exposed through JMX.
  */
 @Service
+@ManagedResource(objectName = "fr.smile.liferay.elasticsearch:type=IndexWriter")
 public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
 
     /** The Constant LOGGER. */
     private static final Log LOGGER = LogFactoryUtil.getLog(ElasticsearchIndexWriterImpl.class);
 
-    /** The document json builder. */
-    @Autowired
-    private ElasticSearchJsonDocumentBuilder documentJSONBuilder;
-
     /** Liferay index. */
     @Autowired
     private Index index;
@@ -42,8 +55,33 @@ public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
     @Autowired
     private IndexService indexService;
 
-    /** version. */
-    public static final String VERSION = "version";
+    /** Document conversion pipeline. */
+    @Autowired
+    private ConversionPipeline conversionPipeline;
+
+    /** Asynchronous indexing queue. */
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    /** Single document writes coalescer. */
+    @Autowired
+    private WriteCoalescer writeCoalescer;
+
+    /** Interactive and bulk write lanes. */
+    @Autowired
+    private WriteLanes writeLanes;
+
+    /** Full reindex service. */
+    @Autowired
+    private FullReindexService fullReindexService;
+
+    /** Refresh policies of the operations. */
+    @Autowired
+    private RefreshPolicyResolver refreshPolicyResolver;
+
+    /** Last writes of the users. */
+    @Autowired
+    private ReadYourWritesTracker readYourWritesTracker;
 
     /**
      * War type.
@@ -55,7 +93,7 @@ public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Add document for elasticsearch indexing");
         }
-        processIt(document);
+        processIt(searchContext, document);
     }
 
     @Override
@@ -64,15 +102,8 @@ public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Add documents for elasticsearch indexing");
         }
-        /** This is to sort the Documents with version field from oldest to latest updates to
-         retain the modifications */
-        DocumentComparator documentComparator = new DocumentComparator(true, false);
-        documentComparator.addOrderBy(VERSION);
-        Collections.sort((List<Document>) documents, documentComparator);
-
-        for (Document document : documents) {
-            updateDocument(searchContext, document);
-        }
+        /** No need to sort documents: the index keeps the last built version of each document */
+        processThem(searchContext, documents);
     }
 
     @Override
@@ -81,27 +112,97 @@ public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
             LOGGER.debug("Delete document from elasticsearch indexes");
         }
 
-        if (!uid.endsWith(WAR)) {
-            indexService.removeDocument(uid, index.getName());
-        }
-
+        deleteThem(searchContext, Collections.singletonList(uid));
     }
 
     @Override
     public final void deleteDocuments(final SearchContext searchContext, final Collection<String> uids)
             throws SearchException {
-        for (String uid : uids) {
-            deleteDocument(searchContext, uid);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Delete documents from elasticsearch indexes");
         }
+
+        deleteThem(searchContext, uids);
     }
 
     @Override
     public final void deletePortletDocuments(final SearchContext searchContext, final String portletId)
             throws SearchException {
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.error("Delete portlet documents from elasticsearch indexing");
+            LOGGER.debug("Delete portlet documents from elasticsearch indexing");
+        }
+
+        /** Pending documents must not be indexed after their deletion */
+        flushPending();
+
+        QueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery(Field.COMPANY_ID, String.valueOf(searchContext.getCompanyId())))
+                .filter(QueryBuilders.termQuery(Field.PORTLET_ID, portletId));
+        /** Recorded first: the index being rebuilt gets the deletion once filled, even if swapped meanwhile */
+        fullReindexService.recordDeletion(query);
+        indexService.deleteByQuery(index.getName(), query);
+    }
+
+    /**
+     * Delete every document of a company, in background.
+     *
+     * @param companyId the company id
+     * @return the delete by query task, whose progress can be polled from the {@link IndexService}
+     */
+    public final DeleteByQueryTask deleteCompanyDocuments(final long companyId) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Delete company documents from elasticsearch indexing");
+        }
+
+        /** Pending documents must not be indexed after their deletion */
+        flushPending();
+
+        QueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery(Field.COMPANY_ID, String.valueOf(companyId)));
+        /** Recorded first: the index being rebuilt gets the deletion once filled, even if swapped meanwhile */
+        fullReindexService.recordDeletion(query);
+        return indexService.deleteByQuery(index.getName(), query);
+    }
+
+    /**
+     * Start the purge of every document of a company.
+     *
+     * @param companyId the company id
+     * @return the id of the delete by query task
+     */
+    @ManagedOperation(description = "Delete every document of a company in background, returns the task id")
+    public final String purgeCompany(final long companyId) {
+        return deleteCompanyDocuments(companyId).getId();
+    }
+
+    /**
+     * Get the progress of a background deletion.
+     *
+     * @param taskId the delete by query task id
+     * @return the task progress, null if the task is unknown
+     */
+    @ManagedOperation(description = "Progress of a background deletion, given its task id")
+    public final String getDeletionProgress(final String taskId) {
+        DeleteByQueryTask task = indexService.getDeleteByQueryTask(taskId);
+        if (task == null) {
+            return null;
         }
-        //throw new SearchException("Portlet deployment documents are not supported");
+        return task.toString();
+    }
+
+    /**
+     * Get the progress of the last background deletions.
+     *
+     * @return the tasks progress, most recent last
+     */
+    @ManagedAttribute(description = "Progress of the last background deletions")
+    public final String[] getDeletions() {
+        List<DeleteByQueryTask> tasks = indexService.getDeleteByQueryTasks();
+        String[] deletions = new String[tasks.size()];
+        for (int i = 0; i < deletions.length; i++) {
+            deletions[i] = tasks.get(i).toString();
+        }
+        return deletions;
     }
 
     @Override
@@ -110,45 +211,164 @@ public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Update document from elasticsearch indexing");
         }
-        processIt(document);
+        processIt(searchContext, document);
     }
 
     @Override
     public final void updateDocuments(final SearchContext searchContext, final Collection<Document> documents)
             throws SearchException {
 
-        /** This is to sort the Documents with version field from oldest to latest updates to
-         retain the modifications */
-        DocumentComparator documentComparator = new DocumentComparator(true, false);
-        documentComparator.addOrderBy(VERSION);
-        Collections.sort((List<Document>) documents, documentComparator);
-
+        /** No need to sort documents: the index keeps the last built version of each document */
         LOGGER.info("Update documents from elasticsearch indexing");
-        for (Document document : documents) {
-            updateDocument(searchContext, document);
-        }
+        processThem(searchContext, documents);
     }
 
     /**
      * Process it.
      *
+     * @param searchContext
+     *            the search context
      * @param document
      *            the document
      * @throws SearchException
      *             the search exception
      */
-    private void processIt(final Document document) throws SearchException {
+    private void processIt(final SearchContext searchContext, final Document document) throws SearchException {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Processing document for elasticsearch indexing");
         }
         try {
             ElasticSearchJsonDocument elasticserachJSONDocument = processDocument(document);
-            indexService.writeDocument(index, elasticserachJSONDocument);
+            WriteRequest.RefreshPolicy refreshPolicy = refreshPolicyResolver.forWrite(searchContext);
+            boolean deferred = writeLanes.writeInteractive(index.getName(), elasticserachJSONDocument, refreshPolicy);
+            if (refreshPolicy == WriteRequest.RefreshPolicy.NONE) {
+                readYourWritesTracker.recordWrite(searchContext, deferred);
+            }
+
+            /** The index being rebuilt must not miss the changes made meanwhile */
+            String reindexTarget = fullReindexService.getTarget();
+            if (reindexTarget != null) {
+                fullReindexService.recordTargetWrite();
+                BulkResult result = indexService.writeDocument(reindexTarget, elasticserachJSONDocument);
+                for (BulkResult.Failure failure : result.getFailures()) {
+                    LOGGER.error("Failed to index document into the reindex target " + failure);
+                }
+                fullReindexService.recordTargetWriteFailures(result.getFailures().size());
+            }
         } catch (ElasticSearchIndexException e) {
             throw new SearchException(e);
         }
     }
 
+    /**
+     * Send the held and queued documents to the index and wait for completion.
+     */
+    private void flushPending() {
+        writeCoalescer.flush();
+        writeBehindQueue.flush();
+    }
+
+    /**
+     * Process a collection of documents and send them to the index with bulk requests.
+     *
+     * @param searchContext
+     *            the search context
+     * @param documents
+     *            the documents
+     * @throws SearchException
+     *             if at least one document could not be indexed
+     */
+    private void processThem(final SearchContext searchContext, final Collection<Document> documents)
+            throws SearchException {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Processing " + documents.size() + " documents for elasticsearch bulk indexing");
+        }
+        /** Pending documents must not overwrite the ones of this collection */
+        flushPending();
+        /** The index being rebuilt must not miss the changes made meanwhile: the converted documents are kept */
+        String reindexTarget = fullReindexService.getTarget();
+        BulkResult result;
+        Collection<ElasticSearchJsonDocument> esDocuments = null;
+        if (reindexTarget == null) {
+            result = writeLanes.writeBulk(index.getName(), documents);
+        } else {
+            try {
+                esDocuments = processDocuments(documents);
+            } catch (ElasticSearchIndexException e) {
+                throw new SearchException(e);
+            }
+            result = writeLanes.writeBulkDocuments(index.getName(), esDocuments);
+        }
+        if (refreshPolicyResolver.forBulkWrite(searchContext) != WriteRequest.RefreshPolicy.NONE) {
+            /** Bulk requests can't wait for a refresh, the index is refreshed once the collection is written */
+            long refreshStart = System.currentTimeMillis();
+            indexService.refreshIndex(index.getName());
+            readYourWritesTracker.recordRefresh(refreshStart);
+        }
+        if (reindexTarget != null) {
+            fullReindexService.recordTargetWrite();
+            BulkResult targetResult = writeLanes.writeBulkDocuments(reindexTarget, esDocuments);
+            for (BulkResult.Failure failure : targetResult.getFailures()) {
+                LOGGER.error("Failed to index document into the reindex target " + failure);
+            }
+            fullReindexService.recordTargetWriteFailures(targetResult.getFailures().size());
+        }
+        if (result.hasFailures()) {
+            List<BulkResult.Failure> failures = result.getFailures();
+            for (BulkResult.Failure failure : failures) {
+                LOGGER.error("Failed to index document " + failure);
+            }
+            throw new SearchException(failures.size() + " of " + documents.size()
+                    + " documents could not be indexed");
+        }
+    }
+
+    /**
+     * Delete a collection of documents from the index with bulk requests.
+     *
+     * @param searchContext
+     *            the search context
+     * @param uids
+     *            the documents uid
+     * @throws SearchException
+     *             if at least one document could not be deleted
+     */
+    private void deleteThem(final SearchContext searchContext, final Collection<String> uids)
+            throws SearchException {
+        /** Plugin deployment documents are not handled, skip them */
+        List<String> documentUids = new ArrayList<>(uids.size());
+        for (String uid : uids) {
+            if (!uid.endsWith(WAR)) {
+                documentUids.add(uid);
+            }
+        }
+        if (documentUids.isEmpty()) {
+            return;
+        }
+
+        /** Pending documents must not be indexed after their deletion */
+        flushPending();
+
+        /** Recorded first: the index being rebuilt gets the deletions once filled, even if swapped meanwhile */
+        fullReindexService.recordDeletion(documentUids);
+        WriteRequest.RefreshPolicy refreshPolicy = refreshPolicyResolver.forDelete(searchContext);
+        long refreshStart = System.currentTimeMillis();
+        BulkResult result = indexService.removeDocuments(documentUids, index.getName(), refreshPolicy);
+        if (refreshPolicy == WriteRequest.RefreshPolicy.NONE) {
+            readYourWritesTracker.recordWrite(searchContext, false);
+        } else if (result.getSpooled() == 0) {
+            /** The index was refreshed once the deletions were done */
+            readYourWritesTracker.recordRefresh(refreshStart);
+        }
+        if (result.hasFailures()) {
+            List<BulkResult.Failure> failures = result.getFailures();
+            for (BulkResult.Failure failure : failures) {
+                LOGGER.error("Failed to delete document " + failure);
+            }
+            throw new SearchException(failures.size() + " documents could not be deleted");
+        }
+    }
+
     /**
      * Process collection of documents.
      * @param documents documents to process
@@ -162,11 +382,11 @@ public class ElasticsearchIndexWriterImpl extends BaseIndexWriter {
             LOGGER.debug("Processing multiple document objects for elasticsearch indexing");
         }
 
-        Collection<ElasticSearchJsonDocument> esDocuments = new ArrayList<>();
+        Collection<ElasticSearchJsonDocument> esDocuments = new ArrayList<>(documents.size());
         // transform Document object into JSON object and send it to
         // elasticsearch server for indexing
-        for (Document doc : documents) {
-            esDocuments.add(documentJSONBuilder.convertToJSON(doc));
+        for (ElasticSearchJsonDocument esDocument : conversionPipeline.convert(documents)) {
+            esDocuments.add(esDocument);
         }
 
         return esDocuments;
@@ -8,7 +8,10 @@ import fr.smile.liferay.elasticsearch.client.ConnexionSettings;
 import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
 import fr.smile.liferay.elasticsearch.client.model.Index;
 import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import fr.smile.liferay.web.elasticsearch.model.document.FieldFilter;
 import org.elasticsearch.ElasticsearchException;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -38,6 +41,11 @@ public class ElasticsearchWebConfig {
      */
     private static final String DEFAULT_MAPPINGS_PATH = "elasticsearch/mappings/mappings.json";
 
+    /**
+     * Mapping parameter controlling the mapping of new fields.
+     */
+    private static final String DYNAMIC_PARAMETER = "dynamic";
+
     /**
      * Index service.
      */
@@ -85,16 +93,38 @@ public class ElasticsearchWebConfig {
 
         String indexSettings = new String(Files.readAllBytes(Paths.get(settingsFilePath)));
         String indexMappings = new String(Files.readAllBytes(Paths.get(mappingsFilePath)));
+        if (FieldFilter.getConfiguredPolicy() == FieldFilter.Policy.UNINDEXED) {
+            indexMappings = disableDynamicMapping(indexMappings);
+        }
 
         Index index = new Index(name, indexSettings, indexMappings);
         try {
-            if (!indexService.checkIfIndexExists(name)) {
-                indexService.createIndex(index);
-            }
+            indexService.openIndex(index);
         } catch (ElasticsearchException configEx) {
             LOGGER.error("Error while connecting to Elasticsearch server:" + configEx.getMessage());
         }
 
         return index;
     }
+
+    /**
+     * Disable the dynamic mapping of every type, so the fields missing from the mappings are kept in the source
+     * of the documents but not indexed. Types configuring it themselves are left unchanged: the custom fields object
+     * of the _default_ mapping keeps its dynamic templates, and the fields it declares stay indexed for every type.
+     * @param indexMappings the index mappings
+     * @return the index mappings, with dynamic mapping disabled
+     */
+    private String disableDynamicMapping(final String indexMappings) {
+        JSONObject jsonMappings = new JSONObject(indexMappings);
+        JSONArray jsonMappingsJSONArray = jsonMappings.getJSONArray("mappings");
+        for (int i = 0; i < jsonMappingsJSONArray.length(); i++) {
+            JSONObject obj = jsonMappingsJSONArray.getJSONObject(i);
+            JSONObject mapping = obj.getJSONObject(obj.names().getString(0));
+            if (!mapping.has(DYNAMIC_PARAMETER)) {
+                mapping.put(DYNAMIC_PARAMETER, false);
+            }
+        }
+        LOGGER.debug("Dynamic mapping disabled, unmapped fields are not indexed");
+        return jsonMappings.toString();
+    }
 }
@@ -1,5 +1,6 @@
 package fr.smile.liferay.web.elasticsearch.api;
 
+import com.liferay.portal.kernel.dao.orm.QueryUtil;
 import com.liferay.portal.kernel.json.JSONArray;
 import com.liferay.portal.kernel.json.JSONException;
 import com.liferay.portal.kernel.json.JSONFactoryUtil;
@@ -21,14 +22,28 @@ import com.liferay.portal.kernel.search.facet.RangeFacet;
 import com.liferay.portal.kernel.search.facet.collector.FacetCollector;
 import com.liferay.portal.kernel.search.facet.config.FacetConfiguration;
 import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
 import com.liferay.portal.kernel.util.StringPool;
 import com.liferay.portal.kernel.util.Time;
+import com.liferay.portal.kernel.util.Validator;
+import com.liferay.portlet.expando.util.ExpandoBridgeFactoryUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
 import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
 import fr.smile.liferay.web.elasticsearch.facet.ElasticSearchQueryFacetCollector;
+import fr.smile.liferay.web.elasticsearch.model.document.ElasticSearchJsonDocumentBuilder;
+import fr.smile.liferay.web.elasticsearch.model.document.RoutingPolicy;
+import fr.smile.liferay.web.elasticsearch.searcher.PermissionFilter;
+import fr.smile.liferay.web.elasticsearch.searcher.QueryTranslator;
+import fr.smile.liferay.web.elasticsearch.util.CustomFields;
 import fr.smile.liferay.web.elasticsearch.util.Ranges;
+import fr.smile.liferay.web.elasticsearch.writer.ReadYourWritesTracker;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
@@ -45,16 +60,18 @@ import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Standard Elastic Search Api Service.
@@ -65,6 +82,16 @@ public class EsSearchApiService {
     /** The Constant LOGGER. */
     private static final Log LOGGER = LogFactoryUtil.getLog(EsSearchApiService.class);
 
+    /**
+     * Default maximum number of hits of a search, the default index.max_result_window of the index.
+     */
+    private static final int DEFAULT_MAX_RESULTS = 10000;
+
+    /**
+     * Maximum number of entry types whose custom field names are kept.
+     */
+    private static final int MAX_CACHED_ENTRY_TYPES = 1000;
+
     /** The client. */
     @Autowired
     private Client client;
@@ -75,12 +102,63 @@ public class EsSearchApiService {
     @Autowired
     private Index index;
 
+    /**
+     * Liferay index service.
+     */
+    @Autowired
+    private IndexService indexService;
+
+    /**
+     * Shard routing of the documents.
+     */
+    @Autowired
+    private RoutingPolicy routingPolicy;
+
+    /**
+     * Liferay queries translator.
+     */
+    @Autowired
+    private QueryTranslator queryTranslator;
+
+    /**
+     * Permission clause of the searches.
+     */
+    @Autowired
+    private PermissionFilter permissionFilter;
+
+    /**
+     * Last writes of the users.
+     */
+    @Autowired
+    private ReadYourWritesTracker readYourWritesTracker;
+
+    /**
+     * Maximum number of hits of a search.
+     */
+    private int maxResults;
+
+    /**
+     * Custom field attribute names by name in the index, by company and entry type.
+     */
+    private final ConcurrentMap<String, Map<String, String>> customFieldAttributes = new ConcurrentHashMap<>();
+
     /**
      * Constructor.
      */
     public EsSearchApiService() {
     }
 
+    /**
+     * Load the configuration.
+     */
+    @PostConstruct
+    public final void init() {
+        maxResults = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_SEARCH_MAX_RESULTS), DEFAULT_MAX_RESULTS
+        );
+        LOGGER.debug("Searches return at most " + maxResults + " hits");
+    }
+
     /**
      * Gets the search hits.
      *
@@ -107,36 +185,90 @@ public class EsSearchApiService {
      * @return the search hits
      */
     public final Hits getSearchHits(final SearchContext searchContext, final Query query) {
-        String queryString = escape(query.toString());
-        queryString = escapeCustomFields(queryString);
-
-        QueryBuilder queryBuilder = QueryBuilders.queryStringQuery(queryString);
+        /** The user must see the documents just written */
+        readYourWritesTracker.awaitVisible(searchContext);
+
+        QueryBuilder queryBuilder = queryTranslator.translate(query);
+        String[] entryClassNames = searchContext.getEntryClassNames();
+        QueryBuilder permissionClause = permissionFilter.getFilter(searchContext);
+        if (ArrayUtil.isNotEmpty(entryClassNames) || permissionClause != null) {
+            BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery().must(queryBuilder);
+            if (ArrayUtil.isNotEmpty(entryClassNames)) {
+                /** Only the searched entry types are returned and counted */
+                boolQueryBuilder.filter(queryTranslator.getTermsFilter(Field.ENTRY_CLASS_NAME, entryClassNames));
+            }
+            if (permissionClause != null) {
+                /** Only the documents the user can view are returned and counted */
+                boolQueryBuilder.filter(permissionClause);
+            }
+            queryBuilder = boolQueryBuilder;
+        }
         SearchRequestBuilder searchRequestBuilder = client.prepareSearch(
-                index.getName()
+                getSearchIndices(searchContext)
         ).setQuery(queryBuilder);
+        if (indexService.isTypeIndexEnabled()) {
+            /** Types without any document yet have no index */
+            searchRequestBuilder.setIndicesOptions(IndicesOptions.lenientExpandOpen());
+        }
+        String routing = routingPolicy.getSearchRouting(searchContext);
+        if (routing != null) {
+            /** Searches scoped to a company or to sites only reach the shards of their documents */
+            searchRequestBuilder.setRouting(routing);
+        }
 
         // Handle Search Facet queries
         if (searchContext.getFacets() != null) {
             handleFacetQueries(searchContext.getFacets(), searchRequestBuilder);
         }
 
-        if (searchContext.getSorts() != null && searchContext.getSorts().length > 0) {
-            searchRequestBuilder = searchRequestBuilder.setFrom(searchContext.getStart())
-                    .setSize(searchContext.getEnd());
+        int start = searchContext.getStart();
+        int end = searchContext.getEnd();
+        if (start == QueryUtil.ALL_POS) {
+            start = 0;
+        }
+        if (end == QueryUtil.ALL_POS) {
+            /** All the hits are returned up to the maximum, the index rejecting larger windows */
+            end = maxResults;
+        }
+        /** The window holds the hits from start, inclusive, to end, exclusive */
+        start = Math.min(start, maxResults);
+        end = Math.min(end, maxResults);
+        searchRequestBuilder.setFrom(start).setSize(Math.max(end - start, 0));
+
+        if (searchContext.getSorts() != null) {
             for (Sort sort : searchContext.getSorts()) {
                 if (sort != null && sort.getFieldName() != null) {
                     searchRequestBuilder.addSort(getSort(sort));
                 }
             }
-        } else {
-            searchRequestBuilder = searchRequestBuilder.setFrom(searchContext.getStart())
-                    .setSize(searchContext.getEnd());
         }
         SearchResponse response = searchRequestBuilder.execute().actionGet();
         collectFacetResults(searchContext, response);
         return getHits(query, response, searchContext);
     }
 
+    /**
+     * Get the indices to search: the indices of the searched entry types when each entry type is indexed into
+     * its own index, the liferay index otherwise.
+     *
+     * @param searchContext the search context
+     * @return the index names
+     */
+    private String[] getSearchIndices(final SearchContext searchContext) {
+        String[] entryClassNames = searchContext.getEntryClassNames();
+        if (!indexService.isTypeIndexEnabled() || ArrayUtil.isEmpty(entryClassNames)) {
+            return new String[] {index.getName()};
+        }
+
+        String[] indices = new String[entryClassNames.length];
+        for (int i = 0; i < entryClassNames.length; i++) {
+            indices[i] = indexService.getTypeIndexName(
+                    index.getName(), entryClassNames[i].replace(StringPool.PERIOD, StringPool.UNDERLINE)
+            );
+        }
+        return indices;
+    }
+
     /**
      * Get hits.
      * @param query query
@@ -147,7 +279,7 @@ public class EsSearchApiService {
     private Hits getHits(final Query query, final SearchResponse response, final SearchContext searchContext) {
         Hits hits = new HitsImpl();
         SearchHits searchHits = response.getHits();
-        hits.setDocs(getDocuments(searchHits, searchContext));
+        hits.setDocs(getDocuments(searchHits));
         hits.setScores(getScores(searchHits));
         hits.setSearchTime((float) (System.currentTimeMillis() - hits.getStart()) / Time.SECOND);
         hits.setQuery(query);
@@ -194,46 +326,128 @@ public class EsSearchApiService {
      * Gets the documents.
      *
      * @param searchHits the search hits
-     * @param searchContext the search context
      * @return the documents
      */
-    private Document[] getDocuments(final SearchHits searchHits, final SearchContext searchContext) {
-        String[] types = searchContext.getEntryClassNames();
+    private Document[] getDocuments(final SearchHits searchHits) {
         if (searchHits != null && searchHits.getTotalHits() > 0) {
-            int failedJsonCount = 0;
-            List<Document> documentsList = new ArrayList<>();
+            List<Document> documentsList = new ArrayList<>(searchHits.getHits().length);
             for (SearchHit hit : searchHits.getHits()) {
                 Document document = new DocumentImpl();
                 try {
-                    String className = null;
                     JSONObject json = JSONFactoryUtil.createJSONObject(hit.getSourceAsString());
                     Iterator jsonItr = json.keys();
                     while (jsonItr.hasNext()) {
                         String key = (String) jsonItr.next();
+                        if (ElasticSearchJsonDocumentBuilder.FINGERPRINT_FIELD.equals(key)) {
+                            /** Internal to the plugin, not a Liferay field */
+                            continue;
+                        }
+                        if (CustomFields.OBJECT_NAME.equals(key)) {
+                            addCustomFields(document, hit.getSource().get(key), json.getLong(Field.COMPANY_ID),
+                                    json.getString(Field.ENTRY_CLASS_NAME));
+                            continue;
+                        }
                         String value = json.getString(key);
                         LOGGER.debug(">>>>>>>>>> " + key + " : " + value);
                         document.add(new Field(key, value));
-                        if (key.equalsIgnoreCase("entryClassName")) {
-                            className = value;
-                        }
-                    }
-                    if (ArrayUtil.contains(types, className)) {
-                        documentsList.add(document);
                     }
+                    documentsList.add(document);
                 } catch (JSONException e) {
-                    failedJsonCount++;
                     LOGGER.error("Error while processing the search result json objects", e);
                 }
             }
 
             LOGGER.debug("Total size of the search results: " + documentsList.size());
-            return documentsList.toArray(new Document[documentsList.size() - failedJsonCount]);
+            return documentsList.toArray(new Document[documentsList.size()]);
         } else {
             LOGGER.debug("No search results found");
             return new Document[0];
         }
     }
 
+    /**
+     * Add the custom fields of a search hit to its document, under their Liferay names.
+     *
+     * @param document the document
+     * @param customFields the custom fields object of the hit, holding an object per kind of value
+     * @param companyId the company id of the document
+     * @param entryClassName the entry class name of the document
+     */
+    private void addCustomFields(final Document document, final Object customFields, final long companyId,
+                                 final String entryClassName) {
+        if (!(customFields instanceof Map)) {
+            return;
+        }
+        for (Object kindFields : ((Map<?, ?>) customFields).values()) {
+            if (!(kindFields instanceof Map)) {
+                continue;
+            }
+            for (Map.Entry<?, ?> customField : ((Map<?, ?>) kindFields).entrySet()) {
+                String name = CustomFields.getLiferayName(
+                        getAttributeName(companyId, entryClassName, String.valueOf(customField.getKey()))
+                );
+                Object value = customField.getValue();
+                if (value instanceof List) {
+                    List<?> values = (List<?>) value;
+                    String[] stringValues = new String[values.size()];
+                    for (int i = 0; i < stringValues.length; i++) {
+                        stringValues[i] = String.valueOf(values.get(i));
+                    }
+                    document.add(new Field(name, stringValues));
+                } else if (value != null) {
+                    document.add(new Field(name, String.valueOf(value)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the name of a custom field attribute from its name in the index.
+     *
+     * @param companyId the company id
+     * @param entryClassName the entry class name
+     * @param normalizedName the attribute name in the index, such as my_attribute
+     * @return the attribute name, such as My Attribute, the name in the index if the attribute is unknown
+     */
+    private String getAttributeName(final long companyId, final String entryClassName, final String normalizedName) {
+        String key = companyId + StringPool.FORWARD_SLASH + entryClassName;
+        Map<String, String> attributeNames = customFieldAttributes.get(key);
+        if (attributeNames == null || !attributeNames.containsKey(normalizedName)) {
+            /* The attribute may have been created since the names were loaded */
+            attributeNames = loadAttributeNames(companyId, entryClassName);
+            if (customFieldAttributes.size() < MAX_CACHED_ENTRY_TYPES) {
+                customFieldAttributes.put(key, attributeNames);
+            }
+        }
+        String attributeName = attributeNames.get(normalizedName);
+        return attributeName != null ? attributeName : normalizedName;
+    }
+
+    /**
+     * Load the custom field attribute names of an entry type.
+     *
+     * @param companyId the company id
+     * @param entryClassName the entry class name
+     * @return the attribute names, by name in the index
+     */
+    private Map<String, String> loadAttributeNames(final long companyId, final String entryClassName) {
+        Map<String, String> attributeNames = new HashMap<>();
+        if (companyId <= 0 || Validator.isNull(entryClassName)) {
+            return attributeNames;
+        }
+        try {
+            Enumeration<String> names = ExpandoBridgeFactoryUtil.getExpandoBridge(companyId, entryClassName)
+                    .getAttributeNames();
+            while (names.hasMoreElements()) {
+                String name = names.nextElement();
+                attributeNames.put(CustomFields.normalize(name), name);
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Unable to get the custom fields of " + entryClassName + ": " + e.getMessage());
+        }
+        return attributeNames;
+    }
+
     /**
      * This method adds multiple facets to Elastic search query builder.
      *
@@ -438,28 +652,6 @@ public class EsSearchApiService {
         return sb.toString();
     }
 
-    /**
-     * Escape custom field string value.
-     * @param s string
-     * @return escaped custom field string value
-     */
-    public static String escapeCustomFields(final String s) {
-        String escapedCustomFieldValue = s;
-        Matcher m = Pattern.compile("custom_fields[A-Za-z\\\\/]*?\\s.*?:").matcher(escapedCustomFieldValue);
-        int offset = 0;
-        while (m.find()) {
-            int start = m.start() + offset;
-            int end = m.end() + offset;
-            String substring = escapedCustomFieldValue.substring(start, end);
-            String startString = escapedCustomFieldValue.substring(0, start);
-            String endString = escapedCustomFieldValue.substring(end, escapedCustomFieldValue.length());
-            String middleString = substring.replaceAll(" ", "\\\\ ");
-            offset += middleString.length() - substring.length();
-            escapedCustomFieldValue = startString + middleString + endString;
-        }
-        return escapedCustomFieldValue;
-    }
-
     /**
      * Parses the es facet to return a map with Entryclassname and its count.
      *
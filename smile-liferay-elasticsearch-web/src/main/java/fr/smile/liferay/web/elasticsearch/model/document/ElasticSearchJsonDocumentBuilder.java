@@ -1,29 +1,49 @@
 package fr.smile.liferay.web.elasticsearch.model.document;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.search.Document;
 import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.util.GetterUtil;
 import com.liferay.portal.kernel.util.LocaleUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
 import com.liferay.portal.kernel.util.StringPool;
 import com.liferay.portal.kernel.util.Validator;
+import com.liferay.portlet.expando.model.ExpandoColumnConstants;
+import com.liferay.portlet.expando.util.ExpandoBridgeFactoryUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
 import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import fr.smile.liferay.elasticsearch.client.service.IndexMetrics;
+import fr.smile.liferay.elasticsearch.client.service.VersionClock;
+import fr.smile.liferay.web.elasticsearch.util.CustomFields;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * {@link ElasticSearchJsonDocument} creation service.
@@ -35,10 +55,34 @@ public class ElasticSearchJsonDocumentBuilder {
     private static final Log LOGGER = LogFactoryUtil.getLog(ElasticSearchJsonDocumentBuilder.class);
 
     /**
-     * Document type.
+     * Field holding the fingerprint of the document content.
      */
-    public static final String DOCUMENT_TYPE = "LiferayAssetType";
+    public static final String FINGERPRINT_FIELD = "contentFingerprint";
 
+    /**
+     * Format of a fingerprint: the two halves of a 128 bits hash, in hexadecimal.
+     */
+    private static final String FINGERPRINT_FORMAT = "%016x%016x";
+
+    /**
+     * Suffix of sortable field names.
+     */
+    private static final String SORTABLE_SUFFIX = StringPool.UNDERLINE + "sortable";
+
+    /**
+     * Maximum number of field names and entry class names whose derived names are kept.
+     */
+    private static final int MAX_CACHED_NAMES = 10000;
+
+    /**
+     * Attribute name recorded for a custom field path several attribute names collide on.
+     */
+    private static final String COLLIDING_ATTRIBUTES = StringPool.BLANK;
+
+    /**
+     * Format of the dates stored by Liferay in documents.
+     */
+    private static final String INDEX_DATE_FORMAT_PATTERN = "yyyyMMddHHmmss";
     /**
      * Exclude types.
      */
@@ -48,6 +92,54 @@ public class ElasticSearchJsonDocumentBuilder {
     /** The excluded types. */
     private Set<String> excludedTypes;
 
+    /** Names derived from field names, by field name. */
+    private final ConcurrentMap<String, FieldNames> fieldNames = new ConcurrentHashMap<>();
+
+    /** Entry types, by entry class name. */
+    private final ConcurrentMap<String, EntryType> entryTypes = new ConcurrentHashMap<>();
+
+    /** Expando types of the custom fields, by company, entry class name and attribute name. */
+    private final ConcurrentMap<String, Integer> customFieldTypes = new ConcurrentHashMap<>();
+
+    /** Attribute names of the custom fields, by path in the index. */
+    private final ConcurrentMap<String, String> customFieldAttributes = new ConcurrentHashMap<>();
+
+    /**
+     * Initial size of an output buffer.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Recycled output buffers, shared by converting threads. A pool is used rather than thread
+     * locals, which would leak the plugin classes in the portal threads after an undeploy.
+     */
+    private final BlockingQueue<BytesStreamOutput> buffers = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 2
+    );
+
+    /** Field size limits. */
+    @Autowired
+    private FieldSizeLimiter fieldSizeLimiter;
+
+    /** Fields sent to the index. */
+    @Autowired
+    private FieldFilter fieldFilter;
+
+    /** Shard routing of the documents. */
+    @Autowired
+    private RoutingPolicy routingPolicy;
+
+    /** The index metrics. */
+    @Autowired
+    private IndexMetrics indexMetrics;
+
+    /** The versions of the documents. */
+    @Autowired
+    private VersionClock versionClock;
+
+    /** The content type of the documents sent to the index. */
+    private XContentType contentType = XContentType.JSON;
+
     /**
      * Init method.
      */
@@ -57,7 +149,7 @@ public class ElasticSearchJsonDocumentBuilder {
             excludedTypes = new HashSet<>();
             String[] excludedTypesArray = excludedTypesProperty.split(StringPool.COMMA);
             for (String excludedType : Arrays.asList(excludedTypesArray)) {
-                excludedTypes.add(excludedType);
+                excludedTypes.add(excludedType.toLowerCase());
             }
             LOGGER.debug("Loaded Excluded index types are:" + excludedTypesProperty);
         } else {
@@ -65,13 +157,28 @@ public class ElasticSearchJsonDocumentBuilder {
         }
     }
 
+    /**
+     * Init method.
+     */
+    @PostConstruct
+    public final void loadDocumentFormat() {
+        String format = PropsUtil.get(ElasticSearchIndexerConstants.ES_DOCUMENT_FORMAT);
+        if (Validator.isNotNull(format)) {
+            contentType = XContentType.fromMediaTypeOrFormat(format);
+            if (contentType != XContentType.JSON && contentType != XContentType.SMILE) {
+                throw new ElasticsearchException("Unsupported document format: " + format);
+            }
+        }
+        LOGGER.debug("Documents are sent to the index in " + contentType + " format");
+    }
+
     /**
      * Suffix a string with a "_sortable" string.
      * @param str the string to concat with the suffix
      * @return the string suffixed
      */
-    private String suffixWithSortable(String str) {
-        return str + StringPool.UNDERLINE + "sortable";
+    private static String suffixWithSortable(String str) {
+        return str + SORTABLE_SUFFIX;
     }
 
     /**
@@ -80,23 +187,59 @@ public class ElasticSearchJsonDocumentBuilder {
      * @param locale the locale
      * @return the string localized
      */
-    private String localized(String str, Locale locale) {
+    private static String localized(String str, Locale locale) {
         return str + StringPool.UNDERLINE + locale.toString();
     }
 
+    /**
+     * Get the names derived from a field name, computed once per field name.
+     * @param name the field name
+     * @return the field names
+     */
+    private FieldNames getFieldNames(String name) {
+        FieldNames names = fieldNames.get(name);
+        if (names == null) {
+            names = new FieldNames(name);
+            if (fieldNames.size() < MAX_CACHED_NAMES) {
+                fieldNames.putIfAbsent(name, names);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the type of an entry class name, computed once per entry class name.
+     * @param entryClassName the entry class name
+     * @return the entry type
+     */
+    private EntryType getEntryType(String entryClassName) {
+        EntryType entryType = entryTypes.get(entryClassName);
+        if (entryType == null) {
+            entryType = new EntryType(
+                    entryClassName.replace(StringPool.PERIOD, StringPool.UNDERLINE), isExcludedType(entryClassName)
+            );
+            if (entryTypes.size() < MAX_CACHED_NAMES) {
+                entryTypes.putIfAbsent(entryClassName, entryType);
+            }
+        }
+        return entryType;
+    }
+
     /**
      * Fill content builder with a field.
      * @param contentBuilder the content builder
      * @param field the field
      * @param name the field name
+     * @param fields the fields of the document
+     * @return number of bytes cut from values larger than the field size limit
      * @throws IOException any io exception that could happen in treatment
      */
-    private void buildField(XContentBuilder contentBuilder, Field field, String name) throws IOException {
+    private long buildField(XContentBuilder contentBuilder, Field field, String name, Map<String, Field> fields)
+            throws IOException {
         if (field.isLocalized()) {
-            buildLocalizedField(contentBuilder, field, name);
-        } else {
-            buildSimpleField(contentBuilder, field, name);
+            return buildLocalizedField(contentBuilder, field, name);
         }
+        return buildSimpleField(contentBuilder, field, name, fields);
     }
 
     /**
@@ -104,71 +247,398 @@ public class ElasticSearchJsonDocumentBuilder {
      * @param contentBuilder the content builder
      * @param field the field
      * @param name the field name
+     * @return number of bytes cut from values larger than the field size limit
      * @throws IOException any io exception that could happen in treatment
      */
-    private void buildLocalizedField(XContentBuilder contentBuilder, Field field, String name) throws IOException {
+    private long buildLocalizedField(XContentBuilder contentBuilder, Field field, String name) throws IOException {
         Map<Locale, String> fieldValues = field.getLocalizedValues();
+        FieldNames names = getFieldNames(name);
+        boolean sent = fieldFilter.isSent(name);
+        boolean sortable = field.isSortable();
+        boolean sortableSent = sortable && fieldFilter.isSent(names.sortable);
+        Locale defaultLocale = LocaleUtil.getDefault();
+        long cutBytes = 0L;
 
-        Locale locale;
-        String value;
-        boolean sortable;
         for (Map.Entry<Locale, String> localeEntry : fieldValues.entrySet()) {
-            locale = localeEntry.getKey();
-            value = localeEntry.getValue();
-            sortable = field.isSortable();
-
-            String languageId = LocaleUtil.toLanguageId(locale);
-            String defaultLanguageId = LocaleUtil.toLanguageId(LocaleUtil.getDefault());
+            Locale locale = localeEntry.getKey();
+            String value = localeEntry.getValue();
 
-            if (languageId.equals(defaultLanguageId)) {
-                contentBuilder.field(name, value);
+            if (sent && locale.equals(defaultLocale)) {
+                cutBytes += fieldSizeLimiter.writeField(contentBuilder, name, name, value);
             }
 
-            if (sortable) {
-                contentBuilder.field(suffixWithSortable(name), value);
+            if (sortableSent) {
+                cutBytes += fieldSizeLimiter.writeField(contentBuilder, names.sortable, name, value);
             }
 
             if (value != null && !value.isEmpty()) {
-                contentBuilder.field(localized(name, locale), value);
+                String[] localizedNames = names.getLocalized(locale);
+                if (fieldFilter.isSent(localizedNames[0])) {
+                    cutBytes += fieldSizeLimiter.writeField(contentBuilder, localizedNames[0], name, value);
+                }
 
-                if (sortable) {
-                    contentBuilder.field(suffixWithSortable(localized(name, locale)), value);
+                if (sortable && fieldFilter.isSent(localizedNames[1])) {
+                    cutBytes += fieldSizeLimiter.writeField(contentBuilder, localizedNames[1], name, value);
                 }
             }
         }
+        return cutBytes;
     }
 
     /**
      * Fill content builder with a simple field (not localized).
+     *
+     * Numeric fields and dates are written as numbers, so the index doesn't parse them again. Fields filtered out
+     * by the field policy are skipped.
      * @param contentBuilder the content builder
      * @param field the field
      * @param name the field name
+     * @param fields the fields of the document
+     * @return number of bytes cut from values larger than the field size limit
      * @throws IOException any io exception that could happen in treatment
      */
-    private void buildSimpleField(XContentBuilder contentBuilder, Field field, String name) throws IOException {
+    private long buildSimpleField(XContentBuilder contentBuilder, Field field, String name, Map<String, Field> fields)
+            throws IOException {
+        if (!fieldFilter.isSent(name)) {
+            return 0L;
+        }
+        Class<? extends Number> numericClass = getNumericClass(field, name, fields);
         String[] fieldValues = field.getValues();
-        Collection<String> values = null;
 
+        long cutBytes = 0L;
+        if (fieldValues != null && fieldValues.length > 1 && hasNonBlankValue(fieldValues)) {
+            /** Blank values of multi-valued fields are skipped */
+            contentBuilder.startArray(name);
+            for (String value : fieldValues) {
+                if (isBlank(value)) {
+                    continue;
+                }
+                if (numericClass != null) {
+                    contentBuilder.value(toNumber(value, numericClass));
+                } else {
+                    cutBytes += fieldSizeLimiter.writeValue(contentBuilder, name, value);
+                }
+            }
+            contentBuilder.endArray();
+        } else {
+            String value = field.getValue();
+            if (value != null) {
+                if (numericClass != null) {
+                    contentBuilder.field(name, toNumber(value, numericClass));
+                } else {
+                    cutBytes += fieldSizeLimiter.writeField(contentBuilder, name, name, value);
+                }
+            }
+        }
+        return cutBytes;
+    }
+
+    /**
+     * Fill content builder with the custom fields object, holding an object per kind of value.
+     * @param contentBuilder the content builder
+     * @param customFields the custom fields of the document
+     * @param fields the fields of the document
+     * @return number of bytes cut from values larger than the field size limit
+     * @throws IOException any io exception that could happen in treatment
+     */
+    private long buildCustomFields(XContentBuilder contentBuilder, List<Field> customFields, Map<String, Field> fields)
+            throws IOException {
+        Field companyIdField = fields.get(Field.COMPANY_ID);
+        Field classNameField = fields.get(Field.ENTRY_CLASS_NAME);
+        long companyId = companyIdField != null ? GetterUtil.getLong(companyIdField.getValue()) : 0L;
+        String entryClassName = classNameField != null ? classNameField.getValue() : null;
+
+        Map<CustomFields.Kind, List<Field>> fieldsByKind = new EnumMap<>(CustomFields.Kind.class);
+        for (Field field : customFields) {
+            int type = getCustomFieldType(companyId, entryClassName, field.getName());
+            CustomFields.Kind kind = getCustomFieldKind(field, type);
+            String path = getFieldNames(field.getName()).getCustomPath(kind);
+            if (fieldFilter.isSent(path)) {
+                checkCustomFieldPath(path, CustomFields.getAttributeName(field.getName()));
+                List<Field> kindFields = fieldsByKind.get(kind);
+                if (kindFields == null) {
+                    kindFields = new ArrayList<>();
+                    fieldsByKind.put(kind, kindFields);
+                }
+                kindFields.add(field);
+            }
+        }
+
+        long cutBytes = 0L;
+        contentBuilder.startObject(CustomFields.OBJECT_NAME);
+        for (Map.Entry<CustomFields.Kind, List<Field>> entry : fieldsByKind.entrySet()) {
+            contentBuilder.startObject(entry.getKey().getObjectName());
+            for (Field field : entry.getValue()) {
+                cutBytes += buildCustomField(contentBuilder, field, getFieldNames(field.getName()), entry.getKey());
+            }
+            contentBuilder.endObject();
+        }
+        contentBuilder.endObject();
+        return cutBytes;
+    }
+
+    /**
+     * Fill content builder with a custom field, in the object of the kind of its values.
+     *
+     * Localized values are written under the localized names of the field, the value of the default locale under
+     * the field name.
+     * @param contentBuilder the content builder
+     * @param field the field
+     * @param names the names of the field
+     * @param kind the kind of its values
+     * @return number of bytes cut from values larger than the field size limit
+     * @throws IOException any io exception that could happen in treatment
+     */
+    private long buildCustomField(XContentBuilder contentBuilder, Field field, FieldNames names,
+                                  CustomFields.Kind kind) throws IOException {
+        long cutBytes = 0L;
+        String path = names.getCustomPath(kind);
+        if (field.isLocalized()) {
+            Locale defaultLocale = LocaleUtil.getDefault();
+            for (Map.Entry<Locale, String> localeEntry : field.getLocalizedValues().entrySet()) {
+                String value = localeEntry.getValue();
+                if (localeEntry.getKey().equals(defaultLocale)) {
+                    cutBytes += fieldSizeLimiter.writeField(contentBuilder, names.custom, path, value);
+                }
+                if (value != null && !value.isEmpty()) {
+                    String localizedName = CustomFields.normalize(
+                            CustomFields.getAttributeName(names.getLocalized(localeEntry.getKey())[0])
+                    );
+                    cutBytes += fieldSizeLimiter.writeField(contentBuilder, localizedName, path, value);
+                }
+            }
+            return cutBytes;
+        }
+
+        String[] fieldValues = field.getValues();
         if (fieldValues != null && fieldValues.length > 1) {
-            List<String> tempList = Arrays.asList(fieldValues);
+            contentBuilder.startArray(names.custom);
+            for (String value : fieldValues) {
+                if (!isBlank(value)) {
+                    cutBytes += buildCustomValue(contentBuilder, path, value, kind);
+                }
+            }
+            contentBuilder.endArray();
+        } else if (field.getValue() != null) {
+            contentBuilder.field(names.custom);
+            cutBytes += buildCustomValue(contentBuilder, path, field.getValue(), kind);
+        }
+        return cutBytes;
+    }
+
+    /**
+     * Write a value of a custom field, in an array or after the field name.
+     * @param contentBuilder the content builder
+     * @param path the path of the field, whose size limit applies
+     * @param value the value
+     * @param kind the kind of the values of the field
+     * @return number of bytes cut from the value
+     * @throws IOException any io exception that could happen in treatment
+     */
+    private long buildCustomValue(XContentBuilder contentBuilder, String path, String value, CustomFields.Kind kind)
+            throws IOException {
+        switch (kind) {
+            case BOOLEAN:
+                contentBuilder.value(GetterUtil.getBoolean(value.trim()));
+                return 0L;
+            case LONG:
+                contentBuilder.value(toNumber(value, Long.class));
+                return 0L;
+            case DOUBLE:
+                contentBuilder.value(toNumber(value, Double.class));
+                return 0L;
+            default:
+                return fieldSizeLimiter.writeValue(contentBuilder, path, value);
+        }
+    }
 
-            Predicate<String> isNotEmptyElementPredicate = new Predicate<String>() {
-                public boolean apply(final String p) {
-                    return p.trim().length() > 0;
+    /**
+     * Get the kind of the values of a custom field. Dates are written as numbers, as the other dates.
+     * @param field the field
+     * @param type the expando type of the attribute, 0 if unknown
+     * @return the kind
+     */
+    private CustomFields.Kind getCustomFieldKind(Field field, int type) {
+        if (field.isLocalized()) {
+            return CustomFields.Kind.STRING;
+        }
+        switch (type) {
+            case ExpandoColumnConstants.BOOLEAN:
+            case ExpandoColumnConstants.BOOLEAN_ARRAY:
+                return CustomFields.Kind.BOOLEAN;
+            case ExpandoColumnConstants.DATE:
+            case ExpandoColumnConstants.DATE_ARRAY:
+            case ExpandoColumnConstants.INTEGER:
+            case ExpandoColumnConstants.INTEGER_ARRAY:
+            case ExpandoColumnConstants.LONG:
+            case ExpandoColumnConstants.LONG_ARRAY:
+            case ExpandoColumnConstants.SHORT:
+            case ExpandoColumnConstants.SHORT_ARRAY:
+                return CustomFields.Kind.LONG;
+            case ExpandoColumnConstants.DOUBLE:
+            case ExpandoColumnConstants.DOUBLE_ARRAY:
+            case ExpandoColumnConstants.FLOAT:
+            case ExpandoColumnConstants.FLOAT_ARRAY:
+            case ExpandoColumnConstants.NUMBER:
+            case ExpandoColumnConstants.NUMBER_ARRAY:
+                return CustomFields.Kind.DOUBLE;
+            default:
+                if (field.isNumeric()) {
+                    Class<? extends Number> numericClass = field.getNumericClass();
+                    if (numericClass == Double.class || numericClass == Float.class) {
+                        return CustomFields.Kind.DOUBLE;
+                    }
+                    return CustomFields.Kind.LONG;
                 }
-            };
+                return CustomFields.Kind.STRING;
+        }
+    }
+
+    /**
+     * Get the expando type of the attribute of a custom field, looked up once per company and entry type. Failed
+     * lookups are not kept, so the type is looked up again on the next document.
+     * @param companyId the company id
+     * @param entryClassName the entry class name
+     * @param name the Liferay field name
+     * @return the expando type, 0 if unknown
+     */
+    private int getCustomFieldType(long companyId, String entryClassName, String name) {
+        if (companyId <= 0 || Validator.isNull(entryClassName)) {
+            return 0;
+        }
 
-            values = Collections2.filter(tempList, isNotEmptyElementPredicate);
+        String attributeName = CustomFields.getAttributeName(name);
+        String key = companyId + StringPool.FORWARD_SLASH + entryClassName + StringPool.FORWARD_SLASH + attributeName;
+        Integer type = customFieldTypes.get(key);
+        if (type == null) {
+            try {
+                type = ExpandoBridgeFactoryUtil.getExpandoBridge(companyId, entryClassName)
+                        .getAttributeType(attributeName);
+            } catch (Exception e) {
+                LOGGER.debug("Unable to get the type of custom field " + attributeName + " of " + entryClassName
+                        + ": " + e.getMessage());
+                return 0;
+            }
+            /* An unknown attribute may be created later */
+            if (type != 0 && customFieldTypes.size() < MAX_CACHED_NAMES) {
+                customFieldTypes.putIfAbsent(key, type);
+            }
         }
+        return type;
+    }
 
-        if (values != null && values.size() > 0) {
-            contentBuilder.array(name, values.toArray());
-        } else {
-            String value = field.getValue();
-            if (value != null) {
-                contentBuilder.field(name, value.trim());
+    /**
+     * Check that a custom field path only receives the values of one attribute, and log the attributes whose
+     * names collide once normalized, such as "My Field" and "my_field".
+     * @param path the path of the field in the index
+     * @param attributeName the attribute name
+     */
+    private void checkCustomFieldPath(String path, String attributeName) {
+        String recorded = customFieldAttributes.get(path);
+        if (recorded == null) {
+            if (customFieldAttributes.size() < MAX_CACHED_NAMES) {
+                recorded = customFieldAttributes.putIfAbsent(path, attributeName);
+            }
+            if (recorded == null) {
+                return;
             }
         }
+        if (!recorded.equals(attributeName) && !recorded.equals(COLLIDING_ATTRIBUTES)
+                && customFieldAttributes.replace(path, recorded, COLLIDING_ATTRIBUTES)) {
+            LOGGER.warn("Custom fields " + recorded + " and " + attributeName + " are both indexed as " + path
+                    + ", their values are mixed: rename one of them");
+        }
+    }
+
+    /**
+     * Get the class of the numbers held by a field.
+     *
+     * Liferay stores dates as yyyyMMddHHmmss strings, along with a numeric sortable field holding the time in
+     * milliseconds: they are written as yyyyMMddHHmmss numbers too, so the range queries of Liferay still compare
+     * them. Date fields must then be mapped with the yyyyMMddHHmmss format, the default one reading epoch millis.
+     * @param field the field
+     * @param name the field name
+     * @param fields the fields of the document
+     * @return the numeric class, null if the field doesn't hold numbers
+     */
+    private Class<? extends Number> getNumericClass(Field field, String name, Map<String, Field> fields) {
+        if (field.isNumeric()) {
+            Class<? extends Number> numericClass = field.getNumericClass();
+            return numericClass != null ? numericClass : Long.class;
+        }
+
+        Field sortableField = fields.get(getFieldNames(name).sortable);
+        if (sortableField != null && sortableField.isNumeric() && isIndexDate(field.getValue())) {
+            return Long.class;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if at least one value is not blank.
+     * @param values the values
+     * @return true, if a value is not blank
+     */
+    private boolean hasNonBlankValue(String[] values) {
+        for (String value : values) {
+            if (!isBlank(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a value is blank, without trimming it.
+     * @param value the value
+     * @return true, if the value is blank
+     */
+    private boolean isBlank(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a value is a date in the format used by Liferay in documents.
+     * @param value the value
+     * @return true, if the value is a date
+     */
+    private boolean isIndexDate(String value) {
+        if (value == null || value.length() != INDEX_DATE_FORMAT_PATTERN.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert a value to a number.
+     * @param value the value
+     * @param numericClass the numeric class
+     * @return the number, the trimmed value if it is not a number
+     */
+    private Object toNumber(String value, Class<? extends Number> numericClass) {
+        String trimmed = value.trim();
+        try {
+            if (numericClass == Double.class) {
+                return Double.valueOf(trimmed);
+            } else if (numericClass == Float.class) {
+                return Float.valueOf(trimmed);
+            } else if (numericClass == Integer.class || numericClass == Short.class || numericClass == Byte.class) {
+                return Integer.valueOf(trimmed);
+            }
+            return Long.valueOf(trimmed);
+        } catch (NumberFormatException e) {
+            return trimmed;
+        }
     }
 
     /**
@@ -182,25 +652,117 @@ public class ElasticSearchJsonDocumentBuilder {
         ElasticSearchJsonDocument elasticsearchJSONDocument = new ElasticSearchJsonDocument();
 
         if (isValid(document, elasticsearchJSONDocument)) {
+            /* The last built document of an entry is the one kept by the index, whatever the order of the writes */
+            elasticsearchJSONDocument.setVersion(versionClock.next());
+            BytesStreamOutput buffer = acquireBuffer();
             try {
-                XContentBuilder contentBuilder = XContentFactory.jsonBuilder().startObject();
+                XContentBuilder contentBuilder = XContentFactory.contentBuilder(contentType, buffer).startObject();
 
                 /** Create a JSON string for remaining fields of document */
                 Map<String, Field> fields = document.getFields();
+                long cutBytes = 0L;
+                List<Field> customFields = null;
                 for (Map.Entry<String, Field> entry :  fields.entrySet()) {
-                    buildField(contentBuilder, entry.getValue(), entry.getKey());
+                    if (getFieldNames(entry.getKey()).custom != null) {
+                        /** Custom fields are grouped in their own object */
+                        if (customFields == null) {
+                            customFields = new ArrayList<>();
+                        }
+                        customFields.add(entry.getValue());
+                        continue;
+                    }
+                    cutBytes += buildField(contentBuilder, entry.getValue(), entry.getKey(), fields);
+                }
+                if (customFields != null) {
+                    cutBytes += buildCustomFields(contentBuilder, customFields, fields);
+                }
+                if (cutBytes > 0) {
+                    indexMetrics.addOversizedDocument(cutBytes);
+                    LOGGER.info("Document " + elasticsearchJSONDocument.getId() + " is oversized, " + cutBytes
+                            + " bytes were truncated");
                 }
+
+                /** The fingerprint covers every field written so far */
+                contentBuilder.flush();
+                String fingerprint = fingerprint(buffer.bytes().toBytesRef());
+                contentBuilder.field(FINGERPRINT_FIELD, fingerprint);
+                elasticsearchJSONDocument.setFingerprint(fingerprint);
+
                 contentBuilder.endObject();
+                contentBuilder.close();
 
-                elasticsearchJSONDocument.setJsonDocument(contentBuilder.string());
-                LOGGER.debug("Liferay Document converted to ESJSON document successfully:" + contentBuilder.string());
+                /** The buffer is recycled, so its content is copied once into an exactly sized array */
+                elasticsearchJSONDocument.setSource(new BytesArray(toByteArray(buffer.bytes())), contentType);
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Liferay Document converted to ESJSON document successfully:"
+                            + elasticsearchJSONDocument.getJsonDocument());
+                }
             } catch (IOException e) {
                 LOGGER.error("IO Error during converstion of Liferay Document to JSON format" + e.getMessage());
+            } finally {
+                releaseBuffer(buffer);
             }
         }
         return elasticsearchJSONDocument;
     }
 
+    /**
+     * Compute a stable fingerprint of encoded content.
+     *
+     * @param content the encoded content
+     * @return the fingerprint, as an hexadecimal string
+     */
+    private String fingerprint(final BytesRef content) {
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(
+                content.bytes, content.offset, content.length, 0L, new MurmurHash3.Hash128()
+        );
+        /* Zero padded, so distinct hashes never give the same string */
+        return String.format(FINGERPRINT_FORMAT, hash.h1, hash.h2);
+    }
+
+    /**
+     * Copy bytes into an exactly sized array, page by page: the pages of a buffer larger than one page are not
+     * merged first.
+     *
+     * @param bytes the bytes
+     * @return the array
+     * @throws IOException if the pages can't be read
+     */
+    private static byte[] toByteArray(final BytesReference bytes) throws IOException {
+        byte[] array = new byte[bytes.length()];
+        BytesRefIterator pages = bytes.iterator();
+        int position = 0;
+        BytesRef page;
+        while ((page = pages.next()) != null) {
+            System.arraycopy(page.bytes, page.offset, array, position, page.length);
+            position += page.length;
+        }
+        return array;
+    }
+
+    /**
+     * Take an output buffer from the pool, or create one if the pool is empty.
+     *
+     * @return the buffer
+     */
+    private BytesStreamOutput acquireBuffer() {
+        BytesStreamOutput buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new BytesStreamOutput(INITIAL_BUFFER_SIZE);
+        }
+        return buffer;
+    }
+
+    /**
+     * Give an output buffer back to the pool. The buffer is dropped if the pool is full.
+     *
+     * @param buffer the buffer
+     */
+    private void releaseBuffer(final BytesStreamOutput buffer) {
+        buffer.reset();
+        buffers.offer(buffer);
+    }
+
     /**
      * Checks if liferay document is valid to index.
      * @param liferayDocument liferay document
@@ -234,9 +796,10 @@ public class ElasticSearchJsonDocumentBuilder {
         }
 
         /** Replace '.' by '_' in Entry class name,since '.' is not recommended by Elasticsearch in Index type */
-        String indexType = entryClassName.replace(StringPool.PERIOD, StringPool.UNDERLINE);
-        document.setIndexType(indexType);
-        document.setId(indexType + entryClassPK);
+        EntryType entryType = getEntryType(entryClassName);
+        document.setIndexType(entryType.indexType);
+        document.setId(entryType.indexType + entryClassPK);
+        document.setRouting(routingPolicy.getRouting(liferayDocument));
 
         if (isDocumentHidden(liferayDocument)) {
             document.setError(true);
@@ -252,7 +815,7 @@ public class ElasticSearchJsonDocumentBuilder {
             );
             return false;
         }
-        if (isExcludedType(entryClassName)) {
+        if (entryType.excluded) {
             document.setError(true);
             document.setErrorMessage(
                     "Index Type:" + entryClassName
@@ -282,19 +845,106 @@ public class ElasticSearchJsonDocumentBuilder {
 
     /**
      * Check if EntryClassname is com.liferay.portal.kernel.plugin.PluginPackage/ExportImportHelper
-     * which need not be indexed.
+     * which need not be indexed. Called once per entry class name, see {@link #getEntryType(String)}.
      *
      * @param indexType the index type
      * @return true, if is excluded type
      */
     private boolean isExcludedType(final String indexType) {
         if (indexType != null && excludedTypes != null) {
+            String lowerCaseIndexType = indexType.toLowerCase();
             for (String excludedType : excludedTypes) {
-                if (indexType.toLowerCase().contains(excludedType.toLowerCase())) {
+                if (lowerCaseIndexType.contains(excludedType)) {
                     return true;
                 }
             }
         }
         return false;
     }
+
+    /**
+     * The names derived from a field name.
+     */
+    private static final class FieldNames {
+
+        /** The field name. */
+        private final String name;
+
+        /** The sortable field name. */
+        private final String sortable;
+
+        /** The name in the custom fields object, null if the field is not a custom field. */
+        private final String custom;
+
+        /** The paths in the index of a custom field by kind of value, null if the field is not a custom field. */
+        private final String[] customPaths;
+
+        /** The localized and localized sortable field names, by locale. */
+        private final ConcurrentMap<Locale, String[]> localized = new ConcurrentHashMap<>();
+
+        /**
+         * Instantiates the names of a field.
+         * @param name the field name
+         */
+        FieldNames(final String name) {
+            this.name = name;
+            this.sortable = suffixWithSortable(name);
+            if (CustomFields.isCustomField(name)) {
+                this.custom = CustomFields.normalize(CustomFields.getAttributeName(name));
+                this.customPaths = new String[CustomFields.Kind.values().length];
+                for (CustomFields.Kind kind : CustomFields.Kind.values()) {
+                    this.customPaths[kind.ordinal()] = CustomFields.getPath(name, kind);
+                }
+            } else {
+                this.custom = null;
+                this.customPaths = null;
+            }
+        }
+
+        /**
+         * Get the path in the index of a custom field.
+         * @param kind the kind of its values
+         * @return the path
+         */
+        String getCustomPath(final CustomFields.Kind kind) {
+            return customPaths[kind.ordinal()];
+        }
+
+        /**
+         * Get the localized names of the field.
+         * @param locale the locale
+         * @return the localized name and the localized sortable name
+         */
+        String[] getLocalized(final Locale locale) {
+            String[] names = localized.get(locale);
+            if (names == null) {
+                String localizedName = localized(name, locale);
+                names = new String[] {localizedName, suffixWithSortable(localizedName)};
+                localized.putIfAbsent(locale, names);
+            }
+            return names;
+        }
+    }
+
+    /**
+     * The index type of an entry class name.
+     */
+    private static final class EntryType {
+
+        /** The index type. */
+        private final String indexType;
+
+        /** Is the type excluded from the index. */
+        private final boolean excluded;
+
+        /**
+         * Instantiates an entry type.
+         * @param indexType the index type
+         * @param excluded is the type excluded from the index
+         */
+        EntryType(final String indexType, final boolean excluded) {
+            this.indexType = indexType;
+            this.excluded = excluded;
+        }
+    }
 }
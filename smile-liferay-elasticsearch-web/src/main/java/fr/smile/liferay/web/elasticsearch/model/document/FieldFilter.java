@@ -0,0 +1,303 @@
+package fr.smile.liferay.web.elasticsearch.model.document;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.util.StringPool;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides which fields of the Liferay documents are sent to the index, from the index mappings.
+ *
+ * Liferay documents hold many fields, plus sortable and localized copies, most of which are neither searched,
+ * sorted nor displayed. The policy applied to the fields missing from the mappings is one of:
+ * <ul>
+ *     <li>all: every field is sent and dynamically mapped</li>
+ *     <li>whitelist: only the mapped fields and the fields to keep are sent</li>
+ *     <li>unindexed: every field is sent, but the index is created with dynamic mapping disabled, so missing
+ *     fields are only kept in the source</li>
+ * </ul>
+ * Fields to drop are never sent, whatever the policy.
+ */
+@Service
+public class FieldFilter {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(FieldFilter.class);
+
+    /**
+     * Suffix of a field name pattern matching every field starting with it.
+     */
+    private static final String WILDCARD = StringPool.STAR;
+
+    /**
+     * Mapping applied to every type of the index.
+     */
+    private static final String DEFAULT_MAPPING = "_default_";
+
+    /**
+     * Maximum number of decisions kept.
+     */
+    private static final int MAX_CACHED_DECISIONS = 10000;
+
+    /**
+     * Fields the plugin and the context queries of the Liferay indexers rely on, always sent.
+     */
+    private static final Set<String> REQUIRED_FIELDS = new HashSet<>(Arrays.asList(
+            Field.UID, Field.ENTRY_CLASS_NAME, Field.ENTRY_CLASS_PK, Field.COMPANY_ID, Field.GROUP_ID, Field.PORTLET_ID,
+            Field.ROLE_ID, Field.GROUP_ROLE_ID, Field.USER_ID, Field.SCOPE_GROUP_ID, Field.STAGING_GROUP,
+            Field.STATUS, Field.HIDDEN, Field.RELATED_ENTRY, Field.CLASS_NAME_ID, Field.CLASS_PK, Field.FOLDER_ID,
+            Field.LAYOUT_UUID, "head", "discussion", "ddmStructureKey"
+    ));
+
+    /**
+     * Fields the searches filter on with exact terms, such as the entry class name or the uid: unless they are
+     * mapped as keyword, their terms are analyzed and never match a filter.
+     */
+    public static final Set<String> FILTER_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Field.COMPANY_ID, Field.GROUP_ID, Field.SCOPE_GROUP_ID, Field.STAGING_GROUP, Field.ENTRY_CLASS_NAME,
+            Field.ENTRY_CLASS_PK, Field.UID, Field.PORTLET_ID, Field.STATUS, Field.FOLDER_ID, Field.USER_ID,
+            Field.ROLE_ID, Field.GROUP_ROLE_ID, Field.ASSET_CATEGORY_IDS, Field.ASSET_TAG_IDS, Field.HIDDEN
+    )));
+
+    /**
+     * Type of the fields matched exactly.
+     */
+    private static final String KEYWORD_TYPE = "keyword";
+
+    /**
+     * Policies applied to the fields missing from the mappings.
+     */
+    public enum Policy {
+
+        /** Every field is sent and dynamically mapped. */
+        ALL,
+
+        /** Only the mapped fields and the fields to keep are sent. */
+        WHITELIST,
+
+        /** Every field is sent, missing fields are not indexed. */
+        UNINDEXED
+    }
+
+    /** Liferay index. */
+    @Autowired
+    private Index index;
+
+    /** The policy. */
+    private Policy policy;
+
+    /** Fields of the _default_ mapping. */
+    private final Set<String> mappedFields = new HashSet<>();
+
+    /** Fields of the _default_ mapping mapped as keyword. */
+    private final Set<String> keywordFields = new HashSet<>();
+
+    /** Fields to keep. */
+    private FieldPatterns keptFields;
+
+    /** Fields to drop. */
+    private FieldPatterns droppedFields;
+
+    /** Decisions taken, by field name. */
+    private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    /**
+     * Get the configured policy.
+     *
+     * @return the policy
+     */
+    public static Policy getConfiguredPolicy() {
+        String value = PropsUtil.get(ElasticSearchIndexerConstants.ES_FIELD_POLICY);
+        if (Validator.isNull(value)) {
+            return Policy.ALL;
+        }
+        try {
+            return Policy.valueOf(StringUtil.toUpperCase(value.trim()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid field policy " + value + ", every field is sent");
+            return Policy.ALL;
+        }
+    }
+
+    /**
+     * Load the policy and the fields of the mappings. Documents are indexed under the type of their entry, which
+     * gets its fields from the _default_ mapping: the fields of the other types never apply to a document.
+     */
+    @PostConstruct
+    public final void init() {
+        policy = getConfiguredPolicy();
+        keptFields = new FieldPatterns(PropsUtil.get(ElasticSearchIndexerConstants.ES_FIELD_KEEP));
+        droppedFields = new FieldPatterns(PropsUtil.get(ElasticSearchIndexerConstants.ES_FIELD_DROP));
+
+        if (Validator.isNotNull(index.getIndexMappings())) {
+            JSONArray mappings = new JSONObject(index.getIndexMappings()).getJSONArray("mappings");
+            for (int i = 0; i < mappings.length(); i++) {
+                JSONObject typeMappings = mappings.getJSONObject(i);
+                String type = typeMappings.names().getString(0);
+                if (!DEFAULT_MAPPING.equals(type)) {
+                    LOGGER.warn("Mapping of type " + type + " is ignored, documents are indexed under the type of "
+                            + "their entry: declare its fields in the " + DEFAULT_MAPPING + " mapping");
+                    continue;
+                }
+                JSONObject mapping = typeMappings.getJSONObject(type);
+                JSONObject properties = mapping.optJSONObject("properties");
+                if (properties != null && properties.length() > 0) {
+                    for (String name : JSONObject.getNames(properties)) {
+                        mappedFields.add(name);
+                        JSONObject property = properties.optJSONObject(name);
+                        if (property != null && KEYWORD_TYPE.equals(property.optString("type"))) {
+                            keywordFields.add(name);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (String name : FILTER_FIELDS) {
+            if (!keywordFields.contains(name)) {
+                LOGGER.error("Filter field " + name + " is not mapped as " + KEYWORD_TYPE + " in the "
+                        + DEFAULT_MAPPING + " mapping, searches filtering on it match its analyzed terms");
+            }
+        }
+
+        if (policy != Policy.ALL) {
+            for (String name : REQUIRED_FIELDS) {
+                if (!mappedFields.contains(name)) {
+                    LOGGER.warn("Required field " + name + " is not mapped, searches filtering on it will fail");
+                }
+            }
+        }
+
+        LOGGER.info("Field policy: " + policy + ", " + mappedFields.size() + " mapped fields");
+    }
+
+    /**
+     * Checks if a field is sent to the index.
+     *
+     * @param name the field name, as written in the document
+     * @return true, if sent
+     */
+    public final boolean isSent(final String name) {
+        Boolean sent = decisions.get(name);
+        if (sent == null) {
+            sent = decide(name);
+            if (decisions.size() < MAX_CACHED_DECISIONS) {
+                decisions.putIfAbsent(name, sent);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Checks if a field is mapped as keyword, so its terms are matched exactly.
+     *
+     * @param name the field name
+     * @return true, if mapped as keyword
+     */
+    public final boolean isKeyword(final String name) {
+        return keywordFields.contains(name);
+    }
+
+    /**
+     * Decide if a field is sent to the index.
+     *
+     * @param name the field name
+     * @return true, if sent
+     */
+    private boolean decide(final String name) {
+        if (REQUIRED_FIELDS.contains(name)) {
+            return true;
+        }
+        if (droppedFields.matches(name)) {
+            return false;
+        }
+        if (policy == Policy.WHITELIST) {
+            return mappedFields.contains(name) || mappedFields.contains(getObjectName(name))
+                    || keptFields.matches(name);
+        }
+        return true;
+    }
+
+    /**
+     * Get the name of the object holding a field, such as custom_fields for custom_fields.string.my_attribute.
+     * Fields of a mapped object are mapped by its dynamic templates.
+     *
+     * @param name the field path
+     * @return the object name, the field name itself if it is not in an object
+     */
+    private String getObjectName(final String name) {
+        int index = name.indexOf(StringPool.PERIOD);
+        if (index < 0) {
+            return name;
+        }
+        return name.substring(0, index);
+    }
+
+    /**
+     * A list of field names, some of them ending with a wildcard.
+     */
+    private static final class FieldPatterns {
+
+        /** Exact field names. */
+        private final Set<String> names = new HashSet<>();
+
+        /** Field name prefixes. */
+        private final List<String> prefixes = new ArrayList<>();
+
+        /**
+         * Parse a list of field names.
+         *
+         * @param value the comma separated field names, may be null
+         */
+        FieldPatterns(final String value) {
+            if (Validator.isNull(value)) {
+                return;
+            }
+            for (String pattern : StringUtil.split(value)) {
+                String trimmed = pattern.trim();
+                if (trimmed.endsWith(WILDCARD)) {
+                    prefixes.add(trimmed.substring(0, trimmed.length() - WILDCARD.length()));
+                } else if (!trimmed.isEmpty()) {
+                    names.add(trimmed);
+                }
+            }
+        }
+
+        /**
+         * Checks if a field name matches.
+         *
+         * @param name the field name
+         * @return true, if it matches
+         */
+        boolean matches(final String name) {
+            if (names.contains(name)) {
+                return true;
+            }
+            for (String prefix : prefixes) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
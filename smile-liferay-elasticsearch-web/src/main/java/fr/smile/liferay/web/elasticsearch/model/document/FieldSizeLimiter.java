@@ -0,0 +1,262 @@
+package fr.smile.liferay.web.elasticsearch.model.document;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes string values trimmed and truncated to the size limit of their field.
+ *
+ * Values are measured in UTF-8 bytes while they are scanned, and cut on the last word boundary before the
+ * limit. Kept values are written straight to the output: only the values which are trimmed or cut are copied,
+ * into recycled character buffers.
+ */
+@Service
+public class FieldSizeLimiter {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(FieldSizeLimiter.class);
+
+    /**
+     * Number of characters looked back for a word boundary when a value is cut.
+     */
+    private static final int WORD_BOUNDARY_WINDOW = 256;
+
+    /**
+     * Initial size of a character buffer.
+     */
+    private static final int INITIAL_SCRATCH_SIZE = 8192;
+
+    /**
+     * Maximum size of a recycled character buffer, larger ones are left to the garbage collector.
+     */
+    private static final int MAX_RECYCLED_SCRATCH_SIZE = 262144;
+
+    /**
+     * Maximum number of UTF-8 bytes of a character.
+     */
+    private static final int MAX_CHAR_BYTES = 3;
+
+    /** Default maximum size of a value in bytes, 0 if unlimited. */
+    private int defaultMaxBytes;
+
+    /** Maximum size of the values of given fields in bytes, 0 if unlimited. */
+    private final Map<String, Integer> maxBytesByField = new HashMap<>();
+
+    /** Recycled character buffers, shared by converting threads. */
+    private final BlockingQueue<char[]> scratches = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 2
+    );
+
+    /**
+     * Load the size limits.
+     */
+    @PostConstruct
+    public final void init() {
+        defaultMaxBytes = GetterUtil.getInteger(PropsUtil.get(ElasticSearchIndexerConstants.ES_FIELD_MAX_BYTES));
+
+        Properties properties = PropsUtil.getProperties(ElasticSearchIndexerConstants.ES_FIELD_MAX_BYTES_PREFIX, true);
+        for (String fieldName : properties.stringPropertyNames()) {
+            maxBytesByField.put(fieldName, GetterUtil.getInteger(properties.getProperty(fieldName)));
+        }
+
+        LOGGER.debug("Field size limits, default: " + defaultMaxBytes + " ,by field: " + maxBytesByField);
+    }
+
+    /**
+     * Get the maximum size of the values of a field.
+     *
+     * @param fieldName the liferay field name
+     * @return the maximum size in bytes, 0 if unlimited
+     */
+    public final int getMaxBytes(final String fieldName) {
+        Integer maxBytes = maxBytesByField.get(fieldName);
+        if (maxBytes != null) {
+            return maxBytes;
+        }
+        return defaultMaxBytes;
+    }
+
+    /**
+     * Write a field with a string value.
+     *
+     * @param contentBuilder the content builder
+     * @param name the name written
+     * @param fieldName the liferay field name, whose size limit applies
+     * @param value the value, may be null
+     * @return number of bytes cut from the value
+     * @throws IOException if the value can't be written
+     */
+    public final long writeField(final XContentBuilder contentBuilder, final String name, final String fieldName,
+                                 final String value) throws IOException {
+        if (value == null) {
+            contentBuilder.field(name, (String) null);
+            return 0L;
+        }
+        contentBuilder.field(name);
+        return writeValue(contentBuilder, fieldName, value);
+    }
+
+    /**
+     * Write a string value, in an array or after a field name.
+     *
+     * @param contentBuilder the content builder
+     * @param fieldName the liferay field name, whose size limit applies
+     * @param value the value
+     * @return number of bytes cut from the value
+     * @throws IOException if the value can't be written
+     */
+    public final long writeValue(final XContentBuilder contentBuilder, final String fieldName, final String value)
+            throws IOException {
+        XContentGenerator generator = contentBuilder.generator();
+
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        long cutBytes = 0L;
+        int maxBytes = getMaxBytes(fieldName);
+        /* Values short enough can't exceed the limit, they are not measured */
+        if (maxBytes > 0 && (long) (end - start) * MAX_CHAR_BYTES > maxBytes) {
+            int cut = truncationIndex(value, start, end, maxBytes);
+            if (cut < end) {
+                cutBytes = utf8Length(value, cut, end);
+                end = cut;
+            }
+        }
+
+        if (start == 0 && end == value.length()) {
+            generator.writeString(value);
+            return cutBytes;
+        }
+
+        int length = end - start;
+        char[] scratch = acquireScratch(length);
+        try {
+            value.getChars(start, end, scratch, 0);
+            generator.writeString(scratch, 0, length);
+        } finally {
+            releaseScratch(scratch);
+        }
+        return cutBytes;
+    }
+
+    /**
+     * Find where to cut a value so it fits in a size limit: on the last word boundary before the limit, or on
+     * the last whole character if there is no word boundary close to it.
+     *
+     * @param value the value
+     * @param start the start of the value
+     * @param end the end of the value
+     * @param maxBytes the size limit in bytes
+     * @return the end of the kept value, end if the value fits
+     */
+    private int truncationIndex(final String value, final int start, final int end, final int maxBytes) {
+        long bytes = 0L;
+        int i = start;
+        while (i < end) {
+            char c = value.charAt(i);
+            int charLength = 1;
+            int charBytes;
+            if (c < 0x80) {
+                charBytes = 1;
+            } else if (c < 0x800) {
+                charBytes = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                charBytes = 4;
+                charLength = 2;
+            } else {
+                charBytes = MAX_CHAR_BYTES;
+            }
+
+            if (bytes + charBytes > maxBytes) {
+                break;
+            }
+            bytes += charBytes;
+            i += charLength;
+        }
+        if (i >= end) {
+            return end;
+        }
+
+        int limit = Math.max(start, i - WORD_BOUNDARY_WINDOW);
+        for (int j = i; j > limit; j--) {
+            if (Character.isWhitespace(value.charAt(j))) {
+                while (j > start && Character.isWhitespace(value.charAt(j - 1))) {
+                    j--;
+                }
+                return j;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Measure a part of a value in UTF-8 bytes.
+     *
+     * @param value the value
+     * @param start the start of the part
+     * @param end the end of the part
+     * @return the size in bytes
+     */
+    private long utf8Length(final String value, final int start, final int end) {
+        long bytes = 0L;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                /* A surrogate pair takes 4 bytes */
+                bytes += 2;
+            } else {
+                bytes += MAX_CHAR_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get a recycled character buffer, or a new one.
+     *
+     * @param length the minimum buffer length
+     * @return the buffer
+     */
+    private char[] acquireScratch(final int length) {
+        char[] scratch = scratches.poll();
+        if (scratch == null || scratch.length < length) {
+            scratch = new char[Math.max(length, INITIAL_SCRATCH_SIZE)];
+        }
+        return scratch;
+    }
+
+    /**
+     * Give a character buffer back to the pool. Buffers are dropped if the pool is full or they are too large.
+     *
+     * @param scratch the buffer
+     */
+    private void releaseScratch(final char[] scratch) {
+        if (scratch.length <= MAX_RECYCLED_SCRATCH_SIZE) {
+            scratches.offer(scratch);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package fr.smile.liferay.web.elasticsearch.model.document;
+
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.Document;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.search.SearchContext;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.util.StringPool;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+import com.liferay.portal.model.Group;
+import com.liferay.portal.service.GroupLocalServiceUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Routes the documents of a company or of a site to a single shard, and the searches scoped to them to this shard.
+ *
+ * The routing field is one of:
+ * <ul>
+ *     <li>none: documents are spread by id, searches reach every shard</li>
+ *     <li>company: documents are routed by company, searches of a company reach one shard</li>
+ *     <li>group: documents are routed by site, searches of given sites reach one shard per site, searches of a
+ *     whole company reach every shard</li>
+ * </ul>
+ * Documents of a page scope are indexed with the group of their site, so searches of a page scope are routed to
+ * the shard of its site.
+ */
+@Service
+public class RoutingPolicy {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(RoutingPolicy.class);
+
+    /**
+     * Routing fields.
+     */
+    public enum RoutingField {
+
+        /** Documents are routed by id. */
+        NONE,
+
+        /** Documents are routed by company. */
+        COMPANY,
+
+        /** Documents are routed by site. */
+        GROUP
+    }
+
+    /** The routing field. */
+    private RoutingField routingField = RoutingField.NONE;
+
+    /**
+     * Load the routing field.
+     */
+    @PostConstruct
+    public final void init() {
+        String value = PropsUtil.get(ElasticSearchIndexerConstants.ES_ROUTING);
+        if (Validator.isNotNull(value)) {
+            try {
+                routingField = RoutingField.valueOf(StringUtil.toUpperCase(value.trim()));
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Invalid routing " + value + ", documents are routed by id");
+            }
+        }
+        LOGGER.debug("Documents are routed by " + routingField);
+    }
+
+    /**
+     * Get the routing value of a document.
+     *
+     * @param document the liferay document
+     * @return the routing value, null if the document is routed by its id
+     */
+    public final String getRouting(final Document document) {
+        if (routingField == RoutingField.NONE) {
+            return null;
+        }
+
+        String fieldName = routingField == RoutingField.COMPANY ? Field.COMPANY_ID : Field.GROUP_ID;
+        Field field = document.getFields().get(fieldName);
+        if (field == null || Validator.isNull(field.getValue())) {
+            return null;
+        }
+        return field.getValue().trim();
+    }
+
+    /**
+     * Get the routing value of a search, reaching the shards of the company or sites it is scoped to.
+     *
+     * @param searchContext the search context
+     * @return the routing values, comma separated, null if the search must reach every shard
+     */
+    public final String getSearchRouting(final SearchContext searchContext) {
+        if (routingField == RoutingField.COMPANY && searchContext.getCompanyId() > 0) {
+            return String.valueOf(searchContext.getCompanyId());
+        }
+
+        if (routingField == RoutingField.GROUP) {
+            long[] groupIds = searchContext.getGroupIds();
+            if (groupIds == null || groupIds.length == 0) {
+                return null;
+            }
+            Set<Long> routingGroupIds = new LinkedHashSet<>();
+            for (long groupId : groupIds) {
+                /* 0 stands for every site */
+                if (groupId <= 0) {
+                    return null;
+                }
+                long routingGroupId = getSiteGroupId(groupId);
+                if (routingGroupId <= 0) {
+                    return null;
+                }
+                routingGroupIds.add(routingGroupId);
+            }
+            return StringUtil.merge(routingGroupIds, StringPool.COMMA);
+        }
+        return null;
+    }
+
+    /**
+     * Get the group a group's documents are routed with: the site of a page scope, as indexed by the Liferay
+     * indexers, or the group itself.
+     *
+     * @param groupId the group id
+     * @return the routing group id, 0 if the group can't be read
+     */
+    private long getSiteGroupId(final long groupId) {
+        try {
+            Group group = GroupLocalServiceUtil.fetchGroup(groupId);
+            if (group != null && group.isLayout()) {
+                return group.getParentGroupId();
+            }
+            return groupId;
+        } catch (SystemException e) {
+            LOGGER.warn("Unable to read group " + groupId + ", search reaches every shard: " + e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package fr.smile.liferay.web.elasticsearch.reindex;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.Indexer;
+import com.liferay.portal.kernel.search.IndexerRegistryUtil;
+import com.liferay.portal.model.Company;
+import com.liferay.portal.service.CompanyLocalServiceUtil;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import fr.smile.liferay.elasticsearch.client.model.DeleteByQueryTask;
+import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import fr.smile.liferay.elasticsearch.client.service.VersionClock;
+import fr.smile.liferay.web.elasticsearch.exception.ElasticSearchIndexException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the liferay index without downtime.
+ *
+ * Every Liferay indexer is run into a new physical index, created with refresh disabled and no replica,
+ * while searches keep using the current index through the alias. Once filled, the new index gets back
+ * the refresh interval and replicas of the index settings, is force merged, and the alias is atomically
+ * switched to it.
+ *
+ * While the reindex is running, the index writer sends documents to both indices. Deletions are applied to the
+ * current index and recorded: the new index is not refreshed, so the documents to delete may not be found in it
+ * yet. Once the indexing is done, the new index is refreshed once and the recorded deletions are applied to the
+ * documents built before them. If an indexer or a write to the new index failed, the new index is dropped and
+ * searches keep using the current one.
+ */
+@Service
+@ManagedResource(objectName = "fr.smile.liferay.elasticsearch:type=FullReindex")
+public class FullReindexService {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(FullReindexService.class);
+
+    /**
+     * Reindex thread name.
+     */
+    private static final String REINDEX_THREAD_NAME = "elasticsearch-full-reindex";
+
+    /**
+     * Time without write to the new index after which indexing is considered done, in milliseconds.
+     * Liferay may send documents through its message bus, after the indexers returned.
+     */
+    private static final long QUIET_PERIOD = 5000L;
+
+    /**
+     * Maximum time waiting for the last documents, in milliseconds. Interactive writes keep going to the new
+     * index, which may never be quiet.
+     */
+    private static final long MAX_SETTLING_TIME = 60000L;
+
+    /**
+     * Interval between two checks of a background deletion applied to the new index, in milliseconds.
+     */
+    private static final long DELETION_POLL_INTERVAL = 500L;
+
+    /**
+     * Reindex phases.
+     */
+    public enum Phase {
+
+        /** No reindex has been run. */
+        IDLE,
+
+        /** Creating the new index. */
+        CREATING,
+
+        /** Running the Liferay indexers. */
+        INDEXING,
+
+        /** Waiting for the last documents. */
+        SETTLING,
+
+        /** Restoring settings and merging the new index. */
+        OPTIMIZING,
+
+        /** Switching the alias. */
+        SWAPPING,
+
+        /** Reindex done. */
+        DONE,
+
+        /** Reindex failed, the new index has been dropped. */
+        FAILED
+    }
+
+    /** Liferay index. */
+    @Autowired
+    private Index index;
+
+    /** Liferay index service. */
+    @Autowired
+    private IndexService indexService;
+
+    /** The versions of the operations. */
+    @Autowired
+    private VersionClock versionClock;
+
+    /** The deletions to apply to the new index, oldest first. */
+    private final List<Deletion> pendingDeletions = new ArrayList<>();
+
+    /** The physical index being filled, null if no reindex is running. */
+    private volatile String target;
+
+    /** The current phase. */
+    private volatile Phase phase = Phase.IDLE;
+
+    /** Number of indexer runs done. */
+    private volatile int indexersDone;
+
+    /** Number of indexer runs to do. */
+    private volatile int indexersTotal;
+
+    /** Number of indexer runs failed. */
+    private volatile int indexersFailed;
+
+    /** Number of documents which could not be written to the new index. */
+    private final AtomicLong targetWriteFailures = new AtomicLong();
+
+    /** Time of the last write to the new index. */
+    private volatile long lastTargetWrite;
+
+    /** The error of the last reindex. */
+    private volatile String lastError;
+
+    /**
+     * Start a full reindex in background.
+     *
+     * @return false if a reindex is already running
+     */
+    @ManagedOperation(description = "Rebuild the index in a new physical index and switch the alias")
+    public final synchronized boolean start() {
+        if (isRunning()) {
+            return false;
+        }
+
+        phase = Phase.CREATING;
+        indexersDone = 0;
+        indexersTotal = 0;
+        indexersFailed = 0;
+        targetWriteFailures.set(0);
+        lastError = null;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reindex();
+            }
+        }, REINDEX_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Get the physical index being filled.
+     *
+     * @return the index name, null if no reindex is running
+     */
+    @ManagedAttribute(description = "Physical index being filled")
+    public final String getTarget() {
+        return target;
+    }
+
+    /**
+     * Record a write to the new index.
+     */
+    public final void recordTargetWrite() {
+        lastTargetWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Record documents which could not be written to the new index. The reindex then fails.
+     *
+     * @param count the number of documents
+     */
+    public final void recordTargetWriteFailures(final int count) {
+        if (count > 0) {
+            targetWriteFailures.addAndGet(count);
+        }
+    }
+
+    /**
+     * Record the deletion of documents, to apply it to the new index.
+     *
+     * @param uids the documents uid
+     * @return false if no reindex is running
+     */
+    public final boolean recordDeletion(final Collection<String> uids) {
+        return recordDeletion(new Deletion(new ArrayList<>(uids), null, versionClock.next()));
+    }
+
+    /**
+     * Record the deletion of the documents matching a query, to apply it to the new index.
+     *
+     * @param query the query
+     * @return false if no reindex is running
+     */
+    public final boolean recordDeletion(final QueryBuilder query) {
+        return recordDeletion(new Deletion(null, query, ElasticSearchJsonDocument.NO_VERSION));
+    }
+
+    /**
+     * Checks if a reindex is running.
+     *
+     * @return true, if running
+     */
+    @ManagedAttribute(description = "A full reindex is running")
+    public final boolean isRunning() {
+        return phase != Phase.IDLE && phase != Phase.DONE && phase != Phase.FAILED;
+    }
+
+    /**
+     * Get the current phase.
+     *
+     * @return the phase
+     */
+    @ManagedAttribute(description = "Current phase of the full reindex")
+    public final String getPhase() {
+        return phase.name();
+    }
+
+    /**
+     * Get number of indexer runs done.
+     *
+     * @return indexer runs done
+     */
+    @ManagedAttribute(description = "Indexer runs done")
+    public final int getIndexersDone() {
+        return indexersDone;
+    }
+
+    /**
+     * Get number of indexer runs to do, one per indexer and company.
+     *
+     * @return indexer runs to do
+     */
+    @ManagedAttribute(description = "Indexer runs to do")
+    public final int getIndexersTotal() {
+        return indexersTotal;
+    }
+
+    /**
+     * Get number of indexer runs failed.
+     *
+     * @return indexer runs failed
+     */
+    @ManagedAttribute(description = "Indexer runs failed")
+    public final int getIndexersFailed() {
+        return indexersFailed;
+    }
+
+    /**
+     * Get number of documents which could not be written to the new index.
+     *
+     * @return the documents count
+     */
+    @ManagedAttribute(description = "Documents which could not be written to the new index")
+    public final long getTargetWriteFailures() {
+        return targetWriteFailures.get();
+    }
+
+    /**
+     * Get the error of the last reindex.
+     *
+     * @return the error message, null if none
+     */
+    @ManagedAttribute(description = "Error of the last full reindex")
+    public final String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Run the reindex phases.
+     */
+    private void reindex() {
+        String newIndex = null;
+        try {
+            newIndex = indexService.createReindexTarget(index);
+            lastTargetWrite = System.currentTimeMillis();
+            synchronized (pendingDeletions) {
+                pendingDeletions.clear();
+                target = newIndex;
+            }
+
+            phase = Phase.INDEXING;
+            runIndexers();
+
+            phase = Phase.SETTLING;
+            long settlingEnd = System.currentTimeMillis() + MAX_SETTLING_TIME;
+            while (System.currentTimeMillis() - lastTargetWrite < QUIET_PERIOD
+                    && System.currentTimeMillis() < settlingEnd) {
+                Thread.sleep(QUIET_PERIOD);
+            }
+            checkFailures();
+            indexService.refreshIndex(newIndex);
+            applyDeletions(newIndex, takeDeletions());
+
+            phase = Phase.OPTIMIZING;
+            indexService.finishReindexTarget(index, newIndex);
+
+            phase = Phase.SWAPPING;
+            /* Deletions recorded meanwhile are applied while no other one can be recorded */
+            synchronized (pendingDeletions) {
+                List<Deletion> deletions = takeDeletions();
+                if (!deletions.isEmpty()) {
+                    indexService.refreshIndex(newIndex);
+                    applyDeletions(newIndex, deletions);
+                }
+                checkFailures();
+                indexService.swapAlias(index.getName(), newIndex);
+                target = null;
+            }
+
+            phase = Phase.DONE;
+            LOGGER.info("Full reindex done into index " + newIndex);
+        } catch (Exception e) {
+            LOGGER.error("Full reindex failed", e);
+            lastError = e.getMessage();
+            synchronized (pendingDeletions) {
+                target = null;
+                pendingDeletions.clear();
+            }
+            phase = Phase.FAILED;
+            dropIndex(newIndex);
+        }
+    }
+
+    /**
+     * Stop the reindex if an indexer or a write to the new index failed, as the new index misses documents.
+     *
+     * @throws ElasticSearchIndexException if there are failures
+     */
+    private void checkFailures() throws ElasticSearchIndexException {
+        if (indexersFailed > 0 || targetWriteFailures.get() > 0) {
+            throw new ElasticSearchIndexException(indexersFailed + " indexer runs failed and "
+                    + targetWriteFailures.get() + " documents could not be written, the current index is kept");
+        }
+    }
+
+    /**
+     * Record a deletion if a reindex is running.
+     *
+     * @param deletion the deletion
+     * @return false if no reindex is running
+     */
+    private boolean recordDeletion(final Deletion deletion) {
+        synchronized (pendingDeletions) {
+            if (target == null) {
+                return false;
+            }
+            pendingDeletions.add(deletion);
+            return true;
+        }
+    }
+
+    /**
+     * Take the recorded deletions.
+     *
+     * @return the deletions, oldest first
+     */
+    private List<Deletion> takeDeletions() {
+        synchronized (pendingDeletions) {
+            List<Deletion> deletions = new ArrayList<>(pendingDeletions);
+            pendingDeletions.clear();
+            return deletions;
+        }
+    }
+
+    /**
+     * Apply deletions to the new index, once refreshed.
+     *
+     * @param newIndex the physical index name
+     * @param deletions the deletions, oldest first
+     * @throws Exception if a deletion failed
+     */
+    private void applyDeletions(final String newIndex, final List<Deletion> deletions) throws Exception {
+        for (Deletion deletion : deletions) {
+            if (deletion.query != null) {
+                DeleteByQueryTask task = indexService.deleteByQuery(newIndex, deletion.query);
+                while (!task.isDone()) {
+                    Thread.sleep(DELETION_POLL_INTERVAL);
+                }
+                if (!task.getFailures().isEmpty()) {
+                    throw new ElasticSearchIndexException("Deletion failed on the new index: " + task.getFailures());
+                }
+            } else {
+                /* The documents built after the deletion are kept */
+                BulkResult result = indexService.removeDocuments(deletion.uids, newIndex, deletion.version);
+                if (result.hasFailures()) {
+                    throw new ElasticSearchIndexException("Deletion failed on the new index: "
+                            + result.getFailures());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run every Liferay indexer for every company.
+     *
+     * @throws Exception if companies can't be listed
+     */
+    private void runIndexers() throws Exception {
+        List<Company> companies = CompanyLocalServiceUtil.getCompanies(false);
+        List<Indexer> indexers = IndexerRegistryUtil.getIndexers();
+        indexersTotal = companies.size() * indexers.size();
+
+        for (Company company : companies) {
+            String[] companyIds = new String[] {String.valueOf(company.getCompanyId())};
+            for (Indexer indexer : indexers) {
+                try {
+                    indexer.reindex(companyIds);
+                } catch (Exception e) {
+                    indexersFailed++;
+                    LOGGER.error("Indexer " + indexer.getClass().getName() + " failed for company "
+                            + company.getCompanyId(), e);
+                }
+                indexersDone++;
+            }
+        }
+    }
+
+    /**
+     * Drop the new index of a failed reindex.
+     *
+     * @param newIndex the physical index name, null if it was not created
+     */
+    private void dropIndex(final String newIndex) {
+        if (newIndex == null) {
+            return;
+        }
+        try {
+            indexService.deleteIndex(newIndex);
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to delete index " + newIndex, e);
+        }
+    }
+
+    /**
+     * A deletion to apply to the new index.
+     */
+    private static class Deletion {
+
+        /** The documents uid, null for a deletion by query. */
+        private final List<String> uids;
+
+        /** The query matching the documents, null for a deletion by uid. */
+        private final QueryBuilder query;
+
+        /** The version of the deletion: only the documents built before are deleted. */
+        private final long version;
+
+        /**
+         * Instantiates a new deletion.
+         *
+         * @param uids the documents uid
+         * @param query the query matching the documents
+         * @param version the version of the deletion
+         */
+        Deletion(final List<String> uids, final QueryBuilder query, final long version) {
+            this.uids = uids;
+            this.query = query;
+            this.version = version;
+        }
+    }
+}
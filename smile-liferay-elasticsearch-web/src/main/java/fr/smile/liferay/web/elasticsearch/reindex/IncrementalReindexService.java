@@ -0,0 +1,317 @@
+package fr.smile.liferay.web.elasticsearch.reindex;
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.OrderFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.search.Indexer;
+import com.liferay.portal.kernel.search.IndexerRegistryUtil;
+import com.liferay.portal.kernel.util.DateFormatFactoryUtil;
+import com.liferay.portal.util.PortalUtil;
+import com.liferay.portlet.asset.model.AssetEntry;
+import com.liferay.portlet.asset.service.AssetEntryLocalServiceUtil;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import org.elasticsearch.ElasticsearchException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reindexes the entries modified since a given time, to recover from an outage without a full reindex.
+ *
+ * For each entry type, entries are reindexed from the given time, or from the newest modification date of the type
+ * in the index if it is older. Modified entries are found from their asset entry: types without asset entries
+ * are not reindexed, neither are the entries deleted meanwhile. Each entry is reindexed by its Liferay indexer,
+ * which applies its own checks (workflow status, trash, indexable flag) and removes the document of an entry it
+ * no longer indexes.
+ */
+@Service
+@ManagedResource(objectName = "fr.smile.liferay.elasticsearch:type=IncrementalReindex")
+public class IncrementalReindexService {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(IncrementalReindexService.class);
+
+    /**
+     * Reindex thread name.
+     */
+    private static final String REINDEX_THREAD_NAME = "elasticsearch-incremental-reindex";
+
+    /**
+     * Format of the start time.
+     */
+    private static final String SINCE_DATE_FORMAT_PATTERN = "yyyyMMddHHmmss";
+
+    /**
+     * Sortable modification date field, holding the time in milliseconds.
+     */
+    private static final String MODIFIED_SORTABLE_FIELD = Field.MODIFIED_DATE + "_sortable";
+
+    /**
+     * Number of asset entries read at once.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * Reindex phases.
+     */
+    public enum Phase {
+
+        /** No reindex has been run. */
+        IDLE,
+
+        /** Reading the newest modification date of each entry type. */
+        COLLECTING,
+
+        /** Reindexing the modified entries. */
+        INDEXING,
+
+        /** Reindex done. */
+        DONE,
+
+        /** Reindex failed. */
+        FAILED
+    }
+
+    /** Liferay index. */
+    @Autowired
+    private Index index;
+
+    /** Liferay index service. */
+    @Autowired
+    private IndexService indexService;
+
+    /** Full reindex service. */
+    @Autowired
+    private FullReindexService fullReindexService;
+
+    /** The current phase. */
+    private volatile Phase phase = Phase.IDLE;
+
+    /** The entry type being reindexed. */
+    private volatile String currentType;
+
+    /** Number of modified entries found. */
+    private volatile long entriesTotal;
+
+    /** Number of entries reindexed. */
+    private volatile long entriesDone;
+
+    /** Number of entries which could not be reindexed. */
+    private volatile long entriesFailed;
+
+    /** The error of the last reindex. */
+    private volatile String lastError;
+
+    /**
+     * Start an incremental reindex in background.
+     *
+     * @param since the start time, formatted as yyyyMMddHHmmss
+     * @return false if a reindex is already running
+     * @throws ParseException if the start time is invalid
+     */
+    @ManagedOperation(description = "Reindex the entries modified since a time, formatted as yyyyMMddHHmmss")
+    public final synchronized boolean start(final String since) throws ParseException {
+        final Date sinceDate = DateFormatFactoryUtil.getSimpleDateFormat(SINCE_DATE_FORMAT_PATTERN).parse(since);
+        if (isRunning() || fullReindexService.isRunning()) {
+            return false;
+        }
+
+        phase = Phase.COLLECTING;
+        currentType = null;
+        entriesTotal = 0;
+        entriesDone = 0;
+        entriesFailed = 0;
+        lastError = null;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reindex(sinceDate.getTime());
+            }
+        }, REINDEX_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Checks if a reindex is running.
+     *
+     * @return true, if running
+     */
+    @ManagedAttribute(description = "An incremental reindex is running")
+    public final boolean isRunning() {
+        return phase == Phase.COLLECTING || phase == Phase.INDEXING;
+    }
+
+    /**
+     * Get the current phase.
+     *
+     * @return the phase
+     */
+    @ManagedAttribute(description = "Current phase of the incremental reindex")
+    public final String getPhase() {
+        return phase.name();
+    }
+
+    /**
+     * Get the entry type being reindexed.
+     *
+     * @return the class name, null if none
+     */
+    @ManagedAttribute(description = "Entry type being reindexed")
+    public final String getCurrentType() {
+        return currentType;
+    }
+
+    /**
+     * Get number of modified entries found so far.
+     *
+     * @return number of entries
+     */
+    @ManagedAttribute(description = "Modified entries found")
+    public final long getEntriesTotal() {
+        return entriesTotal;
+    }
+
+    /**
+     * Get number of entries reindexed.
+     *
+     * @return number of entries
+     */
+    @ManagedAttribute(description = "Entries reindexed")
+    public final long getEntriesDone() {
+        return entriesDone;
+    }
+
+    /**
+     * Get number of entries which could not be reindexed.
+     *
+     * @return number of entries
+     */
+    @ManagedAttribute(description = "Entries which could not be reindexed")
+    public final long getEntriesFailed() {
+        return entriesFailed;
+    }
+
+    /**
+     * Get the error of the last reindex.
+     *
+     * @return the error message, null if none
+     */
+    @ManagedAttribute(description = "Error of the last incremental reindex")
+    public final String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Run the reindex phases.
+     *
+     * @param since the start time, in milliseconds
+     */
+    private void reindex(final long since) {
+        try {
+            Map<String, Long> newest = getNewestIndexed();
+
+            phase = Phase.INDEXING;
+            for (Indexer indexer : IndexerRegistryUtil.getIndexers()) {
+                for (String className : indexer.getClassNames()) {
+                    long from = since;
+                    Long newestIndexed = newest.get(className);
+                    if (newestIndexed != null) {
+                        from = Math.min(since, newestIndexed);
+                    }
+                    currentType = className;
+                    reindexType(indexer, className, new Date(from));
+                }
+            }
+
+            currentType = null;
+            phase = Phase.DONE;
+            LOGGER.info("Incremental reindex done, " + entriesDone + " entries reindexed, " + entriesFailed
+                    + " failed");
+        } catch (Exception e) {
+            LOGGER.error("Incremental reindex failed", e);
+            lastError = e.getMessage();
+            phase = Phase.FAILED;
+        }
+    }
+
+    /**
+     * Get the modification date of the newest document indexed for each entry type.
+     *
+     * @return the time in milliseconds by entry class name, empty if the index can't tell: every type is then
+     *         reindexed from the start time
+     */
+    private Map<String, Long> getNewestIndexed() {
+        try {
+            return indexService.getMaxValueByTerm(index.getName(), Field.ENTRY_CLASS_NAME, MODIFIED_SORTABLE_FIELD);
+        } catch (ElasticsearchException e) {
+            LOGGER.warn("Unable to read the newest indexed documents, entries are reindexed from the start time: "
+                    + e.getDetailedMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Reindex the entries of a type modified since a date, in batches.
+     *
+     * @param indexer the indexer of the type
+     * @param className the entry class name
+     * @param from the modification date to start from
+     * @throws Exception if the asset entries can't be read
+     */
+    private void reindexType(final Indexer indexer, final String className, final Date from) throws Exception {
+        long classNameId = PortalUtil.getClassNameId(className);
+
+        LOGGER.debug("Reindexing " + className + " entries modified since " + from);
+        long lastEntryId = 0;
+        while (true) {
+            DynamicQuery query = AssetEntryLocalServiceUtil.dynamicQuery()
+                    .add(RestrictionsFactoryUtil.eq("classNameId", classNameId))
+                    .add(RestrictionsFactoryUtil.ge("modifiedDate", from))
+                    .add(RestrictionsFactoryUtil.gt("entryId", lastEntryId))
+                    .addOrder(OrderFactoryUtil.asc("entryId"));
+            @SuppressWarnings("unchecked")
+            List<AssetEntry> entries = AssetEntryLocalServiceUtil.dynamicQuery(query, 0, BATCH_SIZE);
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            entriesTotal += entries.size();
+            for (AssetEntry entry : entries) {
+                reindexEntry(indexer, className, entry.getClassPK());
+            }
+            lastEntryId = entries.get(entries.size() - 1).getEntryId();
+        }
+    }
+
+    /**
+     * Reindex an entry by its indexer, through the Liferay indexing path.
+     *
+     * @param indexer the indexer of the type
+     * @param className the entry class name
+     * @param classPK the entry primary key, as referenced by its asset entry
+     */
+    private void reindexEntry(final Indexer indexer, final String className, final long classPK) {
+        try {
+            indexer.reindex(className, classPK);
+            entriesDone++;
+        } catch (Exception e) {
+            entriesFailed++;
+            LOGGER.error("Unable to reindex " + className + " " + classPK, e);
+        }
+    }
+}
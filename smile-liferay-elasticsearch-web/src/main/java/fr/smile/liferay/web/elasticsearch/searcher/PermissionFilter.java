@@ -0,0 +1,110 @@
+package fr.smile.liferay.web.elasticsearch.searcher;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.BooleanQuery;
+import com.liferay.portal.kernel.search.BooleanQueryFactoryUtil;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.search.Indexer;
+import com.liferay.portal.kernel.search.IndexerRegistryUtil;
+import com.liferay.portal.kernel.search.Query;
+import com.liferay.portal.kernel.search.SearchContext;
+import com.liferay.portal.kernel.search.SearchEngineUtil;
+import com.liferay.portal.kernel.search.SearchPermissionChecker;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Builds the permission clause of a search, so that the index only returns the documents the user can view.
+ *
+ * Liferay indexers store the roles and the site roles allowed to view an entry in the roleId and groupRoleId
+ * fields. The clause is built by the Liferay search permission checker from these fields, for each searched entry
+ * type whose indexer is permission aware, and applied in filter context: it is not scored and is cached by the
+ * index. Pages come back fully visible and the total count only holds viewable documents, so Liferay does not
+ * have to search again when it checks the permissions of the results.
+ */
+@Service
+public class PermissionFilter {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(PermissionFilter.class);
+
+    /** Liferay queries translator. */
+    @Autowired
+    private QueryTranslator queryTranslator;
+
+    /** Is the permission clause added to the searches. */
+    private boolean enabled;
+
+    /**
+     * Load the configuration.
+     */
+    @PostConstruct
+    public final void init() {
+        enabled = GetterUtil.getBoolean(PropsUtil.get(ElasticSearchIndexerConstants.ES_PERMISSION_FILTER_ENABLED));
+        LOGGER.debug("Permission filter enabled: " + enabled);
+    }
+
+    /**
+     * Checks if the permission clause is added to the searches.
+     *
+     * @return true, if enabled
+     */
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Build the permission clause of a search: a document matches if it is of a searched entry type the user
+     * can view without restriction, or if one of the roles of the user is allowed to view it.
+     *
+     * @param searchContext the search context
+     * @return the clause, null if the search is not restricted
+     */
+    public final QueryBuilder getFilter(final SearchContext searchContext) {
+        String[] entryClassNames = searchContext.getEntryClassNames();
+        if (!enabled || searchContext.getUserId() <= 0 || ArrayUtil.isEmpty(entryClassNames)) {
+            return null;
+        }
+
+        SearchPermissionChecker searchPermissionChecker = SearchEngineUtil.getSearchPermissionChecker();
+        BoolQueryBuilder filter = QueryBuilders.boolQuery().minimumShouldMatch(1);
+        boolean restricted = false;
+        for (String entryClassName : entryClassNames) {
+            Indexer indexer = IndexerRegistryUtil.getIndexer(entryClassName);
+            if (indexer == null || !indexer.isPermissionAware()) {
+                filter.should(queryTranslator.getTermsFilter(Field.ENTRY_CLASS_NAME, entryClassName));
+                continue;
+            }
+
+            BooleanQuery entryClassQuery = BooleanQueryFactoryUtil.create(searchContext);
+            entryClassQuery.addRequiredTerm(Field.ENTRY_CLASS_NAME, entryClassName);
+            Query permissionQuery = searchPermissionChecker.getPermissionQuery(
+                    searchContext.getCompanyId(), searchContext.getGroupIds(), searchContext.getUserId(),
+                    entryClassName, entryClassQuery, searchContext
+            );
+
+            /* The checker returns the query unchanged for the users who can view every entry of the type */
+            if (permissionQuery == entryClassQuery) {
+                filter.should(queryTranslator.getTermsFilter(Field.ENTRY_CLASS_NAME, entryClassName));
+            } else {
+                restricted = true;
+                filter.should(queryTranslator.translate(permissionQuery));
+            }
+        }
+
+        if (!restricted) {
+            return null;
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,505 @@
+package fr.smile.liferay.web.elasticsearch.searcher;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.BooleanClause;
+import com.liferay.portal.kernel.search.BooleanClauseOccur;
+import com.liferay.portal.kernel.search.BooleanQuery;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.search.Query;
+import com.liferay.portal.kernel.search.QueryTerm;
+import com.liferay.portal.kernel.search.TermQuery;
+import com.liferay.portal.kernel.search.TermRangeQuery;
+import com.liferay.portal.kernel.search.WildcardQuery;
+import com.liferay.portal.kernel.util.StringPool;
+import com.liferay.portal.kernel.util.StringUtil;
+import fr.smile.liferay.web.elasticsearch.api.EsSearchApiService;
+import fr.smile.liferay.web.elasticsearch.model.document.FieldFilter;
+import fr.smile.liferay.web.elasticsearch.util.CustomFields;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Translates the Liferay queries into ElasticSearch queries.
+ *
+ * The search engine being declared Lucene based, the portal builds Lucene queries wrapped in Liferay queries. The
+ * Lucene classes are loaded by the portal, not by the plugin: wrapped queries are read by name, through their
+ * public accessors, so the index gets the query tree as is instead of parsing the Lucene syntax again:
+ * <ul>
+ *     <li>boolean queries are translated into bool queries</li>
+ *     <li>terms on the fields constraining the search context, such as the company, the site or the entry type, are
+ *     translated into term filters when the fields are mapped as keyword, the other terms into match queries
+ *     analyzed as the field</li>
+ *     <li>ranges are translated into range filters, wildcards, prefixes and phrases into their own queries</li>
+ *     <li>clauses on custom fields are translated into filters on the fields of the custom fields object, of
+ *     every kind the value may match</li>
+ * </ul>
+ * Other queries are sent as query string queries, on the same fields.
+ *
+ * Non-scoring clauses are returned as constant score queries, and put in filter context by their parent: they are
+ * not scored, and are cached by the index.
+ */
+@Service
+public class QueryTranslator {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(QueryTranslator.class);
+
+    /**
+     * Package of the Lucene queries.
+     */
+    private static final String LUCENE_PACKAGE = "org.apache.lucene.search.";
+
+    /**
+     * Lucene boolean query.
+     */
+    private static final String LUCENE_BOOLEAN_QUERY = LUCENE_PACKAGE + "BooleanQuery";
+
+    /**
+     * Lucene term query.
+     */
+    private static final String LUCENE_TERM_QUERY = LUCENE_PACKAGE + "TermQuery";
+
+    /**
+     * Lucene term range query.
+     */
+    private static final String LUCENE_TERM_RANGE_QUERY = LUCENE_PACKAGE + "TermRangeQuery";
+
+    /**
+     * Lucene numeric range query.
+     */
+    private static final String LUCENE_NUMERIC_RANGE_QUERY = LUCENE_PACKAGE + "NumericRangeQuery";
+
+    /**
+     * Lucene wildcard query.
+     */
+    private static final String LUCENE_WILDCARD_QUERY = LUCENE_PACKAGE + "WildcardQuery";
+
+    /**
+     * Lucene prefix query.
+     */
+    private static final String LUCENE_PREFIX_QUERY = LUCENE_PACKAGE + "PrefixQuery";
+
+    /**
+     * Lucene phrase query.
+     */
+    private static final String LUCENE_PHRASE_QUERY = LUCENE_PACKAGE + "PhraseQuery";
+
+    /**
+     * Lucene query matching every document.
+     */
+    private static final String LUCENE_MATCH_ALL_QUERY = LUCENE_PACKAGE + "MatchAllDocsQuery";
+
+    /**
+     * Lucene query boosting another one, holding the boosts since Lucene 6.
+     */
+    private static final String LUCENE_BOOST_QUERY = LUCENE_PACKAGE + "BoostQuery";
+
+    /**
+     * Occurrence of a required clause.
+     */
+    private static final String MUST = "MUST";
+
+    /**
+     * Occurrence of a forbidden clause.
+     */
+    private static final String MUST_NOT = "MUST_NOT";
+
+    /** The field filter, knowing the fields mapped as keyword. */
+    @Autowired
+    private FieldFilter fieldFilter;
+
+    /** Accessors of the Lucene classes, by class name and accessor name. */
+    private final ConcurrentMap<String, Method> accessors = new ConcurrentHashMap<>();
+
+    /** Accessors missing from the Lucene classes, by class name and accessor name. */
+    private final Set<String> missingAccessors = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Translate a Liferay query.
+     *
+     * @param query the Liferay query
+     * @return the ElasticSearch query
+     */
+    public final QueryBuilder translate(final Query query) {
+        try {
+            return translateQuery(query);
+        } catch (IllegalStateException e) {
+            LOGGER.error("Unable to translate query, it is sent as a query string: " + e.getMessage());
+            return stringQuery(query.toString());
+        }
+    }
+
+    /**
+     * Build a filter matching the documents whose field holds one of the values. The values are matched as is on
+     * a keyword field, and as phrases analyzed as the field otherwise.
+     *
+     * @param field the field
+     * @param values the values
+     * @return the ElasticSearch query
+     */
+    public final QueryBuilder getTermsFilter(final String field, final String... values) {
+        if (fieldFilter.isKeyword(field)) {
+            return QueryBuilders.termsQuery(field, values);
+        }
+        BoolQueryBuilder boolQuery = QueryBuilders.boolQuery().minimumShouldMatch(1);
+        for (String value : values) {
+            boolQuery.should(QueryBuilders.matchPhraseQuery(field, value));
+        }
+        return boolQuery;
+    }
+
+    /**
+     * Translate a Liferay query, from its wrapped Lucene query if any.
+     *
+     * @param query the Liferay query
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translateQuery(final Query query) {
+        Object wrappedQuery = query.getWrappedQuery();
+        if (wrappedQuery != null && wrappedQuery.getClass().getName().startsWith(LUCENE_PACKAGE)) {
+            return translateLuceneQuery(wrappedQuery);
+        }
+
+        if (query instanceof BooleanQuery) {
+            BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                addClause(boolQuery, getOccur(clause.getBooleanClauseOccur()), translateQuery(clause.getQuery()));
+            }
+            return toBoolResult(boolQuery);
+        } else if (query instanceof TermQuery) {
+            QueryTerm queryTerm = ((TermQuery) query).getQueryTerm();
+            return translateTerm(queryTerm.getField(), queryTerm.getValue());
+        } else if (query instanceof TermRangeQuery) {
+            TermRangeQuery rangeQuery = (TermRangeQuery) query;
+            return translateRange(rangeQuery.getField(), rangeQuery.getLowerTerm(), rangeQuery.getUpperTerm(),
+                    rangeQuery.includesLower(), rangeQuery.includesUpper());
+        } else if (query instanceof WildcardQuery) {
+            QueryTerm queryTerm = ((WildcardQuery) query).getQueryTerm();
+            return translateWildcard(queryTerm.getField(), queryTerm.getValue());
+        }
+        return stringQuery(query.toString());
+    }
+
+    /**
+     * Translate a Lucene query.
+     *
+     * @param query the Lucene query
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translateLuceneQuery(final Object query) {
+        String className = query.getClass().getName();
+        QueryBuilder queryBuilder;
+        if (LUCENE_BOOLEAN_QUERY.equals(className)) {
+            BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+            for (Object clause : (List<?>) read(query, "clauses")) {
+                String occur = ((Enum<?>) read(clause, "getOccur")).name();
+                addClause(boolQuery, occur, translateLuceneQuery(read(clause, "getQuery")));
+            }
+            int minimumShouldMatch = (Integer) read(query, "getMinimumNumberShouldMatch");
+            if (minimumShouldMatch > 0) {
+                boolQuery.minimumShouldMatch(minimumShouldMatch);
+            }
+            queryBuilder = toBoolResult(boolQuery);
+        } else if (LUCENE_TERM_QUERY.equals(className)) {
+            Object term = read(query, "getTerm");
+            queryBuilder = translateTerm((String) read(term, "field"), (String) read(term, "text"));
+        } else if (LUCENE_TERM_RANGE_QUERY.equals(className)) {
+            queryBuilder = translateRange((String) read(query, "getField"), readTermText(query, "getLowerTerm"),
+                    readTermText(query, "getUpperTerm"), (Boolean) read(query, "includesLower"),
+                    (Boolean) read(query, "includesUpper"));
+        } else if (LUCENE_NUMERIC_RANGE_QUERY.equals(className)) {
+            queryBuilder = translateRange((String) read(query, "getField"), read(query, "getMin"),
+                    read(query, "getMax"), (Boolean) read(query, "includesMin"), (Boolean) read(query, "includesMax"));
+        } else if (LUCENE_WILDCARD_QUERY.equals(className)) {
+            Object term = read(query, "getTerm");
+            queryBuilder = translateWildcard((String) read(term, "field"), (String) read(term, "text"));
+        } else if (LUCENE_PREFIX_QUERY.equals(className)) {
+            Object term = read(query, "getPrefix");
+            queryBuilder = translateWildcard((String) read(term, "field"), read(term, "text") + StringPool.STAR);
+        } else if (LUCENE_PHRASE_QUERY.equals(className) && ((Object[]) read(query, "getTerms")).length > 0) {
+            Object[] terms = (Object[]) read(query, "getTerms");
+            String[] texts = new String[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                texts[i] = (String) read(terms[i], "text");
+            }
+            queryBuilder = translatePhrase((String) read(terms[0], "field"), StringUtil.merge(texts, StringPool.SPACE),
+                    (Integer) read(query, "getSlop"));
+        } else if (LUCENE_MATCH_ALL_QUERY.equals(className)) {
+            queryBuilder = QueryBuilders.matchAllQuery();
+        } else if (LUCENE_BOOST_QUERY.equals(className)) {
+            queryBuilder = translateLuceneQuery(read(query, "getQuery"));
+        } else {
+            return stringQuery(query.toString());
+        }
+
+        /* Queries have a boost up to Lucene 5 */
+        Float boost = (Float) readOptional(query, "getBoost");
+        if (boost != null && boost != 1.0f) {
+            queryBuilder.boost(boost);
+        }
+        return queryBuilder;
+    }
+
+    /**
+     * Translate a term clause.
+     *
+     * @param field the field
+     * @param value the value
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translateTerm(final String field, final String value) {
+        if (CustomFields.isCustomField(field)) {
+            /* The value matches either the whole value or a word of a string custom field, or a typed value */
+            BoolQueryBuilder boolQuery = QueryBuilders.boolQuery()
+                    .should(QueryBuilders.matchQuery(CustomFields.getTextPath(field), value));
+            for (CustomFields.Kind kind : CustomFields.Kind.values()) {
+                boolQuery.should(QueryBuilders.matchQuery(CustomFields.getPath(field, kind), value).lenient(true));
+            }
+            return QueryBuilders.constantScoreQuery(boolQuery);
+        }
+        if (FieldFilter.FILTER_FIELDS.contains(field) && fieldFilter.isKeyword(field)) {
+            return QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(field, value));
+        }
+        /* Terms of text fields are analyzed, as the query string did */
+        return QueryBuilders.matchQuery(field, value);
+    }
+
+    /**
+     * Translate a range clause.
+     *
+     * @param field the field
+     * @param lower the lower bound, null if unbounded
+     * @param upper the upper bound, null if unbounded
+     * @param includeLower is the lower bound included
+     * @param includeUpper is the upper bound included
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translateRange(final String field, final Object lower, final Object upper,
+                                        final boolean includeLower, final boolean includeUpper) {
+        if (CustomFields.isCustomField(field)) {
+            BoolQueryBuilder boolQuery = QueryBuilders.boolQuery()
+                    .should(QueryBuilders.rangeQuery(CustomFields.getPath(field, CustomFields.Kind.STRING))
+                            .from(lower, includeLower).to(upper, includeUpper));
+            /* Range queries are not lenient: numeric fields are only searched with numeric bounds */
+            if (isNumeric(lower) && isNumeric(upper)) {
+                boolQuery.should(QueryBuilders.rangeQuery(CustomFields.getPath(field, CustomFields.Kind.LONG))
+                        .from(lower, includeLower).to(upper, includeUpper));
+                boolQuery.should(QueryBuilders.rangeQuery(CustomFields.getPath(field, CustomFields.Kind.DOUBLE))
+                        .from(lower, includeLower).to(upper, includeUpper));
+            }
+            return QueryBuilders.constantScoreQuery(boolQuery);
+        }
+        return QueryBuilders.constantScoreQuery(QueryBuilders.rangeQuery(field)
+                .from(lower, includeLower).to(upper, includeUpper));
+    }
+
+    /**
+     * Checks if a range bound can be searched on a numeric field.
+     *
+     * @param bound the bound, null if unbounded
+     * @return true, if unbounded or numeric
+     */
+    private boolean isNumeric(final Object bound) {
+        if (bound == null || bound instanceof Number) {
+            return true;
+        }
+        try {
+            Double.parseDouble(bound.toString().trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Translate a wildcard clause.
+     *
+     * @param field the field
+     * @param value the value, with wildcards
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translateWildcard(final String field, final String value) {
+        if (CustomFields.isCustomField(field)) {
+            return QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery()
+                    .should(QueryBuilders.wildcardQuery(CustomFields.getPath(field, CustomFields.Kind.STRING), value))
+                    .should(QueryBuilders.wildcardQuery(CustomFields.getTextPath(field), value)));
+        }
+        return QueryBuilders.wildcardQuery(field, value);
+    }
+
+    /**
+     * Translate a phrase clause.
+     *
+     * @param field the field
+     * @param text the words of the phrase
+     * @param slop the number of positions the words may move
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translatePhrase(final String field, final String text, final int slop) {
+        if (CustomFields.isCustomField(field)) {
+            /* The phrase matches either the whole value or words of a string custom field */
+            String path = CustomFields.getPath(field, CustomFields.Kind.STRING);
+            return QueryBuilders.boolQuery()
+                    .should(QueryBuilders.matchPhraseQuery(CustomFields.getTextPath(field), text).slop(slop))
+                    .should(QueryBuilders.matchPhraseQuery(path, text));
+        }
+        return QueryBuilders.matchPhraseQuery(field, text).slop(slop);
+    }
+
+    /**
+     * Add a clause to a bool query: required non-scoring clauses are put in filter context.
+     *
+     * @param boolQuery the bool query
+     * @param occur the occurrence of the clause
+     * @param clause the clause
+     */
+    private void addClause(final BoolQueryBuilder boolQuery, final String occur, final QueryBuilder clause) {
+        if (MUST.equals(occur)) {
+            if (clause instanceof ConstantScoreQueryBuilder && clause.boost() == 1.0f) {
+                boolQuery.filter(((ConstantScoreQueryBuilder) clause).innerQuery());
+            } else {
+                boolQuery.must(clause);
+            }
+        } else if (MUST_NOT.equals(occur)) {
+            if (clause instanceof ConstantScoreQueryBuilder) {
+                boolQuery.mustNot(((ConstantScoreQueryBuilder) clause).innerQuery());
+            } else {
+                boolQuery.mustNot(clause);
+            }
+        } else {
+            boolQuery.should(clause);
+        }
+    }
+
+    /**
+     * Get the result of a bool query: a bool query without scoring clause is non-scoring.
+     *
+     * In filter context, at least one optional clause of a bool query must match, so bool queries holding both
+     * required and optional clauses are kept scoring, as their optional clauses are not required by Lucene.
+     *
+     * @param boolQuery the bool query
+     * @return the query
+     */
+    private QueryBuilder toBoolResult(final BoolQueryBuilder boolQuery) {
+        List<QueryBuilder> should = boolQuery.should();
+        if (should.isEmpty() && boolQuery.must().isEmpty() && boolQuery.filter().isEmpty()
+                && boolQuery.mustNot().isEmpty()) {
+            /* An empty Lucene boolean query matches no document */
+            return QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery().mustNot(QueryBuilders.matchAllQuery()));
+        }
+
+        if (!boolQuery.must().isEmpty()) {
+            return boolQuery;
+        }
+        for (QueryBuilder clause : should) {
+            if (!(clause instanceof ConstantScoreQueryBuilder)) {
+                return boolQuery;
+            }
+        }
+        if (!should.isEmpty() && !boolQuery.filter().isEmpty() && boolQuery.minimumShouldMatch() == null) {
+            return boolQuery;
+        }
+        return QueryBuilders.constantScoreQuery(boolQuery);
+    }
+
+    /**
+     * Get the name of a Liferay clause occurrence.
+     *
+     * @param occur the occurrence
+     * @return the occurrence name
+     */
+    private String getOccur(final BooleanClauseOccur occur) {
+        if (occur == BooleanClauseOccur.MUST) {
+            return MUST;
+        } else if (occur == BooleanClauseOccur.MUST_NOT) {
+            return MUST_NOT;
+        }
+        return occur.getName();
+    }
+
+    /**
+     * Build a query string query from the Lucene syntax of a clause.
+     *
+     * Custom fields are searched in every kind object: the query is lenient, so values are only searched in the
+     * fields of their kind.
+     *
+     * @param query the clause, in Lucene syntax
+     * @return the query
+     */
+    private QueryBuilder stringQuery(final String query) {
+        return QueryBuilders.queryStringQuery(EsSearchApiService.escape(CustomFields.toQueryStringFields(query)))
+                .lenient(true);
+    }
+
+    /**
+     * Read a term text of a Lucene object: Lucene versions give either a string or the UTF-8 bytes of the text.
+     *
+     * @param target the Lucene object
+     * @param accessor the accessor name
+     * @return the text, null if none
+     */
+    private String readTermText(final Object target, final String accessor) {
+        Object term = read(target, accessor);
+        if (term == null || term instanceof String) {
+            return (String) term;
+        }
+        return (String) read(term, "utf8ToString");
+    }
+
+    /**
+     * Read a property of a Lucene object through its public accessor, if the Lucene version has it.
+     *
+     * @param target the Lucene object
+     * @param accessor the accessor name
+     * @return the property value, null if there is no such accessor
+     */
+    private Object readOptional(final Object target, final String accessor) {
+        String key = target.getClass().getName() + StringPool.POUND + accessor;
+        if (missingAccessors.contains(key)) {
+            return null;
+        }
+        try {
+            return read(target, accessor);
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof NoSuchMethodException) {
+                missingAccessors.add(key);
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read a property of a Lucene object through its public accessor.
+     *
+     * @param target the Lucene object
+     * @param accessor the accessor name
+     * @return the property value
+     */
+    private Object read(final Object target, final String accessor) {
+        Class<?> clazz = target.getClass();
+        String key = clazz.getName() + StringPool.POUND + accessor;
+        try {
+            Method method = accessors.get(key);
+            if (method == null) {
+                method = clazz.getMethod(accessor);
+                accessors.putIfAbsent(key, method);
+            }
+            return method.invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to read " + key, e);
+        }
+    }
+}
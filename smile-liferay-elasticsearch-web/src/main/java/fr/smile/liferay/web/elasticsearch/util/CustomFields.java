@@ -0,0 +1,157 @@
+package fr.smile.liferay.web.elasticsearch.util;
+
+import com.liferay.portal.kernel.util.StringPool;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portlet.expando.model.ExpandoTableConstants;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps the Liferay custom fields (expando attributes) to the custom fields object of the index.
+ *
+ * Liferay names the field of an attribute expando/custom_fields/{attribute name}, where the attribute name may hold
+ * spaces and upper case letters. In the index, attributes are held by the custom_fields object, in a sub object per
+ * kind of value, and named from the attribute name in lower case with every character other than a letter or a digit
+ * replaced by '_'. Attributes of different types sharing a name, on different entry types, are thus indexed in
+ * distinct fields and don't conflict in the mappings.
+ */
+public class CustomFields {
+
+    /**
+     * Kinds of custom field values, each held by its own sub object.
+     */
+    public enum Kind {
+
+        /** Strings, indexed as keywords with an analyzed text sub field. */
+        STRING,
+
+        /** Integers and dates. */
+        LONG,
+
+        /** Decimal numbers. */
+        DOUBLE,
+
+        /** Booleans. */
+        BOOLEAN;
+
+        /**
+         * Get the name of the sub object holding the values of this kind.
+         * @return the object name, such as long
+         */
+        public String getObjectName() {
+            return StringUtil.toLowerCase(name());
+        }
+    }
+
+    /**
+     * Object holding the custom fields in the index.
+     */
+    public static final String OBJECT_NAME = StringUtil.toLowerCase(ExpandoTableConstants.DEFAULT_TABLE_NAME);
+
+    /**
+     * Sub field holding the analyzed text of the string custom fields.
+     */
+    public static final String TEXT_FIELD = "text";
+
+    /**
+     * Prefix of the Liferay custom field names.
+     */
+    private static final String LIFERAY_PREFIX = "expando" + StringPool.FORWARD_SLASH + OBJECT_NAME
+            + StringPool.FORWARD_SLASH;
+
+    /**
+     * Pattern of a Liferay custom field name followed by its value in a query string.
+     */
+    private static final Pattern LIFERAY_FIELD_PATTERN = Pattern.compile(
+            "(" + Pattern.quote(LIFERAY_PREFIX) + "[^:]+):");
+
+    /**
+     * Checks if a Liferay field is a custom field.
+     * @param name the Liferay field name
+     * @return true, if it is a custom field
+     */
+    public static boolean isCustomField(String name) {
+        return name != null && name.startsWith(LIFERAY_PREFIX);
+    }
+
+    /**
+     * Get the attribute name of a Liferay custom field.
+     * @param name the Liferay field name
+     * @return the attribute name
+     */
+    public static String getAttributeName(String name) {
+        return name.substring(LIFERAY_PREFIX.length());
+    }
+
+    /**
+     * Get the name of an attribute in the custom fields object.
+     * @param attributeName the attribute name
+     * @return the normalized name
+     */
+    public static String normalize(String attributeName) {
+        char[] chars = new char[attributeName.length()];
+        for (int i = 0; i < chars.length; i++) {
+            char c = attributeName.charAt(i);
+            chars[i] = Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : '_';
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Get the path of a Liferay custom field in the index.
+     * @param name the Liferay field name
+     * @param kind the kind of its values
+     * @return the path, such as custom_fields.string.my_attribute
+     */
+    public static String getPath(String name, Kind kind) {
+        return OBJECT_NAME + StringPool.PERIOD + kind.getObjectName() + StringPool.PERIOD
+                + normalize(getAttributeName(name));
+    }
+
+    /**
+     * Get the Liferay name of a custom field.
+     * @param attributeName the attribute name
+     * @return the Liferay field name, such as expando/custom_fields/My Attribute
+     */
+    public static String getLiferayName(String attributeName) {
+        return LIFERAY_PREFIX + attributeName;
+    }
+
+    /**
+     * Get the field of a Liferay custom field in a query string: a pattern matching its path in every kind object.
+     * @param name the Liferay field name
+     * @return the field pattern, such as custom_fields.\*.my_attribute
+     */
+    public static String getQueryStringField(String name) {
+        return OBJECT_NAME + StringPool.PERIOD + StringPool.BACK_SLASH + StringPool.STAR + StringPool.PERIOD
+                + normalize(getAttributeName(name));
+    }
+
+    /**
+     * Replace the Liferay custom field names of a query string with the fields of the index. Names may hold
+     * spaces, which the query string syntax doesn't allow in a field name: they are found up to the next ':'.
+     * @param queryString the query string, in Lucene syntax
+     * @return the query string on the fields of the index
+     */
+    public static String toQueryStringFields(String queryString) {
+        Matcher matcher = LIFERAY_FIELD_PATTERN.matcher(queryString);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(getQueryStringField(matcher.group(1))
+                    + StringPool.COLON));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Get the path of the analyzed text of a Liferay custom field in the index.
+     * @param name the Liferay field name
+     * @return the path, such as custom_fields.string.my_attribute.text
+     */
+    public static String getTextPath(String name) {
+        return getPath(name, Kind.STRING) + StringPool.PERIOD + TEXT_FIELD;
+    }
+
+}
@@ -0,0 +1,212 @@
+package fr.smile.liferay.web.elasticsearch.writer;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.Document;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import fr.smile.liferay.web.elasticsearch.model.document.ElasticSearchJsonDocumentBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Converts collections of Liferay documents to {@link ElasticSearchJsonDocument} on a dedicated pool.
+ *
+ * Large collections are split into batches converted in parallel. Converted documents are
+ * returned in the original order, as soon as their batch is done, so the first bulk requests
+ * can be sent while the next batches are still converted. Only a few batches are converted
+ * ahead of the consumer, to keep memory usage bounded.
+ */
+@Service
+public class ConversionPipeline {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(ConversionPipeline.class);
+
+    /**
+     * Default number of documents per conversion task.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Number of batches converted ahead of the consumer, per thread.
+     */
+    private static final int BATCHES_AHEAD_PER_THREAD = 2;
+
+    /** The document json builder. */
+    @Autowired
+    private ElasticSearchJsonDocumentBuilder documentJSONBuilder;
+
+    /** The conversion pool, null if conversion is serial. */
+    private ForkJoinPool pool;
+
+    /** Number of documents per conversion task. */
+    private int batchSize;
+
+    /** Number of batches converted ahead of the consumer. */
+    private int window;
+
+    /**
+     * Create the conversion pool.
+     */
+    @PostConstruct
+    public final void start() {
+        int parallelism = GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_CONVERSION_PARALLELISM),
+                Runtime.getRuntime().availableProcessors()
+        );
+        batchSize = Math.max(1, GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_CONVERSION_BATCH_SIZE), DEFAULT_BATCH_SIZE
+        ));
+
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+            window = parallelism * BATCHES_AHEAD_PER_THREAD;
+            LOGGER.info("Parallel document conversion enabled, parallelism: " + parallelism
+                    + " ,batch size: " + batchSize);
+        } else {
+            LOGGER.debug("Parallel document conversion disabled");
+        }
+    }
+
+    /**
+     * Shut the conversion pool down.
+     */
+    @PreDestroy
+    public final void stop() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Convert documents.
+     *
+     * @param documents the liferay documents
+     * @return the json documents, in the same order, converted while they are iterated
+     */
+    public final Iterable<ElasticSearchJsonDocument> convert(final Collection<Document> documents) {
+        if (pool == null || documents.size() <= batchSize) {
+            return convertBatch(documents);
+        }
+
+        final List<Document> documentList = new ArrayList<>(documents);
+        return new Iterable<ElasticSearchJsonDocument>() {
+            @Override
+            public Iterator<ElasticSearchJsonDocument> iterator() {
+                return new PipelineIterator(documentList);
+            }
+        };
+    }
+
+    /**
+     * Convert a batch of documents in the current thread.
+     *
+     * A document which could not be converted is returned in error, so it doesn't stop the whole batch.
+     *
+     * @param documents the liferay documents
+     * @return the json documents
+     */
+    private List<ElasticSearchJsonDocument> convertBatch(final Collection<Document> documents) {
+        List<ElasticSearchJsonDocument> esDocuments = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            try {
+                esDocuments.add(documentJSONBuilder.convertToJSON(document));
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during conversion of Liferay Document to JSON format", e);
+                ElasticSearchJsonDocument esDocument = new ElasticSearchJsonDocument();
+                esDocument.setError(true);
+                esDocument.setErrorMessage(e.getMessage());
+                esDocuments.add(esDocument);
+            }
+        }
+        return esDocuments;
+    }
+
+    /**
+     * Iterates over converted documents, submitting the next batches as the previous ones are consumed.
+     */
+    private class PipelineIterator implements Iterator<ElasticSearchJsonDocument> {
+
+        /** The liferay documents. */
+        private final List<Document> documents;
+
+        /** The submitted batches, in order. */
+        private final Deque<ForkJoinTask<List<ElasticSearchJsonDocument>>> pending = new ArrayDeque<>();
+
+        /** The start of the next batch to submit. */
+        private int nextBatchStart;
+
+        /** The batch being consumed. */
+        private Iterator<ElasticSearchJsonDocument> current = Collections.<ElasticSearchJsonDocument>emptyList()
+                .iterator();
+
+        /**
+         * Instantiates a new pipeline iterator and starts converting the first batches.
+         *
+         * @param documents the liferay documents
+         */
+        PipelineIterator(final List<Document> documents) {
+            this.documents = documents;
+            submitBatches();
+        }
+
+        /**
+         * Submit batches until the window is full.
+         */
+        private void submitBatches() {
+            while (pending.size() < window && nextBatchStart < documents.size()) {
+                int end = Math.min(nextBatchStart + batchSize, documents.size());
+                final List<Document> batch = documents.subList(nextBatchStart, end);
+                pending.add(pool.submit(new Callable<List<ElasticSearchJsonDocument>>() {
+                    @Override
+                    public List<ElasticSearchJsonDocument> call() {
+                        return convertBatch(batch);
+                    }
+                }));
+                nextBatchStart = end;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                current = pending.poll().join().iterator();
+                submitBatches();
+            }
+            return true;
+        }
+
+        @Override
+        public ElasticSearchJsonDocument next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package fr.smile.liferay.web.elasticsearch.writer;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.SearchContext;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.security.auth.PrincipalThreadLocal;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lets users see their own writes without refreshing the index on every write.
+ *
+ * The last write of each user is recorded as a token. The next search of this user sends the documents still
+ * held or queued, then waits until the write is visible: a refresh of the whole index completed since the write
+ * wakes it up, otherwise it waits for the periodic refresh, up to a maximum time. The token is kept until the
+ * write is visible, so the following searches of the user wait too if the first one gave up waiting.
+ * Searches of the other users don't wait, so the index can keep a relaxed refresh interval.
+ */
+@Service
+public class ReadYourWritesTracker {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(ReadYourWritesTracker.class);
+
+    /**
+     * Default maximum time a search waits, in milliseconds.
+     */
+    private static final long DEFAULT_MAX_WAIT = 2000L;
+
+    /**
+     * Maximum number of tokens kept, the oldest are dropped first.
+     */
+    private static final int MAX_TOKENS = 10000;
+
+    /** Liferay index. */
+    @Autowired
+    private Index index;
+
+    /** Liferay index service. */
+    @Autowired
+    private IndexService indexService;
+
+    /** Asynchronous indexing queue. */
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    /** Single document writes coalescer. */
+    @Autowired
+    private WriteCoalescer writeCoalescer;
+
+    /** Is read-your-writes enabled. */
+    private boolean enabled;
+
+    /** Maximum time a search waits, in milliseconds. */
+    private long maxWait;
+
+    /** Refresh interval of the index, in milliseconds, negative if refresh is disabled. */
+    private long refreshInterval;
+
+    /** Last write of each user, by user id. Also the monitor notified when a refresh completes. */
+    private final Tokens tokens = new Tokens();
+
+    /** Start time of the last completed refresh of the whole index, guarded by the tokens. */
+    private long lastRefreshAt;
+
+    /**
+     * Load the read-your-writes configuration.
+     */
+    @PostConstruct
+    public final void init() {
+        enabled = GetterUtil.getBoolean(PropsUtil.get(ElasticSearchIndexerConstants.ES_READ_YOUR_WRITES_ENABLED));
+        if (!enabled) {
+            LOGGER.debug("Read-your-writes is disabled");
+            return;
+        }
+
+        maxWait = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_READ_YOUR_WRITES_MAX_WAIT), DEFAULT_MAX_WAIT
+        );
+        refreshInterval = indexService.getRefreshInterval(index).millis();
+        LOGGER.info("Read-your-writes enabled, refresh interval: " + refreshInterval + "ms ,max wait: "
+                + maxWait + "ms");
+    }
+
+    /**
+     * Record a write of the user of a search context.
+     *
+     * @param searchContext the search context
+     * @param deferred true if the written documents are held or queued, not yet sent to the index
+     */
+    public final void recordWrite(final SearchContext searchContext, final boolean deferred) {
+        if (!enabled) {
+            return;
+        }
+
+        long userId = getUserId(searchContext);
+        if (userId <= 0) {
+            return;
+        }
+
+        synchronized (tokens) {
+            LastWrite lastWrite = tokens.remove(userId);
+            boolean stillDeferred = deferred || (lastWrite != null && lastWrite.deferred);
+            tokens.put(userId, new LastWrite(System.currentTimeMillis(), stillDeferred));
+        }
+    }
+
+    /**
+     * Record a completed refresh of the whole index, making visible every write done before it started, and wake
+     * up the searches waiting for these writes.
+     *
+     * @param startedAt the time the refresh started
+     */
+    public final void recordRefresh(final long startedAt) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (tokens) {
+            if (startedAt > lastRefreshAt) {
+                lastRefreshAt = startedAt;
+                tokens.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the last write of the user of a search context is visible, if not done yet.
+     *
+     * @param searchContext the search context
+     */
+    public final void awaitVisible(final SearchContext searchContext) {
+        if (!enabled) {
+            return;
+        }
+
+        long userId = getUserId(searchContext);
+        LastWrite lastWrite;
+        synchronized (tokens) {
+            lastWrite = tokens.get(userId);
+        }
+        if (lastWrite == null) {
+            return;
+        }
+
+        if (lastWrite.deferred) {
+            writeCoalescer.flush();
+            writeBehindQueue.flush();
+            LastWrite sentWrite = new LastWrite(System.currentTimeMillis(), false);
+            synchronized (tokens) {
+                /* A write recorded meanwhile keeps its own token */
+                if (tokens.get(userId) == lastWrite) {
+                    tokens.put(userId, sentWrite);
+                }
+            }
+            lastWrite = sentWrite;
+        }
+
+        if (refreshInterval < 0) {
+            /* The index is not refreshed periodically */
+            long refreshStart = System.currentTimeMillis();
+            indexService.refreshIndex(index.getName());
+            recordRefresh(refreshStart);
+        }
+
+        long visibleAt = lastWrite.writtenAt + refreshInterval;
+        synchronized (tokens) {
+            long now = System.currentTimeMillis();
+            long waitEnd = Math.min(visibleAt, now + maxWait);
+            if (!isVisible(lastWrite, now) && now < waitEnd) {
+                LOGGER.debug("Waiting up to " + (waitEnd - now) + "ms for the writes of user " + userId);
+            }
+            while (!isVisible(lastWrite, now) && now < waitEnd) {
+                try {
+                    tokens.wait(waitEnd - now);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                now = System.currentTimeMillis();
+            }
+            if (isVisible(lastWrite, now) && tokens.get(userId) == lastWrite) {
+                /* Unless a later write replaced it */
+                tokens.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Checks if a write is visible to searches, guarded by the tokens.
+     *
+     * @param lastWrite the write
+     * @param now the current time
+     * @return true if a refresh started after the write, or if the periodic refresh is due
+     */
+    private boolean isVisible(final LastWrite lastWrite, final long now) {
+        return lastRefreshAt >= lastWrite.writtenAt
+                || (refreshInterval >= 0 && now >= lastWrite.writtenAt + refreshInterval);
+    }
+
+    /**
+     * Get the user of a search context, or of the current thread.
+     *
+     * @param searchContext the search context, may be null
+     * @return the user id, 0 if unknown
+     */
+    private long getUserId(final SearchContext searchContext) {
+        if (searchContext != null && searchContext.getUserId() > 0) {
+            return searchContext.getUserId();
+        }
+        return PrincipalThreadLocal.getUserId();
+    }
+
+    /**
+     * Last writes of the users by user id, the least recently recorded dropped first.
+     */
+    private static final class Tokens extends LinkedHashMap<Long, LastWrite> {
+
+        /** The Constant serialVersionUID. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, LastWrite> eldest) {
+            return size() > MAX_TOKENS;
+        }
+    }
+
+    /**
+     * The last write of a user.
+     */
+    private static final class LastWrite {
+
+        /** Time of the write. */
+        private final long writtenAt;
+
+        /** Are the written documents held or queued. */
+        private final boolean deferred;
+
+        /**
+         * Instantiates a new last write.
+         *
+         * @param writtenAt time of the write
+         * @param deferred are the written documents held or queued
+         */
+        LastWrite(final long writtenAt, final boolean deferred) {
+            this.writtenAt = writtenAt;
+            this.deferred = deferred;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package fr.smile.liferay.web.elasticsearch.writer;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.search.SearchContext;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import org.elasticsearch.action.support.WriteRequest;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Chooses when the result of an operation must be visible to searches, by operation type and search context.
+ *
+ * Each policy is configured with one of:
+ * <ul>
+ *     <li>none: the operation returns at once, its result is visible after the next periodic refresh</li>
+ *     <li>wait_for: the operation returns once a periodic refresh made its result visible</li>
+ *     <li>immediate: the index is refreshed at once, which costs indexing throughput</li>
+ * </ul>
+ *
+ * Operations whose search context asks to commit immediately use their own policy, whatever their type.
+ */
+@Service
+public class RefreshPolicyResolver {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(RefreshPolicyResolver.class);
+
+    /**
+     * Policy name: no refresh.
+     */
+    private static final String NONE = "none";
+
+    /**
+     * Policy name: wait for a refresh.
+     */
+    private static final String WAIT_FOR = "wait_for";
+
+    /**
+     * Policy name: refresh at once.
+     */
+    private static final String IMMEDIATE = "immediate";
+
+    /** Refresh policy of single document writes. */
+    private WriteRequest.RefreshPolicy writePolicy;
+
+    /** Refresh policy of document deletions. */
+    private WriteRequest.RefreshPolicy deletePolicy;
+
+    /** Refresh policy of operations asking to commit immediately. */
+    private WriteRequest.RefreshPolicy commitImmediatelyPolicy;
+
+    /**
+     * Load the refresh policies configuration.
+     */
+    @PostConstruct
+    public final void init() {
+        writePolicy = getPolicy(ElasticSearchIndexerConstants.ES_REFRESH_WRITE, WriteRequest.RefreshPolicy.NONE);
+        deletePolicy = getPolicy(ElasticSearchIndexerConstants.ES_REFRESH_DELETE, WriteRequest.RefreshPolicy.NONE);
+        commitImmediatelyPolicy = getPolicy(
+                ElasticSearchIndexerConstants.ES_REFRESH_COMMIT_IMMEDIATELY, WriteRequest.RefreshPolicy.WAIT_UNTIL
+        );
+
+        LOGGER.debug("Refresh policies, write: " + writePolicy + " ,delete: " + deletePolicy
+                + " ,commit immediately: " + commitImmediatelyPolicy);
+    }
+
+    /**
+     * Get the refresh policy of a single document write.
+     *
+     * @param searchContext the search context
+     * @return the refresh policy
+     */
+    public final WriteRequest.RefreshPolicy forWrite(final SearchContext searchContext) {
+        if (isCommitImmediately(searchContext)) {
+            return commitImmediatelyPolicy;
+        }
+        return writePolicy;
+    }
+
+    /**
+     * Get the refresh policy of a collection of documents write. Collections are written in bulk, they are
+     * made visible only when the search context asks to commit immediately.
+     *
+     * @param searchContext the search context
+     * @return the refresh policy
+     */
+    public final WriteRequest.RefreshPolicy forBulkWrite(final SearchContext searchContext) {
+        if (isCommitImmediately(searchContext)) {
+            return commitImmediatelyPolicy;
+        }
+        return WriteRequest.RefreshPolicy.NONE;
+    }
+
+    /**
+     * Get the refresh policy of a deletion.
+     *
+     * @param searchContext the search context
+     * @return the refresh policy
+     */
+    public final WriteRequest.RefreshPolicy forDelete(final SearchContext searchContext) {
+        if (isCommitImmediately(searchContext)) {
+            return commitImmediatelyPolicy;
+        }
+        return deletePolicy;
+    }
+
+    /**
+     * Checks if the search context asks to commit immediately.
+     *
+     * @param searchContext the search context, may be null
+     * @return true, if commit immediately
+     */
+    private boolean isCommitImmediately(final SearchContext searchContext) {
+        return searchContext != null && searchContext.isCommitImmediately();
+    }
+
+    /**
+     * Read a refresh policy from the portal properties.
+     *
+     * @param key the property key
+     * @param defaultPolicy the policy used if the property is missing or invalid
+     * @return the refresh policy
+     */
+    private WriteRequest.RefreshPolicy getPolicy(final String key, final WriteRequest.RefreshPolicy defaultPolicy) {
+        String value = PropsUtil.get(key);
+        if (Validator.isNull(value)) {
+            return defaultPolicy;
+        }
+
+        value = StringUtil.toLowerCase(value.trim());
+        if (NONE.equals(value)) {
+            return WriteRequest.RefreshPolicy.NONE;
+        } else if (WAIT_FOR.equals(value)) {
+            return WriteRequest.RefreshPolicy.WAIT_UNTIL;
+        } else if (IMMEDIATE.equals(value)) {
+            return WriteRequest.RefreshPolicy.IMMEDIATE;
+        }
+
+        LOGGER.error("Invalid refresh policy " + value + " for " + key + ", using " + defaultPolicy);
+        return defaultPolicy;
+    }
+}
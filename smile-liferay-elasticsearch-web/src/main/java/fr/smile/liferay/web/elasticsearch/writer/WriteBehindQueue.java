@@ -0,0 +1,251 @@
+package fr.smile.liferay.web.elasticsearch.writer;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of documents waiting to be sent to the index by a background worker.
+ *
+ * The worker sends the queued documents with a bulk request as soon as enough documents
+ * are waiting (see {@link BulkSettings#getBulkActions()}) or when the flush interval is
+ * elapsed. When the queue is full, callers wait for room and finally index the document
+ * themselves, so indexing never goes faster than the index can absorb.
+ *
+ * The queue is drained when the Spring context is destroyed: since it depends on the
+ * {@link IndexService}, it is destroyed before the client is closed.
+ */
+@Service
+public class WriteBehindQueue {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(WriteBehindQueue.class);
+
+    /**
+     * Worker thread name.
+     */
+    private static final String WORKER_NAME = "elasticsearch-write-behind";
+
+    /** Liferay index. */
+    @Autowired
+    private Index index;
+
+    /** Liferay index service. */
+    @Autowired
+    private IndexService indexService;
+
+    /** The bulk settings. */
+    @Autowired
+    private BulkSettings bulkSettings;
+
+    /** The pending documents. */
+    private BlockingQueue<ElasticSearchJsonDocument> queue;
+
+    /** Lock held while documents are taken from the queue and sent, to keep them ordered. */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    /** Monitor used to wake the worker up. */
+    private final Object trigger = new Object();
+
+    /** The worker. */
+    private Thread worker;
+
+    /** Is the queue accepting documents. */
+    private volatile boolean running;
+
+    /**
+     * Start the background worker if asynchronous indexing is enabled.
+     */
+    @PostConstruct
+    public final void start() {
+        if (!bulkSettings.isAsyncEnabled()) {
+            LOGGER.debug("Asynchronous indexing is disabled");
+            return;
+        }
+
+        queue = new ArrayBlockingQueue<>(bulkSettings.getQueueSize());
+        running = true;
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, WORKER_NAME);
+        worker.setDaemon(true);
+        worker.start();
+
+        LOGGER.info("Asynchronous indexing enabled, queue size: " + bulkSettings.getQueueSize()
+                + " ,flush interval: " + bulkSettings.getFlushInterval() + "ms");
+    }
+
+    /**
+     * Queue a document to be sent in background.
+     *
+     * @param esDocument the json document
+     * @return true if the document has been queued, false if the caller has to index it
+     */
+    public final boolean offer(final ElasticSearchJsonDocument esDocument) {
+        if (!running) {
+            return false;
+        }
+
+        boolean queued;
+        try {
+            queued = queue.offer(esDocument, bulkSettings.getOfferTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+
+        if (!queued) {
+            LOGGER.warn("Asynchronous indexing queue is full, indexing document " + esDocument.getId()
+                    + " synchronously");
+        } else if (!running) {
+            // The queue has been stopped meanwhile, don't leave the document behind
+            flush();
+        } else if (queue.size() >= bulkSettings.getBulkActions()) {
+            synchronized (trigger) {
+                trigger.notifyAll();
+            }
+        }
+
+        return queued;
+    }
+
+    /**
+     * Send every queued document to the index and wait for completion.
+     *
+     * Used before an operation which must not be overtaken by pending documents, such as a deletion.
+     */
+    public final void flush() {
+        if (queue == null) {
+            return;
+        }
+
+        flushLock.lock();
+        try {
+            List<ElasticSearchJsonDocument> batch = new ArrayList<>(queue.size());
+            queue.drainTo(batch);
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the queued copies of a document, superseded by a later write sent directly. A batch being sent is
+     * waited for.
+     *
+     * @param id the document id
+     */
+    public final void remove(final String id) {
+        if (queue == null) {
+            return;
+        }
+
+        flushLock.lock();
+        try {
+            Iterator<ElasticSearchJsonDocument> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (id.equals(iterator.next().getId())) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of queued documents.
+     *
+     * @return number of documents waiting to be sent
+     */
+    public final int size() {
+        if (queue == null) {
+            return 0;
+        }
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting documents and drain the queue.
+     */
+    @PreDestroy
+    public final void stop() {
+        if (worker == null) {
+            return;
+        }
+
+        LOGGER.debug("Draining asynchronous indexing queue, " + queue.size() + " documents pending");
+        running = false;
+        synchronized (trigger) {
+            trigger.notifyAll();
+        }
+
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(bulkSettings.getTimeout()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Documents queued while the worker was stopping
+        flush();
+        LOGGER.debug("Asynchronous indexing queue drained");
+    }
+
+    /**
+     * Worker loop: wait for a full batch or the flush interval, then send the queued documents.
+     */
+    private void work() {
+        while (running) {
+            synchronized (trigger) {
+                if (running && queue.size() < bulkSettings.getBulkActions()) {
+                    try {
+                        trigger.wait(bulkSettings.getFlushInterval());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                }
+            }
+
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error while sending queued documents to the index", e);
+            }
+        }
+    }
+
+    /**
+     * Send documents to the index and report failures.
+     *
+     * @param batch the documents
+     */
+    private void write(final List<ElasticSearchJsonDocument> batch) {
+        BulkResult result = indexService.writeDocuments(index, batch);
+        for (BulkResult.Failure failure : result.getFailures()) {
+            LOGGER.error("Failed to index queued document " + failure);
+        }
+    }
+}
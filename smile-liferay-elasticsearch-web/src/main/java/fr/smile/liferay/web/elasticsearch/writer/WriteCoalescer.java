@@ -0,0 +1,229 @@
+package fr.smile.liferay.web.elasticsearch.writer;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import fr.smile.liferay.elasticsearch.client.BulkSettings;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.elasticsearch.client.service.IndexMetrics;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds single document writes for a short window, keyed by document id, so successive writes
+ * of the same document are merged and only the latest one is sent to the index.
+ *
+ * Once its window is elapsed, a document is handed to the {@link WriteBehindQueue}, or written
+ * synchronously if the queue doesn't accept it.
+ */
+@Service
+public class WriteCoalescer {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(WriteCoalescer.class);
+
+    /**
+     * Scheduler thread name.
+     */
+    private static final String SCHEDULER_NAME = "elasticsearch-write-coalescer";
+
+    /** Liferay index. */
+    @Autowired
+    private Index index;
+
+    /** Liferay index service. */
+    @Autowired
+    private IndexService indexService;
+
+    /** Asynchronous indexing queue. */
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    /** The bulk settings. */
+    @Autowired
+    private BulkSettings bulkSettings;
+
+    /** The indexing metrics. */
+    @Autowired
+    private IndexMetrics indexMetrics;
+
+    /** The held documents, by id. */
+    private final Map<String, ElasticSearchJsonDocument> pending = new LinkedHashMap<>();
+
+    /** Lock held while held documents are sent, to keep them ordered with flushes. */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /** The scheduler releasing documents at the end of their window. */
+    private ScheduledExecutorService scheduler;
+
+    /** Is the coalescer accepting documents. */
+    private volatile boolean running;
+
+    /**
+     * Start the scheduler if a coalescing window is configured.
+     */
+    @PostConstruct
+    public final void start() {
+        if (bulkSettings.getCoalescingWindow() <= 0) {
+            LOGGER.debug("Write coalescing is disabled");
+            return;
+        }
+
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, SCHEDULER_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        running = true;
+
+        LOGGER.info("Write coalescing enabled, window: " + bulkSettings.getCoalescingWindow() + "ms");
+    }
+
+    /**
+     * Hold a document until the end of its window. If the same document is already held, it is replaced.
+     *
+     * @param esDocument the json document
+     * @return true if the document is held, false if the caller has to index it
+     */
+    public final boolean offer(final ElasticSearchJsonDocument esDocument) {
+        if (!running || esDocument.isError()) {
+            return false;
+        }
+
+        final String id = esDocument.getId();
+        /* Checked again with the lock held by stop(), so the scheduler is not shut down meanwhile */
+        synchronized (pending) {
+            if (!running) {
+                return false;
+            }
+            if (pending.put(id, esDocument) != null) {
+                indexMetrics.incrementCoalescedWrites();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Document " + id + " merged with a pending write");
+                }
+                return true;
+            }
+
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    release(id);
+                }
+            }, bulkSettings.getCoalescingWindow(), TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Send every held document without waiting for the end of its window.
+     *
+     * Used before an operation which must not be overtaken by held documents, such as a deletion.
+     */
+    public final void flush() {
+        if (scheduler == null) {
+            return;
+        }
+
+        sendLock.lock();
+        try {
+            List<ElasticSearchJsonDocument> documents;
+            synchronized (pending) {
+                documents = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            for (ElasticSearchJsonDocument esDocument : documents) {
+                send(esDocument);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the held copy of a document, superseded by a later write sent directly. A copy being sent is waited for.
+     *
+     * @param id the document id
+     */
+    public final void remove(final String id) {
+        if (scheduler == null) {
+            return;
+        }
+
+        sendLock.lock();
+        try {
+            synchronized (pending) {
+                pending.remove(id);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting documents and send the held ones.
+     */
+    @PreDestroy
+    public final void stop() {
+        if (scheduler == null) {
+            return;
+        }
+
+        synchronized (pending) {
+            running = false;
+            scheduler.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * Send a held document at the end of its window.
+     *
+     * @param id the document id
+     */
+    private void release(final String id) {
+        sendLock.lock();
+        try {
+            ElasticSearchJsonDocument esDocument;
+            synchronized (pending) {
+                esDocument = pending.remove(id);
+            }
+            if (esDocument != null) {
+                send(esDocument);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Error while sending document " + id + " to the index", e);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Hand a document to the asynchronous queue, or write it if the queue doesn't accept it.
+     *
+     * @param esDocument the json document
+     */
+    private void send(final ElasticSearchJsonDocument esDocument) {
+        if (!writeBehindQueue.offer(esDocument)) {
+            for (BulkResult.Failure failure : indexService.writeDocument(index, esDocument).getFailures()) {
+                LOGGER.error("Failed to index held document " + failure);
+            }
+        }
+    }
+}
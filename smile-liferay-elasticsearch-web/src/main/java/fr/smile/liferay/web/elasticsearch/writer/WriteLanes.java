@@ -0,0 +1,321 @@
+package fr.smile.liferay.web.elasticsearch.writer;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.search.Document;
+import fr.smile.liferay.elasticsearch.client.ElasticSearchIndexerConstants;
+import fr.smile.liferay.elasticsearch.client.model.BulkResult;
+import fr.smile.liferay.elasticsearch.client.model.ElasticSearchJsonDocument;
+import fr.smile.liferay.elasticsearch.client.service.IndexService;
+import fr.smile.liferay.web.elasticsearch.exception.ElasticSearchIndexException;
+import org.elasticsearch.action.support.WriteRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches writes into two lanes, so editors don't wait behind background indexing.
+ *
+ * The interactive lane carries single document writes: they are coalesced and queued (see {@link WriteCoalescer}
+ * and {@link WriteBehindQueue}), or written at once, by a limited number of threads at the same time. The bulk lane
+ * carries collections of documents, such as the ones of a reindex: a limited number of collections are written at
+ * the same time, the others wait their turn. While a collection is written, the bulk lane regularly gives way to
+ * the interactive lane: queued single documents are sent first, and single documents being written or waiting to
+ * be written are waited for.
+ */
+@Service
+public class WriteLanes {
+
+    /** The Constant LOGGER. */
+    private static final Log LOGGER = LogFactoryUtil.getLog(WriteLanes.class);
+
+    /**
+     * Default number of single documents written at the same time.
+     */
+    private static final int DEFAULT_INTERACTIVE_CONCURRENCY = 8;
+
+    /**
+     * Default number of collections written at the same time.
+     */
+    private static final int DEFAULT_BULK_CONCURRENCY = 2;
+
+    /**
+     * Default number of documents of a collection sent between two checks of the interactive lane.
+     */
+    private static final int DEFAULT_YIELD_INTERVAL = 100;
+
+    /**
+     * Default maximum time the bulk lane waits for interactive writes, in milliseconds.
+     */
+    private static final long DEFAULT_MAX_YIELD_WAIT = 1000L;
+
+    /**
+     * Failure message of the documents of a collection interrupted while waiting for the bulk lane.
+     */
+    private static final String INTERRUPTED_MESSAGE = "Interrupted while waiting for the bulk lane";
+
+    /** Liferay index service. */
+    @Autowired
+    private IndexService indexService;
+
+    /** Asynchronous indexing queue. */
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    /** Single document writes coalescer. */
+    @Autowired
+    private WriteCoalescer writeCoalescer;
+
+    /** Document conversion pipeline. */
+    @Autowired
+    private ConversionPipeline conversionPipeline;
+
+    /** Permits of the interactive lane. */
+    private Semaphore interactivePermits;
+
+    /** Permits of the bulk lane. */
+    private Semaphore bulkPermits;
+
+    /** Number of documents sent between two checks of the interactive lane. */
+    private int yieldInterval;
+
+    /** Maximum time the bulk lane waits for interactive writes. */
+    private long maxYieldWait;
+
+    /** Number of single documents being written synchronously, or waiting to be. */
+    private final AtomicInteger interactiveInFlight = new AtomicInteger();
+
+    /** Monitor notified when no more single document is being written. */
+    private final Object interactiveDone = new Object();
+
+    /**
+     * Load the lanes configuration.
+     */
+    @PostConstruct
+    public final void start() {
+        int interactiveConcurrency = Math.max(1, GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_LANE_INTERACTIVE_CONCURRENCY),
+                DEFAULT_INTERACTIVE_CONCURRENCY
+        ));
+        int bulkConcurrency = Math.max(1, GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_LANE_BULK_CONCURRENCY), DEFAULT_BULK_CONCURRENCY
+        ));
+        yieldInterval = Math.max(1, GetterUtil.getInteger(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_LANE_BULK_YIELD_INTERVAL), DEFAULT_YIELD_INTERVAL
+        ));
+        maxYieldWait = GetterUtil.getLong(
+                PropsUtil.get(ElasticSearchIndexerConstants.ES_LANE_BULK_MAX_YIELD_WAIT), DEFAULT_MAX_YIELD_WAIT
+        );
+        interactivePermits = new Semaphore(interactiveConcurrency, true);
+        bulkPermits = new Semaphore(bulkConcurrency, true);
+
+        LOGGER.debug("Interactive lane concurrency: " + interactiveConcurrency
+                + " ,bulk lane concurrency: " + bulkConcurrency + " ,yield interval: " + yieldInterval);
+    }
+
+    /**
+     * Write a single document in the interactive lane.
+     *
+     * @param index the index name
+     * @param esDocument the json document
+     * @return true if the document is held or queued, false if it has been written
+     * @throws ElasticSearchIndexException if the document could neither be written nor spooled
+     */
+    public final boolean writeInteractive(final String index, final ElasticSearchJsonDocument esDocument)
+            throws ElasticSearchIndexException {
+        return writeInteractive(index, esDocument, WriteRequest.RefreshPolicy.NONE);
+    }
+
+    /**
+     * Write a single document in the interactive lane, with a refresh policy. A document which must be made
+     * visible is written at once, without being held or queued. The held or queued copies of a document written
+     * at once are dropped first, so they can't overwrite it later.
+     *
+     * @param index the index name
+     * @param esDocument the json document
+     * @param refreshPolicy when the document must be visible to searches
+     * @return true if the document is held or queued, false if it has been written
+     * @throws ElasticSearchIndexException if the document could neither be written nor spooled
+     */
+    public final boolean writeInteractive(final String index, final ElasticSearchJsonDocument esDocument,
+                                          final WriteRequest.RefreshPolicy refreshPolicy)
+            throws ElasticSearchIndexException {
+        if (refreshPolicy == WriteRequest.RefreshPolicy.NONE
+                && (writeCoalescer.offer(esDocument) || writeBehindQueue.offer(esDocument))) {
+            return true;
+        }
+        /* Held or queued copies of the document must not overwrite it later */
+        writeCoalescer.remove(esDocument.getId());
+        writeBehindQueue.remove(esDocument.getId());
+
+        interactiveInFlight.incrementAndGet();
+        try {
+            interactivePermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            releaseInteractive();
+            throw new ElasticSearchIndexException("Interrupted while waiting for the interactive lane", e);
+        }
+
+        try {
+            BulkResult result = indexService.writeDocument(index, esDocument, refreshPolicy);
+            if (result.hasFailures()) {
+                throw new ElasticSearchIndexException("Failed to index document " + result.getFailures().get(0));
+            }
+            return false;
+        } finally {
+            interactivePermits.release();
+            releaseInteractive();
+        }
+    }
+
+    /**
+     * Mark a single document write as done, and wake up the bulk lane if it was the last one.
+     */
+    private void releaseInteractive() {
+        if (interactiveInFlight.decrementAndGet() == 0) {
+            synchronized (interactiveDone) {
+                interactiveDone.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write a collection of documents in the bulk lane, waiting for a permit if the lane is full. The documents
+     * are converted once the permit is acquired, while they are sent.
+     *
+     * @param index the index name
+     * @param documents the liferay documents
+     * @return the bulk result
+     */
+    public final BulkResult writeBulk(final String index, final Collection<Document> documents) {
+        try {
+            bulkPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            BulkResult result = new BulkResult();
+            for (Document document : documents) {
+                result.addFailure(document.getUID(), null, INTERRUPTED_MESSAGE);
+            }
+            return result;
+        }
+
+        try {
+            return write(index, conversionPipeline.convert(documents));
+        } finally {
+            bulkPermits.release();
+        }
+    }
+
+    /**
+     * Write a collection of converted documents in the bulk lane, waiting for a permit if the lane is full.
+     *
+     * @param index the index name
+     * @param esDocuments the json documents
+     * @return the bulk result
+     */
+    public final BulkResult writeBulkDocuments(final String index,
+                                               final Collection<ElasticSearchJsonDocument> esDocuments) {
+        try {
+            bulkPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            BulkResult result = new BulkResult();
+            for (ElasticSearchJsonDocument esDocument : esDocuments) {
+                result.addFailure(esDocument.getId(), esDocument.getIndexType(), INTERRUPTED_MESSAGE);
+            }
+            return result;
+        }
+
+        try {
+            return write(index, esDocuments);
+        } finally {
+            bulkPermits.release();
+        }
+    }
+
+    /**
+     * Write documents, giving way to the interactive lane. The caller holds a permit of the bulk lane.
+     *
+     * @param index the index name
+     * @param esDocuments the json documents
+     * @return the bulk result
+     */
+    private BulkResult write(final String index, final Iterable<ElasticSearchJsonDocument> esDocuments) {
+        return indexService.writeDocuments(index, new Iterable<ElasticSearchJsonDocument>() {
+            @Override
+            public Iterator<ElasticSearchJsonDocument> iterator() {
+                return new YieldingIterator(esDocuments.iterator());
+            }
+        });
+    }
+
+    /**
+     * Give way to the interactive lane: send the queued single documents and wait for the ones being written.
+     */
+    private void yieldToInteractive() {
+        if (writeBehindQueue.size() > 0) {
+            writeBehindQueue.flush();
+        }
+
+        long deadline = System.currentTimeMillis() + maxYieldWait;
+        synchronized (interactiveDone) {
+            long remaining = maxYieldWait;
+            while (interactiveInFlight.get() > 0 && remaining > 0) {
+                try {
+                    interactiveDone.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the documents of a collection, giving way to the interactive lane at regular intervals.
+     */
+    private class YieldingIterator implements Iterator<ElasticSearchJsonDocument> {
+
+        /** The documents. */
+        private final Iterator<ElasticSearchJsonDocument> documents;
+
+        /** Number of documents returned. */
+        private int count;
+
+        /**
+         * Instantiates a new yielding iterator.
+         *
+         * @param documents the documents
+         */
+        YieldingIterator(final Iterator<ElasticSearchJsonDocument> documents) {
+            this.documents = documents;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return documents.hasNext();
+        }
+
+        @Override
+        public ElasticSearchJsonDocument next() {
+            if (++count % yieldInterval == 0) {
+                yieldToInteractive();
+            }
+            return documents.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
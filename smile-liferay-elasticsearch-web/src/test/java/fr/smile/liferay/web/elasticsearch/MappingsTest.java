@@ -0,0 +1,71 @@
+package fr.smile.liferay.web.elasticsearch;
+
+import fr.smile.liferay.web.elasticsearch.model.document.FieldFilter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the default mappings file.
+ */
+public class MappingsTest {
+
+    /** The mappings file, on the classpath. */
+    private static final String MAPPINGS_PATH = "elasticsearch/mappings/mappings.json";
+
+    /** The properties of the _default_ mapping. */
+    private JSONObject properties;
+
+    /**
+     * Read the properties of the _default_ mapping, applied to every document type.
+     */
+    @Before
+    public final void setUp() {
+        InputStream input = getClass().getClassLoader().getResourceAsStream(MAPPINGS_PATH);
+        assertNotNull(MAPPINGS_PATH, input);
+        try (Scanner scanner = new Scanner(input, "UTF-8").useDelimiter("\\A")) {
+            JSONArray mappings = new JSONObject(scanner.next()).getJSONArray("mappings");
+            assertEquals(1, mappings.length());
+            properties = mappings.getJSONObject(0).getJSONObject("_default_").getJSONObject("properties");
+        }
+    }
+
+    /**
+     * The uid is matched exactly by the deletions: it must not be analyzed.
+     */
+    @Test
+    public final void uidIsKeyword() {
+        assertEquals("keyword", properties.getJSONObject("uid").getString("type"));
+    }
+
+    /**
+     * Liferay dates are written as yyyyMMddHHmmss numbers, which the default date format reads as epoch millis.
+     */
+    @Test
+    public final void datesAreReadInLiferayFormat() {
+        for (String name : new String[] {"createDate", "publishDate"}) {
+            JSONObject property = properties.getJSONObject(name);
+            assertEquals(name, "date", property.getString("type"));
+            assertTrue(name, property.getString("format").startsWith("yyyyMMddHHmmss"));
+        }
+    }
+
+    /**
+     * The searches filter on the exact values of the filter fields: they must not be analyzed.
+     */
+    @Test
+    public final void filterFieldsAreKeyword() {
+        for (String name : FieldFilter.FILTER_FIELDS) {
+            assertTrue(name, properties.has(name));
+            assertEquals(name, "keyword", properties.getJSONObject(name).getString("type"));
+        }
+    }
+}
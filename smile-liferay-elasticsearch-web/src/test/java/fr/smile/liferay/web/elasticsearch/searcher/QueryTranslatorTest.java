@@ -0,0 +1,260 @@
+package fr.smile.liferay.web.elasticsearch.searcher;
+
+import com.liferay.portal.kernel.search.BaseQueryImpl;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.search.Query;
+import com.liferay.portal.kernel.util.Props;
+import com.liferay.portal.kernel.util.PropsUtil;
+import fr.smile.liferay.elasticsearch.client.model.Index;
+import fr.smile.liferay.web.elasticsearch.model.document.FieldFilter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Tests of the translation of the Lucene queries built by the portal.
+ */
+public class QueryTranslatorTest {
+
+    /** The mappings file, on the classpath. */
+    private static final String MAPPINGS_PATH = "elasticsearch/mappings/mappings.json";
+
+    /** A custom field, as named by Liferay. */
+    private static final String CUSTOM_FIELD = "expando/custom_fields/Cost Center";
+
+    /** The tested translator, with the default mappings. */
+    private QueryTranslator queryTranslator;
+
+    /**
+     * Build the translator with the default mappings.
+     *
+     * @throws Exception if a dependency can't be injected
+     */
+    @Before
+    public final void setUp() throws Exception {
+        new PropsUtil().setProps(emptyProps());
+        InputStream input = getClass().getClassLoader().getResourceAsStream(MAPPINGS_PATH);
+        assertNotNull(MAPPINGS_PATH, input);
+        try (Scanner scanner = new Scanner(input, "UTF-8").useDelimiter("\\A")) {
+            queryTranslator = newQueryTranslator(scanner.next());
+        }
+    }
+
+    /**
+     * Required terms on context fields are filters, the other ones scoring match queries.
+     */
+    @Test
+    public final void translateBooleanQuery() {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(Field.COMPANY_ID, "20116")), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term(Field.TITLE, "liferay")), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term(Field.STATUS, "8")), BooleanClause.Occur.MUST_NOT)
+                .add(new TermQuery(new Term(Field.CONTENT, "liferay")), BooleanClause.Occur.SHOULD);
+
+        QueryBuilder expected = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery(Field.COMPANY_ID, "20116"))
+                .must(QueryBuilders.matchQuery(Field.TITLE, "liferay"))
+                .mustNot(QueryBuilders.termQuery(Field.STATUS, "8"))
+                .should(QueryBuilders.matchQuery(Field.CONTENT, "liferay"));
+        assertEquals(expected, translate(builder.build()));
+    }
+
+    /**
+     * A boolean query of filters only is a filter, keeping its minimum number of optional clauses.
+     */
+    @Test
+    public final void translateNonScoringBooleanQuery() {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(Field.GROUP_ID, "20182")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(Field.GROUP_ID, "20183")), BooleanClause.Occur.SHOULD)
+                .setMinimumNumberShouldMatch(1);
+
+        QueryBuilder expected = QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery()
+                .should(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(Field.GROUP_ID, "20182")))
+                .should(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(Field.GROUP_ID, "20183")))
+                .minimumShouldMatch(1));
+        assertEquals(expected, translate(builder.build()));
+    }
+
+    /**
+     * Terms on keyword context fields are filters, terms on text fields are analyzed.
+     */
+    @Test
+    public final void translateTermQuery() {
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(Field.ENTRY_CLASS_NAME,
+                "com.liferay.portlet.journal.model.JournalArticle")),
+                translate(new TermQuery(new Term(Field.ENTRY_CLASS_NAME,
+                        "com.liferay.portlet.journal.model.JournalArticle"))));
+        assertEquals(QueryBuilders.matchQuery(Field.DESCRIPTION, "portal"),
+                translate(new TermQuery(new Term(Field.DESCRIPTION, "portal"))));
+    }
+
+    /**
+     * Terms on context fields not mapped as keyword are analyzed as the field.
+     */
+    @Test
+    public final void translateTermQueryOnTextField() throws Exception {
+        QueryTranslator textTranslator = newQueryTranslator("{\"mappings\": [{\"_default_\": {\"properties\": {"
+                + "\"entryClassName\": {\"type\": \"text\"}}}}]}");
+
+        assertEquals(QueryBuilders.matchQuery(Field.ENTRY_CLASS_NAME, "com.liferay.portlet.blogs.model.BlogsEntry"),
+                textTranslator.translate(wrap(new TermQuery(new Term(Field.ENTRY_CLASS_NAME,
+                        "com.liferay.portlet.blogs.model.BlogsEntry")))));
+        assertEquals(QueryBuilders.boolQuery().minimumShouldMatch(1).should(QueryBuilders.matchPhraseQuery(
+                Field.ENTRY_CLASS_NAME, "com.liferay.portlet.blogs.model.BlogsEntry")),
+                textTranslator.getTermsFilter(Field.ENTRY_CLASS_NAME, "com.liferay.portlet.blogs.model.BlogsEntry"));
+    }
+
+    /**
+     * Term ranges are filters, whatever the Lucene type of their bounds.
+     */
+    @Test
+    public final void translateTermRangeQuery() {
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.rangeQuery(Field.MODIFIED_DATE)
+                .from("20170101000000", true).to("20171231235959", false)),
+                translate(TermRangeQuery.newStringRange(Field.MODIFIED_DATE, "20170101000000", "20171231235959",
+                        true, false)));
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.rangeQuery(Field.MODIFIED_DATE)
+                .from("20170101000000", false).to(null, true)),
+                translate(TermRangeQuery.newStringRange(Field.MODIFIED_DATE, "20170101000000", null,
+                        false, true)));
+    }
+
+    /**
+     * Wildcards are sent as is, on custom fields to their keyword and text fields.
+     */
+    @Test
+    public final void translateWildcardQuery() {
+        assertEquals(QueryBuilders.wildcardQuery(Field.TITLE, "life*"),
+                translate(new WildcardQuery(new Term(Field.TITLE, "life*"))));
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery()
+                .should(QueryBuilders.wildcardQuery("custom_fields.string.cost_center", "nor?h"))
+                .should(QueryBuilders.wildcardQuery("custom_fields.string.cost_center.text", "nor?h"))),
+                translate(new WildcardQuery(new Term(CUSTOM_FIELD, "nor?h"))));
+    }
+
+    /**
+     * Phrases keep their slop, on custom fields they match the words or the whole value.
+     */
+    @Test
+    public final void translatePhraseQuery() {
+        assertEquals(QueryBuilders.matchPhraseQuery(Field.CONTENT, "search engine").slop(2),
+                translate(new PhraseQuery(2, Field.CONTENT, "search", "engine")));
+        assertEquals(QueryBuilders.boolQuery()
+                .should(QueryBuilders.matchPhraseQuery("custom_fields.string.cost_center.text", "north east"))
+                .should(QueryBuilders.matchPhraseQuery("custom_fields.string.cost_center", "north east")),
+                translate(new PhraseQuery(CUSTOM_FIELD, "north", "east")));
+    }
+
+    /**
+     * Other queries are sent as query strings, on the fields of the index.
+     */
+    @Test
+    public final void translateOtherQuery() {
+        assertEquals(QueryBuilders.queryStringQuery("custom_fields.\\*.cost_center:north~2").lenient(true),
+                translate(new FuzzyQuery(new Term(CUSTOM_FIELD, "north"))));
+    }
+
+    /**
+     * Translate a Lucene query wrapped in a Liferay query.
+     *
+     * @param luceneQuery the Lucene query
+     * @return the ElasticSearch query
+     */
+    private QueryBuilder translate(final org.apache.lucene.search.Query luceneQuery) {
+        return queryTranslator.translate(wrap(luceneQuery));
+    }
+
+    /**
+     * Wrap a Lucene query in a Liferay query, as the portal does.
+     *
+     * @param luceneQuery the Lucene query
+     * @return the Liferay query
+     */
+    private static Query wrap(final org.apache.lucene.search.Query luceneQuery) {
+        return new BaseQueryImpl() {
+            @Override
+            public Object getWrappedQuery() {
+                return luceneQuery;
+            }
+
+            @Override
+            public String toString() {
+                return luceneQuery.toString();
+            }
+        };
+    }
+
+    /**
+     * Build a translator for an index.
+     *
+     * @param mappings the index mappings
+     * @return the translator
+     * @throws Exception if a dependency can't be injected
+     */
+    private static QueryTranslator newQueryTranslator(final String mappings) throws Exception {
+        FieldFilter fieldFilter = new FieldFilter();
+        inject(fieldFilter, "index", new Index("liferay-20116", "{}", mappings));
+        fieldFilter.init();
+        QueryTranslator queryTranslator = new QueryTranslator();
+        inject(queryTranslator, "fieldFilter", fieldFilter);
+        return queryTranslator;
+    }
+
+    /**
+     * Build properties without any value, every setting takes its default.
+     *
+     * @return the properties
+     */
+    private static Props emptyProps() {
+        return (Props) Proxy.newProxyInstance(Props.class.getClassLoader(), new Class<?>[] {Props.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if (method.getReturnType() == Properties.class) {
+                            return new Properties();
+                        }
+                        if (method.getReturnType() == String[].class) {
+                            return new String[0];
+                        }
+                        if (method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Set a private field, as Spring does.
+     *
+     * @param target the bean
+     * @param name the field name
+     * @param value the value
+     * @throws Exception if the field can't be set
+     */
+    private static void inject(final Object target, final String name, final Object value) throws Exception {
+        java.lang.reflect.Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}